@@ -0,0 +1,35 @@
+package benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * 依次用1、2、4、8和N（CPU核数）个线程跑一遍所有（或匹配的）基准测试
+ * 每个线程数的结果单独写一个JSON文件，方便横向对比
+ * Throughput给出吞吐量，SampleTime给出p50/p90/p99/p99.9等延迟分位数
+ *
+ * 用法：java -cp target/benchmarks.jar benchmark.BenchmarkRunner [正则，例如 BlockingQueue]
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "benchmark\\..*Benchmark";
+        int cpus = Runtime.getRuntime().availableProcessors();
+        TreeSet<Integer> threadCounts = new TreeSet<>(Arrays.asList(1, 2, 4, 8, cpus));
+
+        for (int threads : threadCounts) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-" + threads + "t.json");
+            new Runner(options.build()).run();
+        }
+    }
+}
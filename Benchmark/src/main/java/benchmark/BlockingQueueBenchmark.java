@@ -0,0 +1,111 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sets.blocking_queue.MyAnotherArrayBlockingQueue;
+import sets.blocking_queue.MyArrayBlockingQueue;
+import sets.blocking_queue.MyLinkedBlockingQueue;
+import sets.blocking_queue.MyMpmcRingBlockingQueue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MyArrayBlockingQueue（synchronized + wait/notify）、MyAnotherArrayBlockingQueue（ReentrantLock + Condition）、
+ * MyMpmcRingBlockingQueue（无锁环形队列）对比ArrayBlockingQueue，
+ * MyLinkedBlockingQueue（双锁链表）对比LinkedBlockingQueue
+ * 每个线程先put一个元素再take一个元素：任何时刻队列中的元素不超过线程数，put不会阻塞；
+ * 每个线程take之前自己已经put过，take也总能拿到元素，不会死锁
+ * 测的是所有线程争抢同一把锁、同一对条件队列时的开销
+ * 不同生产者/消费者比例下的对比见TestMyLinkedBlockingQueue：JMH的线程组在迭代结束时会让阻塞在put/take上的线程永远等下去
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockingQueueBenchmark {
+
+    private static final Object ELEMENT = new Object();
+
+    @Param({"MyArrayBlockingQueue", "MyAnotherArrayBlockingQueue", "MyMpmcRingBlockingQueue", "MyLinkedBlockingQueue",
+            "ArrayBlockingQueue", "LinkedBlockingQueue"})
+    public String impl;
+
+    @Param({"1024"})
+    public int capacity;
+
+    private Queue queue;
+
+    /**
+     * 只用到put/take；实现了BlockingQueue的直接用方法引用，其余的也一样适配
+     */
+    interface Put {
+        void put(Object o) throws InterruptedException;
+    }
+
+    interface Take {
+        Object take() throws InterruptedException;
+    }
+
+    interface Queue extends Put, Take { }
+
+    private static Queue of(Put put, Take take) {
+        return new Queue() {
+            @Override
+            public void put(Object o) throws InterruptedException {
+                put.put(o);
+            }
+
+            @Override
+            public Object take() throws InterruptedException {
+                return take.take();
+            }
+        };
+    }
+
+    private static Queue of(BlockingQueue<Object> q) {
+        return of(q::put, q::take);
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        queue = switch (impl) {
+            case "MyArrayBlockingQueue" -> of(new MyArrayBlockingQueue<>(capacity));
+            case "MyAnotherArrayBlockingQueue" -> {
+                MyAnotherArrayBlockingQueue<Object> q = new MyAnotherArrayBlockingQueue<>(capacity);
+                yield of(q::put, q::take);
+            }
+            case "MyMpmcRingBlockingQueue" -> {
+                MyMpmcRingBlockingQueue<Object> q = new MyMpmcRingBlockingQueue<>(capacity);
+                yield of(q::put, q::take);
+            }
+            case "MyLinkedBlockingQueue" -> {
+                MyLinkedBlockingQueue<Object> q = new MyLinkedBlockingQueue<>(capacity);
+                yield of(q::put, q::take);
+            }
+            case "ArrayBlockingQueue" -> of(new ArrayBlockingQueue<>(capacity));
+            case "LinkedBlockingQueue" -> of(new LinkedBlockingQueue<>(capacity));
+            default -> throw new IllegalArgumentException(impl);
+        };
+    }
+
+    @Benchmark
+    public Object putTake() throws InterruptedException {
+        queue.put(ELEMENT);
+        return queue.take();
+    }
+}
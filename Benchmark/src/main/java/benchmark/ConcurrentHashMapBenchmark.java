@@ -0,0 +1,148 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sets.concurrent_hash_map.MyConcurrentHashMap;
+import sets.concurrent_hash_map.MyEasyConcurrentHashMap;
+import sets.concurrent_hash_map.MyHardConcurrentHashMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 三种MyXxxConcurrentHashMap对比ConcurrentHashMap
+ * key预先装箱好，避免测到Integer.valueOf的分配；每个线程用ThreadLocalRandom随机选key
+ * get：只读；put：只写；mixed：90%读、10%写
+ *
+ * 注意MyHardConcurrentHashMap的put总是把新节点插在链表头部，不会覆盖旧节点，
+ * 链表随着put次数无限增长，所以每轮迭代前都重新建表，否则后面的迭代测到的是越来越长的链表
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentHashMapBenchmark {
+
+    @Param({"MyEasyConcurrentHashMap", "MyConcurrentHashMap", "MyHardConcurrentHashMap", "ConcurrentHashMap"})
+    public String impl;
+
+    @Param({"1024"})
+    public int keys;
+
+    private Integer[] keySpace;
+    private Map map;
+
+    interface Map {
+        void put(Integer key, Integer value);
+
+        Integer get(Integer key);
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        keySpace = new Integer[keys];
+        for (int i = 0; i < keys; i++) {
+            keySpace[i] = i;
+        }
+        map = switch (impl) {
+            case "MyEasyConcurrentHashMap" -> {
+                MyEasyConcurrentHashMap<Integer, Integer> m = new MyEasyConcurrentHashMap<>();
+                yield new Map() {
+                    @Override
+                    public void put(Integer key, Integer value) {
+                        m.put(key, value);
+                    }
+
+                    @Override
+                    public Integer get(Integer key) {
+                        return m.get(key);
+                    }
+                };
+            }
+            case "MyConcurrentHashMap" -> {
+                MyConcurrentHashMap<Integer, Integer> m = new MyConcurrentHashMap<>();
+                yield new Map() {
+                    @Override
+                    public void put(Integer key, Integer value) {
+                        m.put(key, value);
+                    }
+
+                    @Override
+                    public Integer get(Integer key) {
+                        return m.get(key);
+                    }
+                };
+            }
+            case "MyHardConcurrentHashMap" -> {
+                MyHardConcurrentHashMap<Integer, Integer> m = new MyHardConcurrentHashMap<>();
+                yield new Map() {
+                    @Override
+                    public void put(Integer key, Integer value) {
+                        m.put(key, value);
+                    }
+
+                    @Override
+                    public Integer get(Integer key) {
+                        return m.get(key);
+                    }
+                };
+            }
+            case "ConcurrentHashMap" -> {
+                ConcurrentHashMap<Integer, Integer> m = new ConcurrentHashMap<>();
+                yield new Map() {
+                    @Override
+                    public void put(Integer key, Integer value) {
+                        m.put(key, value);
+                    }
+
+                    @Override
+                    public Integer get(Integer key) {
+                        return m.get(key);
+                    }
+                };
+            }
+            default -> throw new IllegalArgumentException(impl);
+        };
+        for (Integer key : keySpace) {
+            map.put(key, key);
+        }
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(randomKey());
+    }
+
+    @Benchmark
+    public void put() {
+        Integer key = randomKey();
+        map.put(key, key);
+    }
+
+    @Benchmark
+    public Integer mixed() {
+        Integer key = randomKey();
+        if (ThreadLocalRandom.current().nextInt(10) == 0) {
+            map.put(key, key);
+            return key;
+        }
+        return map.get(key);
+    }
+
+    private Integer randomKey() {
+        return keySpace[ThreadLocalRandom.current().nextInt(keySpace.length)];
+    }
+}
@@ -0,0 +1,114 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import synchronizer.count_down_latch.MyCountDownLatch;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MyCountDownLatch（synchronized + wait/notifyAll）对比CountDownLatch（AQS共享模式）
+ * countDown：所有线程对同一个计数足够大的latch做countDown，测写路径上的争用
+ * getCount：所有线程读同一个latch的计数，测读路径，MyCountDownLatch的读也要加锁
+ * oneShot：每个线程各自新建一个计数为1的latch，countDown后await，测无争用时一次完整使用的开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountDownLatchBenchmark {
+
+    @Param({"MyCountDownLatch", "CountDownLatch"})
+    public String impl;
+
+    private Latch shared;
+
+    interface Latch {
+        void countDown();
+
+        void await() throws InterruptedException;
+
+        long getCount();
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        // 一轮迭代内不可能减到0
+        shared = newLatch(impl, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void countDown() {
+        shared.countDown();
+    }
+
+    @Benchmark
+    public long getCount() {
+        return shared.getCount();
+    }
+
+    @Benchmark
+    public Latch oneShot() throws InterruptedException {
+        Latch latch = newLatch(impl, 1);
+        latch.countDown();
+        latch.await();
+        return latch;
+    }
+
+    private static Latch newLatch(String impl, int count) {
+        return switch (impl) {
+            case "MyCountDownLatch" -> {
+                MyCountDownLatch l = new MyCountDownLatch(count);
+                yield new Latch() {
+                    @Override
+                    public void countDown() {
+                        l.countDown();
+                    }
+
+                    @Override
+                    public void await() throws InterruptedException {
+                        l.await();
+                    }
+
+                    @Override
+                    public long getCount() {
+                        return l.getCount();
+                    }
+                };
+            }
+            case "CountDownLatch" -> {
+                CountDownLatch l = new CountDownLatch(count);
+                yield new Latch() {
+                    @Override
+                    public void countDown() {
+                        l.countDown();
+                    }
+
+                    @Override
+                    public void await() throws InterruptedException {
+                        l.await();
+                    }
+
+                    @Override
+                    public long getCount() {
+                        return l.getCount();
+                    }
+                };
+            }
+            default -> throw new IllegalArgumentException(impl);
+        };
+    }
+}
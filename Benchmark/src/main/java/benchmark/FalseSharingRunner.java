@@ -0,0 +1,46 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 用-prof perfnorm测伪共享：分别用2、4、8个线程跑BlockingQueueBenchmark和SemaphoreBenchmark中相关的实现
+ * perfnorm把硬件计数器除以操作次数，重点看L1-dcache-load-misses/op：热点字段和锁（或对象头、相邻对象）共享缓存行时，
+ * 线程越多这个值越大
+ * 信号量的许可数设为64，acquire永远不需要等待，测到的只是permits所在缓存行的争抢
+ * 需要Linux的perf；每个基准测试、每个线程数的结果单独写一个JSON文件
+ * 对比填充前后的效果：在加填充之前的提交上再跑一次，比较同一个实现的L1-dcache-load-misses/op
+ *
+ * 用法：java -cp target/benchmarks.jar benchmark.FalseSharingRunner
+ */
+public class FalseSharingRunner {
+
+    private static final int[] THREADS = {2, 4, 8};
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            run("BlockingQueueBenchmark", threads,
+                    "MyArrayBlockingQueue", "MyAnotherArrayBlockingQueue", "ArrayBlockingQueue");
+            run("SemaphoreBenchmark", threads, "MySemaphore", "Semaphore");
+        }
+    }
+
+    private static void run(String benchmark, int threads, String... impls) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include("benchmark\\." + benchmark + "\\.")
+                .param("impl", impls)
+                .mode(Mode.Throughput)
+                .threads(threads)
+                .addProfiler("perfnorm")
+                .resultFormat(ResultFormatType.JSON)
+                .result("perfnorm-" + benchmark + "-" + threads + "t.json");
+        if (benchmark.equals("SemaphoreBenchmark")) {
+            options = options.param("permits", "64");
+        }
+        new Runner(options.build()).run();
+    }
+}
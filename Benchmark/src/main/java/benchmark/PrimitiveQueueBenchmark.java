@@ -0,0 +1,108 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sets.blocking_queue.IntBlockingRingBuffer;
+import sets.blocking_queue.LongBlockingRingBuffer;
+import sets.blocking_queue.MyArrayBlockingQueue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IntBlockingRingBuffer、LongBlockingRingBuffer对比装箱的MyArrayBlockingQueue<Long>和ArrayBlockingQueue<Long>
+ * 和BlockingQueueBenchmark一样，每个线程先put一个值再take一个值，put/take都不会阻塞
+ * 放入的值是一个不断增长的计数器，超出Integer/Long的缓存范围，装箱的队列每次put都要分配
+ * 配合-prof gc运行，看gc.alloc.rate.norm（每次操作分配的字节数）：
+ * java -jar Benchmark/target/benchmarks.jar PrimitiveQueueBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveQueueBenchmark {
+
+    @Param({"IntBlockingRingBuffer", "LongBlockingRingBuffer", "MyArrayBlockingQueue", "ArrayBlockingQueue"})
+    public String impl;
+
+    @Param({"1024"})
+    public int capacity;
+
+    private Queue queue;
+
+    /**
+     * 接口本身也用基本类型，测到的分配只来自队列内部
+     */
+    interface Put {
+        void put(long v) throws InterruptedException;
+    }
+
+    interface Take {
+        long take() throws InterruptedException;
+    }
+
+    interface Queue extends Put, Take { }
+
+    private static Queue of(Put put, Take take) {
+        return new Queue() {
+            @Override
+            public void put(long v) throws InterruptedException {
+                put.put(v);
+            }
+
+            @Override
+            public long take() throws InterruptedException {
+                return take.take();
+            }
+        };
+    }
+
+    /**
+     * 每个线程自己的计数器
+     */
+    @State(Scope.Thread)
+    public static class Counter {
+        long next = 1L << 20;
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        queue = switch (impl) {
+            case "IntBlockingRingBuffer" -> {
+                IntBlockingRingBuffer q = new IntBlockingRingBuffer(capacity);
+                yield of(v -> q.put((int) v), q::take);
+            }
+            case "LongBlockingRingBuffer" -> {
+                LongBlockingRingBuffer q = new LongBlockingRingBuffer(capacity);
+                yield of(q::put, q::take);
+            }
+            case "MyArrayBlockingQueue" -> {
+                MyArrayBlockingQueue<Long> q = new MyArrayBlockingQueue<>(capacity);
+                yield of(q::put, q::take);
+            }
+            case "ArrayBlockingQueue" -> {
+                ArrayBlockingQueue<Long> q = new ArrayBlockingQueue<>(capacity);
+                yield of(q::put, q::take);
+            }
+            default -> throw new IllegalArgumentException(impl);
+        };
+    }
+
+    @Benchmark
+    public long putTake(Counter counter) throws InterruptedException {
+        queue.put(counter.next++);
+        return queue.take();
+    }
+}
@@ -0,0 +1,90 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import synchronizer.semaphore.MySemaphore;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MySemaphore对比Semaphore，公平和非公平两种
+ * permits=1时相当于一把互斥锁，线程数越多争抢越激烈；permits较大时大部分acquire不需要阻塞，主要测CAS的开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SemaphoreBenchmark {
+
+    @Param({"MySemaphore", "MySemaphore-Fair", "Semaphore", "Semaphore-Fair"})
+    public String impl;
+
+    @Param({"1", "4"})
+    public int permits;
+
+    private Permits semaphore;
+
+    interface Permits {
+        void acquire() throws InterruptedException;
+
+        void release();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        semaphore = switch (impl) {
+            case "MySemaphore" -> my(new MySemaphore(permits, false));
+            case "MySemaphore-Fair" -> my(new MySemaphore(permits, true));
+            case "Semaphore" -> jdk(new Semaphore(permits, false));
+            case "Semaphore-Fair" -> jdk(new Semaphore(permits, true));
+            default -> throw new IllegalArgumentException(impl);
+        };
+    }
+
+    @Benchmark
+    public void acquireRelease() throws InterruptedException {
+        semaphore.acquire();
+        semaphore.release();
+    }
+
+    private static Permits my(MySemaphore s) {
+        return new Permits() {
+            @Override
+            public void acquire() throws InterruptedException {
+                s.acquire();
+            }
+
+            @Override
+            public void release() {
+                s.release();
+            }
+        };
+    }
+
+    private static Permits jdk(Semaphore s) {
+        return new Permits() {
+            @Override
+            public void acquire() throws InterruptedException {
+                s.acquire();
+            }
+
+            @Override
+            public void release() {
+                s.release();
+            }
+        };
+    }
+}
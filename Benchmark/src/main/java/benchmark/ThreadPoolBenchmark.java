@@ -0,0 +1,149 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import sets.thread_pool.MyThreadPoolExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MyThreadPoolExecutor（共享队列、工作窃取两种模式）对比ThreadPoolExecutor
+ * 提交线程数由JMH的线程数决定，工作线程数固定为CPU核数
+ * submitAndGet：提交一个空任务并等待结果，SampleTime下就是一次往返的延迟分布
+ * burst：一次提交BURST个空任务并等待全部完成，Throughput下就是每秒能调度的任务数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadPoolBenchmark {
+
+    private static final int BURST = 1000;
+
+    @Param({"MyThreadPoolExecutor", "MyThreadPoolExecutor-WorkStealing", "ThreadPoolExecutor"})
+    public String impl;
+
+    private Pool pool;
+
+    /**
+     * 两种线程池没有共同的接口，用一个最小的适配层统一起来
+     */
+    interface Pool {
+        <T> Future<T> submit(Callable<T> task);
+
+        void executeAll(List<Runnable> tasks);
+
+        void shutdown() throws InterruptedException;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int workers = Runtime.getRuntime().availableProcessors();
+        pool = switch (impl) {
+            case "MyThreadPoolExecutor" -> my(workers, MyThreadPoolExecutor.ExecutionMode.SHARED_QUEUE);
+            case "MyThreadPoolExecutor-WorkStealing" -> my(workers, MyThreadPoolExecutor.ExecutionMode.WORK_STEALING);
+            case "ThreadPoolExecutor" -> jdk(workers);
+            default -> throw new IllegalArgumentException(impl);
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Object submitAndGet() throws ExecutionException, InterruptedException {
+        return pool.submit(() -> Boolean.TRUE).get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void burst(Blackhole bh) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(BURST);
+        List<Runnable> tasks = new ArrayList<>(BURST);
+        for (int i = 0; i < BURST; i++) {
+            tasks.add(done::countDown);
+        }
+        pool.executeAll(tasks);
+        done.await();
+        bh.consume(done);
+    }
+
+    private static Pool my(int workers, MyThreadPoolExecutor.ExecutionMode mode) {
+        MyThreadPoolExecutor executor = new MyThreadPoolExecutor(
+                workers, workers, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy(),
+                mode);
+        // 基线没有耗时直方图，关掉以免比较的是统计开销
+        executor.setTimingEnabled(false);
+        return new Pool() {
+            @Override
+            public <T> Future<T> submit(Callable<T> task) {
+                return executor.submit(task);
+            }
+
+            @Override
+            public void executeAll(List<Runnable> tasks) {
+                executor.executeAll(tasks);
+            }
+
+            @Override
+            public void shutdown() throws InterruptedException {
+                executor.shutdown();
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        };
+    }
+
+    private static Pool jdk(int workers) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                workers, workers, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        executor.prestartAllCoreThreads();
+        return new Pool() {
+            @Override
+            public <T> Future<T> submit(Callable<T> task) {
+                return executor.submit(task);
+            }
+
+            @Override
+            public void executeAll(List<Runnable> tasks) {
+                // ThreadPoolExecutor没有批量提交，逐个提交
+                for (Runnable task : tasks) {
+                    executor.execute(task);
+                }
+            }
+
+            @Override
+            public void shutdown() throws InterruptedException {
+                executor.shutdown();
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        };
+    }
+}
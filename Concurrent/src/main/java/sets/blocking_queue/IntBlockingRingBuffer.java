@@ -0,0 +1,290 @@
+package sets.blocking_queue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 元素类型为int的有界阻塞队列，元素直接存放在int[]中
+ * MyArrayBlockingQueue<Integer>的每次put都要装箱（-128到127之外的值每次都new一个Integer），take之后这个对象就成了垃圾；
+ * 队列里放的是ID、下标这类数值时，热路径上的分配全部来自装箱。这里不装箱，put/take/offer/poll不分配任何对象
+ * 只有真正阻塞时，Condition.await才会分配一个等待节点
+ *
+ * 加锁方式同MyAnotherArrayBlockingQueue：一把ReentrantLock，两个条件队列notFull和notEmpty
+ *
+ * 基本类型没有null，poll/peek在队列为空时返回构造时指定的emptyValue；如果emptyValue也可能是合法的元素，
+ * 无法区分"队列为空"和"取到了emptyValue"，请选一个不会出现的值（例如ID都是非负数时用-1）
+ */
+public class IntBlockingRingBuffer {
+
+    private final int[] items;
+    private int head = 0;
+    private int tail = 0;
+    private int size = 0;
+    private final int capacity;
+    private final int emptyValue;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition(); // 等待非满
+    private final Condition notEmpty = lock.newCondition(); // 等待非空
+
+    public IntBlockingRingBuffer(int capacity) {
+        this(capacity, Integer.MIN_VALUE);
+    }
+
+    public IntBlockingRingBuffer(int capacity, int emptyValue) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than zero.");
+        }
+
+        this.capacity = capacity;
+        this.items = new int[capacity];
+        this.emptyValue = emptyValue;
+    }
+
+    /**
+     * 第一组：put & take
+     * 阻塞
+     */
+    public void put(int v) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == capacity) {
+                notFull.await();
+            }
+            enqueue(v);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 限时的put & take：最多等待timeout
+     * @return 超时返回false或emptyValue
+     */
+    public boolean offer(int v, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(v);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return emptyValue;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 第二组：add & remove
+     * 抛出异常
+     */
+    public void add(int v) {
+        if (!offer(v)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    public int remove() {
+        lock.lock();
+        try {
+            if (size == 0) {
+                throw new IllegalStateException("Queue empty");
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 第三组：offer & poll
+     * 失败，返回false或emptyValue
+     */
+    public boolean offer(int v) {
+        lock.lock();
+        try {
+            if (size == capacity) {
+                return false;
+            }
+            enqueue(v);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int poll() {
+        lock.lock();
+        try {
+            return size == 0 ? emptyValue : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int peek() {
+        lock.lock();
+        try {
+            return size == 0 ? emptyValue : items[head];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int emptyValue() {
+        return emptyValue;
+    }
+
+    /**
+     * 以下方法都只在持有lock时调用
+     */
+    private void enqueue(int v) {
+        items[tail] = v;
+        if (++tail == capacity) {
+            tail = 0;
+        }
+        size++;
+        notEmpty.signal(); // 没有等待者时只是读一下条件队列的头
+    }
+
+    private int dequeue() {
+        int v = items[head]; // 基本类型不需要清空槽位
+        if (++head == capacity) {
+            head = 0;
+        }
+        size--;
+        notFull.signal();
+        return v;
+    }
+}
+
+/**
+ * 两个生产者两个消费者传递不同的int，消费者把取到的值求和，检查不丢不重
+ * 再在单线程中用offer/poll反复经过队列，对比IntBlockingRingBuffer和MyArrayBlockingQueue<Integer>每个元素分配的字节数
+ */
+@Slf4j
+class TestIntBlockingRingBuffer {
+    private static final int ITEMS = 1_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        IntBlockingRingBuffer queue = new IntBlockingRingBuffer(1024, -1);
+        AtomicLong sum = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(4);
+        for (int p = 0; p < 2; p++) {
+            int from = p * (ITEMS / 2);
+            new Thread(() -> {
+                try {
+                    for (int i = from; i < from + ITEMS / 2; i++) {
+                        queue.put(i);
+                    }
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+                done.countDown();
+            }).start();
+        }
+        for (int c = 0; c < 2; c++) {
+            new Thread(() -> {
+                long local = 0;
+                try {
+                    for (int i = 0; i < ITEMS / 2; i++) {
+                        local += queue.take();
+                    }
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+                sum.addAndGet(local);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        long expected = (long) ITEMS * (ITEMS - 1) / 2;
+        log.info("2P/2C sum: {} (expected {}), left in queue: {}, poll on empty: {}",
+                sum.get(), expected, queue.size(), queue.poll());
+
+        MyArrayBlockingQueue<Integer> boxed = new MyArrayBlockingQueue<>(1024);
+        for (int round = 0; round < 2; round++) { // 第一轮用来预热
+            long primitive = allocatedPerElement(() -> {
+                for (int i = 0; i < ITEMS; i++) {
+                    queue.offer(i);
+                    queue.poll();
+                }
+            }, ITEMS);
+            long reference = allocatedPerElement(() -> {
+                for (int i = 0; i < ITEMS; i++) {
+                    boxed.offer(i);
+                    boxed.poll();
+                }
+            }, ITEMS);
+            if (round == 1) {
+                log.info("Bytes allocated per offer/poll: IntBlockingRingBuffer={}, MyArrayBlockingQueue<Integer>={}",
+                        primitive, reference);
+            }
+        }
+    }
+
+    /**
+     * 用HotSpot的线程分配计数器统计当前线程在task中分配的字节数
+     */
+    static long allocatedPerElement(Runnable task, int elements) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = bean.getCurrentThreadAllocatedBytes();
+        task.run();
+        return (bean.getCurrentThreadAllocatedBytes() - before) / elements;
+    }
+}
@@ -0,0 +1,283 @@
+package sets.blocking_queue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 元素类型为long的有界阻塞队列，元素直接存放在long[]中，适合传递Car的id、时间戳这类数值
+ * 除了元素类型之外和IntBlockingRingBuffer完全相同：put/take/offer/poll不装箱，不分配任何对象
+ *
+ * 基本类型没有null，poll/peek在队列为空时返回构造时指定的emptyValue；如果emptyValue也可能是合法的元素，
+ * 无法区分"队列为空"和"取到了emptyValue"，请选一个不会出现的值（例如ID都是非负数时用-1）
+ */
+public class LongBlockingRingBuffer {
+
+    private final long[] items;
+    private int head = 0;
+    private int tail = 0;
+    private int size = 0;
+    private final int capacity;
+    private final long emptyValue;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition(); // 等待非满
+    private final Condition notEmpty = lock.newCondition(); // 等待非空
+
+    public LongBlockingRingBuffer(int capacity) {
+        this(capacity, Long.MIN_VALUE);
+    }
+
+    public LongBlockingRingBuffer(int capacity, long emptyValue) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than zero.");
+        }
+
+        this.capacity = capacity;
+        this.items = new long[capacity];
+        this.emptyValue = emptyValue;
+    }
+
+    /**
+     * 第一组：put & take
+     * 阻塞
+     */
+    public void put(long v) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == capacity) {
+                notFull.await();
+            }
+            enqueue(v);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 限时的put & take：最多等待timeout
+     * @return 超时返回false或emptyValue
+     */
+    public boolean offer(long v, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(v);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return emptyValue;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 第二组：add & remove
+     * 抛出异常
+     */
+    public void add(long v) {
+        if (!offer(v)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    public long remove() {
+        lock.lock();
+        try {
+            if (size == 0) {
+                throw new IllegalStateException("Queue empty");
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 第三组：offer & poll
+     * 失败，返回false或emptyValue
+     */
+    public boolean offer(long v) {
+        lock.lock();
+        try {
+            if (size == capacity) {
+                return false;
+            }
+            enqueue(v);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long poll() {
+        lock.lock();
+        try {
+            return size == 0 ? emptyValue : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long peek() {
+        lock.lock();
+        try {
+            return size == 0 ? emptyValue : items[head];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long emptyValue() {
+        return emptyValue;
+    }
+
+    /**
+     * 以下方法都只在持有lock时调用
+     */
+    private void enqueue(long v) {
+        items[tail] = v;
+        if (++tail == capacity) {
+            tail = 0;
+        }
+        size++;
+        notEmpty.signal(); // 没有等待者时只是读一下条件队列的头
+    }
+
+    private long dequeue() {
+        long v = items[head]; // 基本类型不需要清空槽位
+        if (++head == capacity) {
+            head = 0;
+        }
+        size--;
+        notFull.signal();
+        return v;
+    }
+}
+
+/**
+ * 一个生产者把System.nanoTime()的时间戳依次放入容量很小的队列，消费者检查时间戳单调不减，put/take大多要走阻塞路径
+ * 再在单线程中用offer/poll反复经过队列，对比LongBlockingRingBuffer和MyArrayBlockingQueue<Long>每个元素分配的字节数
+ */
+@Slf4j
+class TestLongBlockingRingBuffer {
+    private static final int ITEMS = 1_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        LongBlockingRingBuffer queue = new LongBlockingRingBuffer(4, -1L);
+        CountDownLatch done = new CountDownLatch(2);
+        new Thread(() -> {
+            try {
+                for (int i = 0; i < ITEMS; i++) {
+                    queue.put(System.nanoTime());
+                }
+            } catch (InterruptedException e) {
+                log.error(e.getMessage());
+            }
+            done.countDown();
+        }).start();
+        new Thread(() -> {
+            try {
+                long last = Long.MIN_VALUE;
+                for (int i = 0; i < ITEMS; i++) {
+                    long timestamp = queue.take();
+                    if (timestamp < last) {
+                        log.error("Timestamp {} taken after {}", timestamp, last);
+                        break;
+                    }
+                    last = timestamp;
+                }
+            } catch (InterruptedException e) {
+                log.error(e.getMessage());
+            }
+            done.countDown();
+        }).start();
+        done.await();
+        log.info("1P/1C timestamps in order, left in queue: {}, timed poll on empty: {}",
+                queue.size(), queue.poll(10, TimeUnit.MILLISECONDS));
+
+        LongBlockingRingBuffer primitiveQueue = new LongBlockingRingBuffer(1024);
+        MyArrayBlockingQueue<Long> boxed = new MyArrayBlockingQueue<>(1024);
+        for (int round = 0; round < 2; round++) {
+            long primitive = allocatedPerElement(() -> {
+                for (int i = 0; i < ITEMS; i++) {
+                    primitiveQueue.offer(System.nanoTime());
+                    primitiveQueue.poll();
+                }
+            }, ITEMS);
+            long reference = allocatedPerElement(() -> {
+                for (int i = 0; i < ITEMS; i++) {
+                    boxed.offer(System.nanoTime());
+                    boxed.poll();
+                }
+            }, ITEMS);
+            if (round == 1) {
+                log.info("Bytes allocated per offer/poll: LongBlockingRingBuffer={}, MyArrayBlockingQueue<Long>={}",
+                        primitive, reference);
+            }
+        }
+    }
+
+    /**
+     * 用HotSpot的线程分配计数器统计当前线程在task中分配的字节数
+     */
+    private static long allocatedPerElement(Runnable task, int elements) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = bean.getCurrentThreadAllocatedBytes();
+        task.run();
+        return (bean.getCurrentThreadAllocatedBytes() - before) / elements;
+    }
+}
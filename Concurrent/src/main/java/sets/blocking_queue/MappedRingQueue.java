@@ -0,0 +1,557 @@
+package sets.blocking_queue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * 基于内存映射文件的有界阻塞队列，进程重启后队列中的元素仍然存在，元素存放在堆外，不占用堆
+ * 环形数组的逻辑同MyArrayBlockingQueue，只是数组换成了文件中的capacity个定长槽位，元素是字节数组：
+ *
+ * | 文件头 HEADER_SIZE字节 | 槽位0 | 槽位1 | ... | 槽位capacity-1 |
+ * 文件头：magic、capacity、maxRecordSize、head、tail
+ * 槽位：4字节的记录长度 + maxRecordSize字节的数据
+ *
+ * head和tail持久化在文件头中。和MyArrayBlockingQueue不同，它们是只增不减的long计数器，槽位下标是counter % capacity，
+ * size = tail - head。这样入队只写tail、出队只写head，每次操作只改一个游标；如果像内存中那样同时维护size，
+ * 三个值不是原子写入的，进程在中间崩溃就会留下互相矛盾的文件头
+ *
+ * 持久化的时机由FlushPolicy决定：
+ * - EVERY_OP：每次操作后force，先写数据再写游标，断电也不会丢失已经返回的操作，最慢
+ * - EVERY_N：每flushEvery次操作force一次，断电最多丢失最近的flushEvery次操作
+ * - OS：从不主动force，由操作系统决定何时写回。进程崩溃不会丢数据（映射的页在内核的页缓存中），断电可能丢失
+ * close()总是会force一次
+ *
+ * 加锁方式同MyAnotherArrayBlockingQueue：一把ReentrantLock，两个条件队列notFull和notEmpty
+ * 同一个文件同时只能被一个MappedRingQueue打开：打开时对文件加排他锁（FileChannel.tryLock），
+ * 两个实例（或两个进程）各自维护head和tail会互相覆盖槽位和游标，所以锁已被持有时直接失败
+ * 一次映射最多2GB（FileChannel.map的限制），capacity * (4 + maxRecordSize)不能超过这个大小
+ */
+public class MappedRingQueue implements Closeable {
+
+    public enum FlushPolicy {EVERY_OP, EVERY_N, OS}
+
+    private static final int MAGIC = 0x4D524751; // "MRGQ"
+    // 文件头中各字段的偏移量
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int MAX_RECORD_OFFSET = 8;
+    private static final int HEAD_OFFSET = 16;
+    private static final int TAIL_OFFSET = 24;
+    private static final int HEADER_SIZE = 64;
+    private static final int LENGTH_PREFIX = 4;
+
+    // 本进程中已经打开的文件。不能只靠tryLock：同一个进程再打开一次时，失败后关闭自己的channel，
+    // 在Linux等系统上会连带释放本进程在这个文件上的所有锁，第一个实例的锁也就没了
+    private static final Set<Path> OPEN_FILES = ConcurrentHashMap.newKeySet();
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int maxRecordSize;
+    private final int slotSize;
+    private final FlushPolicy flushPolicy;
+    private final int flushEvery;
+
+    private long head; // 下一个要读出的记录，只增不减
+    private long tail; // 下一个要写入的记录，只增不减
+    private int unflushed = 0; // EVERY_N：上次force之后的操作数
+    private boolean closed = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition(); // 等待非满
+    private final Condition notEmpty = lock.newCondition(); // 等待非空
+
+    public MappedRingQueue(Path file, int capacity, int maxRecordSize) throws IOException {
+        this(file, capacity, maxRecordSize, FlushPolicy.OS, 0);
+    }
+
+    /**
+     * 文件不存在时新建；已经存在时从文件头中恢复head和tail，capacity和maxRecordSize必须与文件中记录的一致
+     * @param flushEvery 只对EVERY_N有效，每多少次操作force一次
+     * @throws IllegalStateException 文件已经被另一个MappedRingQueue（本进程或其他进程）打开，或者不是MappedRingQueue的文件
+     */
+    public MappedRingQueue(Path file, int capacity, int maxRecordSize, FlushPolicy flushPolicy, int flushEvery)
+            throws IOException {
+        if (capacity <= 0 || maxRecordSize <= 0) {
+            throw new IllegalArgumentException("Capacity and max record size must be greater than zero.");
+        }
+        if (flushPolicy == FlushPolicy.EVERY_N && flushEvery <= 0) {
+            throw new IllegalArgumentException("flushEvery must be greater than zero.");
+        }
+        long mappedSize = HEADER_SIZE + (long) capacity * (LENGTH_PREFIX + maxRecordSize);
+        if (mappedSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity * (4 + maxRecordSize) must fit in one 2GB mapping.");
+        }
+
+        this.capacity = capacity;
+        this.maxRecordSize = maxRecordSize;
+        this.slotSize = LENGTH_PREFIX + maxRecordSize;
+        this.flushPolicy = flushPolicy;
+        this.flushEvery = flushEvery;
+
+        this.path = file.toAbsolutePath().normalize();
+        if (!OPEN_FILES.add(path)) {
+            throw new IllegalStateException(file + " is already opened by another MappedRingQueue.");
+        }
+        try {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException e) {
+            OPEN_FILES.remove(path);
+            throw e;
+        }
+        try {
+            lockFile(file); // 在map之前加锁：map会把文件扩展到mappedSize
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+            // 新文件被map扩展后全是0；上次创建时在写入magic之前崩溃的文件，magic和两个游标也都还是0，同样重新初始化
+            boolean initialized = buffer.getInt(MAGIC_OFFSET) != 0
+                    || buffer.getLong(HEAD_OFFSET) != 0L || buffer.getLong(TAIL_OFFSET) != 0L;
+            if (initialized) {
+                recover(file);
+            } else {
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putInt(MAX_RECORD_OFFSET, maxRecordSize);
+                buffer.putLong(HEAD_OFFSET, 0L);
+                buffer.putLong(TAIL_OFFSET, 0L);
+                buffer.putInt(MAGIC_OFFSET, MAGIC); // 最后写magic：文件头写完整之前，这个文件不会被当作有效的队列
+                buffer.force(0, HEADER_SIZE);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            OPEN_FILES.remove(path);
+            throw e;
+        }
+    }
+
+    /**
+     * 排他锁防的是其他进程，本进程内由OPEN_FILES保证；锁随channel关闭而释放
+     * 其他进程持有锁时tryLock返回null，本进程的其他代码用别的channel锁住了这个文件时抛出OverlappingFileLockException
+     */
+    private void lockFile(Path file) throws IOException {
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            throw new IllegalStateException(file + " is already opened by another MappedRingQueue.");
+        }
+    }
+
+    private void recover(Path file) {
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IllegalStateException(file + " is not a MappedRingQueue file.");
+        }
+        if (buffer.getInt(CAPACITY_OFFSET) != capacity || buffer.getInt(MAX_RECORD_OFFSET) != maxRecordSize) {
+            throw new IllegalArgumentException("File was created with capacity " + buffer.getInt(CAPACITY_OFFSET)
+                    + " and max record size " + buffer.getInt(MAX_RECORD_OFFSET) + ".");
+        }
+        head = buffer.getLong(HEAD_OFFSET);
+        tail = buffer.getLong(TAIL_OFFSET);
+        if (head < 0 || tail < head || tail - head > capacity) {
+            throw new IllegalStateException("Corrupted cursors in " + file + ": head " + head + ", tail " + tail + ".");
+        }
+    }
+
+    /**
+     * 第一组：put & take
+     * 阻塞
+     * @param record 入队的记录，从position到limit的字节，不修改record的position
+     */
+    public void put(ByteBuffer record) throws InterruptedException {
+        checkRecord(record);
+        lock.lockInterruptibly();
+        try {
+            while (tail - head == capacity) {
+                notFull.await();
+            }
+            enqueue(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(byte[] record) throws InterruptedException {
+        put(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * 零拷贝读取：reader拿到的是映射文件中这条记录的只读视图，不复制到堆中
+     * reader在持有锁时调用，返回之后槽位就可能被生产者覆盖，视图不能被保存到reader之外；reader应当尽快返回
+     * @return reader的返回值
+     */
+    public <R> R take(Function<ByteBuffer, R> reader) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (tail == head) {
+                notEmpty.await();
+            }
+            return dequeue(reader);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public byte[] take() throws InterruptedException {
+        return take(MappedRingQueue::toBytes);
+    }
+
+    /**
+     * 限时的put & take：最多等待timeout
+     * @return 超时返回false或空
+     */
+    public boolean offer(ByteBuffer record, long timeout, TimeUnit unit) throws InterruptedException {
+        checkRecord(record);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (tail - head == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(record);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回null的歧义同poll(reader)
+     */
+    public <R> R poll(Function<ByteBuffer, R> reader, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (tail == head) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue(reader);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 第二组：add & remove
+     * 抛出异常
+     */
+    public void add(byte[] record) {
+        if (!offer(record)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    public byte[] remove() {
+        byte[] record = poll();
+        if (record == null) {
+            throw new IllegalStateException("Queue empty");
+        }
+        return record;
+    }
+
+    /**
+     * 第三组：offer & poll
+     * 失败，返回false或空
+     */
+    public boolean offer(ByteBuffer record) {
+        checkRecord(record);
+        lock.lock();
+        try {
+            if (tail - head == capacity) {
+                return false;
+            }
+            enqueue(record);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean offer(byte[] record) {
+        return offer(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * 零拷贝读取，约定同take(reader)
+     * 队列为空和reader返回null都会得到null，需要区分时让reader返回非null的值（例如toBytes返回的数组）
+     * @return reader的返回值，队列为空时返回null
+     */
+    public <R> R poll(Function<ByteBuffer, R> reader) {
+        lock.lock();
+        try {
+            return tail == head ? null : dequeue(reader);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public byte[] poll() {
+        return poll(MappedRingQueue::toBytes);
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int maxRecordSize() {
+        return maxRecordSize;
+    }
+
+    /**
+     * 把所有修改写回磁盘，不管FlushPolicy是什么
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            buffer.force();
+            unflushed = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * force之后关闭文件；映射的内存要等MappedByteBuffer被GC回收时才会释放
+     * 关闭之后不能再使用这个队列，阻塞在put/take上的线程不会被唤醒，请先停止生产者和消费者
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                buffer.force();
+                channel.close();
+            } finally {
+                OPEN_FILES.remove(path);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkRecord(ByteBuffer record) {
+        if (record.remaining() > maxRecordSize) {
+            throw new IllegalArgumentException("Record of " + record.remaining()
+                    + " bytes exceeds max record size " + maxRecordSize + ".");
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer view) {
+        byte[] record = new byte[view.remaining()];
+        view.get(record);
+        return record;
+    }
+
+    /**
+     * 以下方法都只在持有lock时调用
+     */
+    private void enqueue(ByteBuffer record) {
+        if (closed) {
+            throw new IllegalStateException("Queue closed");
+        }
+        int offset = slotOffset(tail);
+        int length = record.remaining();
+        buffer.putInt(offset, length);
+        buffer.put(offset + LENGTH_PREFIX, record, record.position(), length);
+        // EVERY_OP：先让数据落盘，再推进tail，断电后的文件中tail不会指向没写完的记录
+        if (flushPolicy == FlushPolicy.EVERY_OP) {
+            buffer.force(offset, LENGTH_PREFIX + length);
+        }
+        tail++;
+        buffer.putLong(TAIL_OFFSET, tail);
+        afterOp();
+        notEmpty.signal();
+    }
+
+    private <R> R dequeue(Function<ByteBuffer, R> reader) {
+        if (closed) {
+            throw new IllegalStateException("Queue closed");
+        }
+        int offset = slotOffset(head);
+        int length = buffer.getInt(offset);
+        // 先读再推进head：reader抛出异常时记录仍然留在队列中
+        R result = reader.apply(buffer.slice(offset + LENGTH_PREFIX, length).asReadOnlyBuffer());
+        head++;
+        buffer.putLong(HEAD_OFFSET, head);
+        afterOp();
+        notFull.signal();
+        return result;
+    }
+
+    private void afterOp() {
+        switch (flushPolicy) {
+            case EVERY_OP -> buffer.force(HEAD_OFFSET, 16); // head和tail
+            case EVERY_N -> {
+                if (++unflushed == flushEvery) {
+                    buffer.force();
+                    unflushed = 0;
+                }
+            }
+            case OS -> {
+            }
+        }
+    }
+
+    private int slotOffset(long counter) {
+        return HEADER_SIZE + (int) (counter % capacity) * slotSize;
+    }
+}
+
+/**
+ * 1. 两个生产者两个消费者，三种FlushPolicy下的吞吐量；记录的内容是生产者编号和序号，消费者用零拷贝视图读取并检查长度和内容
+ * 2. 放入一些记录后关闭，重新打开同一个文件，检查剩下的记录按顺序都还在
+ * 3. 文件已经打开时再打开一次：直接失败，而不是两个实例互相覆盖游标
+ * 4. 模拟创建时在写入magic之前崩溃：文件已经被扩展、只写了部分文件头，再次打开时重新初始化，而不是拒绝这个文件
+ */
+@Slf4j
+class TestMappedRingQueue {
+    private static final int CAPACITY = 1024;
+    private static final int MAX_RECORD = 64;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("mapped-ring-queue");
+        for (MappedRingQueue.FlushPolicy policy : MappedRingQueue.FlushPolicy.values()) {
+            int items = policy == MappedRingQueue.FlushPolicy.EVERY_OP ? 20_000 : 400_000; // 每次force都是一次系统调用
+            Path file = dir.resolve(policy + ".queue");
+            try (MappedRingQueue queue = new MappedRingQueue(file, CAPACITY, MAX_RECORD, policy, 1024)) {
+                long ms = run(queue, items);
+                log.info("{}: {} records, {} ops/ms, left in queue: {}", policy, items, items / ms, queue.size());
+            }
+            Files.delete(file);
+        }
+
+        Path file = dir.resolve("restart.queue");
+        try (MappedRingQueue queue = new MappedRingQueue(file, 8, MAX_RECORD)) {
+            for (int i = 0; i < 12; i++) {
+                if (i >= 8) {
+                    queue.take(); // 绕回数组开头，重启后head和tail都不为0
+                }
+                queue.put(("record-" + i).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        try (MappedRingQueue queue = new MappedRingQueue(file, 8, MAX_RECORD)) {
+            StringBuilder sb = new StringBuilder();
+            byte[] record;
+            while ((record = queue.poll()) != null) {
+                sb.append(new String(record, StandardCharsets.UTF_8)).append(' ');
+            }
+            log.info("After reopening: {}(expected record-4 .. record-11)", sb);
+
+            String second;
+            try {
+                new MappedRingQueue(file, 8, MAX_RECORD).close();
+                second = "opened (unexpected)";
+            } catch (IllegalStateException e) {
+                second = "rejected: " + e.getMessage();
+            }
+            log.info("Second open while the first is still open: {}", second);
+        }
+        Files.delete(file);
+
+        Path torn = dir.resolve("torn.queue");
+        try (FileChannel channel = FileChannel.open(torn, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer partialHeader = ByteBuffer.allocate(64);
+            partialHeader.putInt(4, 8).putInt(8, MAX_RECORD); // capacity和maxRecordSize写了，magic还没写
+            channel.write(partialHeader);
+            channel.write(ByteBuffer.allocate(8 * (4 + MAX_RECORD)));
+        }
+        try (MappedRingQueue queue = new MappedRingQueue(torn, 8, MAX_RECORD)) {
+            queue.put("after-crash".getBytes(StandardCharsets.UTF_8));
+            log.info("Reopened a file torn before the magic was written: size {}", queue.size());
+        }
+        try (MappedRingQueue queue = new MappedRingQueue(torn, 8, MAX_RECORD)) {
+            log.info("And again: {}", new String(queue.take(), StandardCharsets.UTF_8));
+        }
+        Files.delete(torn);
+        Files.delete(dir);
+    }
+
+    private static long run(MappedRingQueue queue, int items) throws InterruptedException {
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(4);
+        long start = System.nanoTime();
+        for (int p = 0; p < 2; p++) {
+            int id = p;
+            new Thread(() -> {
+                ByteBuffer record = ByteBuffer.allocate(MAX_RECORD);
+                try {
+                    for (int i = 0; i < items / 2; i++) {
+                        record.clear();
+                        // 长度随序号变化：8字节的编号和序号，再加上i % 32个填充字节
+                        record.putInt(id).putInt(i).position(8 + i % 32).flip();
+                        queue.put(record);
+                    }
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+                done.countDown();
+            }).start();
+        }
+        for (int c = 0; c < 2; c++) {
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < items / 2; i++) {
+                        queue.take(view -> {
+                            int seq = view.getInt(4);
+                            if (view.remaining() != 8 + seq % 32 || view.getInt(0) > 1) {
+                                errors.incrementAndGet();
+                            }
+                            return null;
+                        });
+                    }
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        if (errors.get() > 0) {
+            log.error("{} corrupted records", errors.get());
+        }
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+    }
+}
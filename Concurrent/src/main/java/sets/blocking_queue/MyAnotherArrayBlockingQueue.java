@@ -2,25 +2,77 @@ package sets.blocking_queue;
 
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
 
-public class MyAnotherArrayBlockingQueue<T> {
+/**
+ * 防止伪共享，填充的做法见ArrayQueuePad0
+ * | 对象头 | AnotherArrayQueuePad0 128字节 | AnotherArrayQueueFields | AnotherArrayQueuePad1 128字节 | lock、notFull、notEmpty |
+ * 构造时紧接着队列分配的就是ReentrantLock内部的AQS对象，争抢锁的线程不停地CAS它的state；
+ * 持有锁的线程则不停地写head、tail、size。不隔开的话，它们很可能落在同一个缓存行中
+ * head、tail、size只由持有锁的线程读写，彼此之间不需要隔开；lock等字段放在最后，和AQS的state挨在一起反而正好，取锁时本来就要访问那一行
+ */
+abstract class AnotherArrayQueuePad0 {
+    byte p000, p001, p002, p003, p004, p005, p006, p007, p008, p009, p010, p011, p012, p013, p014, p015;
+    byte p016, p017, p018, p019, p020, p021, p022, p023, p024, p025, p026, p027, p028, p029, p030, p031;
+    byte p032, p033, p034, p035, p036, p037, p038, p039, p040, p041, p042, p043, p044, p045, p046, p047;
+    byte p048, p049, p050, p051, p052, p053, p054, p055, p056, p057, p058, p059, p060, p061, p062, p063;
+    byte p064, p065, p066, p067, p068, p069, p070, p071, p072, p073, p074, p075, p076, p077, p078, p079;
+    byte p080, p081, p082, p083, p084, p085, p086, p087, p088, p089, p090, p091, p092, p093, p094, p095;
+    byte p096, p097, p098, p099, p100, p101, p102, p103, p104, p105, p106, p107, p108, p109, p110, p111;
+    byte p112, p113, p114, p115, p116, p117, p118, p119, p120, p121, p122, p123, p124, p125, p126, p127;
+}
+
+/**
+ * 只在持有lock时访问的字段，放在同一个缓存行中
+ */
+abstract class AnotherArrayQueueFields<T> extends AnotherArrayQueuePad0 {
+    final T[] items;
+    int head = 0;
+    int tail = 0;
+    int size = 0;
+    final int capacity;
+
+    @SuppressWarnings("unchecked")
+    AnotherArrayQueueFields(int capacity) {
+        this.capacity = capacity;
+        items = (T[]) new Object[capacity];
+    }
+}
+
+abstract class AnotherArrayQueuePad1<T> extends AnotherArrayQueueFields<T> {
+    byte p128, p129, p130, p131, p132, p133, p134, p135, p136, p137, p138, p139, p140, p141, p142, p143;
+    byte p144, p145, p146, p147, p148, p149, p150, p151, p152, p153, p154, p155, p156, p157, p158, p159;
+    byte p160, p161, p162, p163, p164, p165, p166, p167, p168, p169, p170, p171, p172, p173, p174, p175;
+    byte p176, p177, p178, p179, p180, p181, p182, p183, p184, p185, p186, p187, p188, p189, p190, p191;
+    byte p192, p193, p194, p195, p196, p197, p198, p199, p200, p201, p202, p203, p204, p205, p206, p207;
+    byte p208, p209, p210, p211, p212, p213, p214, p215, p216, p217, p218, p219, p220, p221, p222, p223;
+    byte p224, p225, p226, p227, p228, p229, p230, p231, p232, p233, p234, p235, p236, p237, p238, p239;
+    byte p240, p241, p242, p243, p244, p245, p246, p247, p248, p249, p250, p251, p252, p253, p254, p255;
+
+    AnotherArrayQueuePad1(int capacity) {
+        super(capacity);
+    }
+}
 
-    private final T[] items;
-    private int head = 0;
-    private int tail = 0;
-    private int size = 0;
-    private final int capacity;
+/**
+ * 字段的布局见AnotherArrayQueuePad0
+ */
+public class MyAnotherArrayBlockingQueue<T> extends AnotherArrayQueuePad1<T> {
 
     private final ReentrantLock lock = new ReentrantLock();
     private final Condition notFull = lock.newCondition(); // 等待非满
     private final Condition notEmpty = lock.newCondition(); // 等待非空
 
-    @SuppressWarnings("unchecked")
     public MyAnotherArrayBlockingQueue(int capacity) {
-        this.capacity = capacity;
-        items = (T[]) new Object[capacity];
+        super(capacity);
     }
 
     public void put(T t) throws InterruptedException {
@@ -61,6 +113,138 @@ public class MyAnotherArrayBlockingQueue<T> {
             lock.unlock();
         }
     }
+
+    /**
+     * 批量操作：一次加锁搬运一批元素，环形数组中的元素最多分成两段，每段一次System.arraycopy
+     * 腾出（放入）了n个位置就最多唤醒n个等待者，多出来的等待者醒来也只会发现没有位置，再睡回去
+     */
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 最多取出maxElements个元素，不阻塞
+     * 元素在锁外才加入c，c.addAll抛出异常时这一批元素会丢失
+     * @return 取出的元素个数
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (maxElements <= 0) {
+            return 0;
+        }
+
+        Object[] batch;
+        lock.lock();
+        try {
+            int n = Math.min(maxElements, size);
+            if (n == 0) {
+                return 0;
+            }
+            batch = new Object[n];
+            copyOut(batch, n);
+            signal(notFull, n);
+        } finally {
+            lock.unlock();
+        }
+        c.addAll((List<T>) Arrays.asList(batch));
+        return batch.length;
+    }
+
+    /**
+     * 放入尽可能多的元素，不阻塞
+     * @return 放入的元素个数，即c的前几个元素
+     */
+    public int offerAll(Collection<? extends T> c) {
+        Object[] batch = MyArrayBlockingQueue.toArrayNonNull(c); // 在锁外复制
+        lock.lock();
+        try {
+            int n = Math.min(batch.length, capacity - size);
+            if (n > 0) {
+                copyIn(batch, 0, n);
+                signal(notEmpty, n);
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按顺序放入c的全部元素，队列满时最多等待timeout；每次有空位时一次放入尽可能多的元素
+     * 已经放入了一部分元素之后被中断，不抛出InterruptedException，而是恢复中断标志并返回已放入的个数，
+     * 否则调用者不知道c的哪些元素已经进了队列
+     * @return 放入的元素个数，超时或被中断时小于c.size()
+     * @throws InterruptedException 一个元素都还没有放入时被中断
+     */
+    public int putAll(Collection<? extends T> c, long timeout, TimeUnit unit) throws InterruptedException {
+        Object[] batch = MyArrayBlockingQueue.toArrayNonNull(c);
+        long nanos = unit.toNanos(timeout);
+        int done = 0;
+        lock.lockInterruptibly();
+        try {
+            while (done < batch.length) {
+                int n = Math.min(batch.length - done, capacity - size);
+                if (n > 0) {
+                    copyIn(batch, done, n);
+                    done += n;
+                    signal(notEmpty, n);
+                    continue;
+                }
+
+                if (nanos <= 0) {
+                    break;
+                }
+                try {
+                    nanos = notFull.awaitNanos(nanos);
+                } catch (InterruptedException e) {
+                    if (done == 0) {
+                        throw e;
+                    }
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return done;
+    }
+
+    /**
+     * 持有锁时调用：最多唤醒n个等待者，条件队列空了就停下
+     */
+    private void signal(Condition condition, int n) {
+        for (int i = 0; i < n && lock.hasWaiters(condition); i++) {
+            condition.signal();
+        }
+    }
+
+    /**
+     * 持有锁时调用：从head开始取出n个元素放到dst
+     */
+    private void copyOut(Object[] dst, int n) {
+        int first = Math.min(n, capacity - head); // 第一段：head到数组末尾
+        System.arraycopy(items, head, dst, 0, first);
+        System.arraycopy(items, 0, dst, first, n - first); // 第二段：绕回数组开头
+        Arrays.fill(items, head, head + first, null);
+        Arrays.fill(items, 0, n - first, null);
+        head = (head + n) % capacity;
+        size -= n;
+    }
+
+    /**
+     * 持有锁时调用：把src[from, from + n)放到tail开始的位置
+     */
+    private void copyIn(Object[] src, int from, int n) {
+        int first = Math.min(n, capacity - tail);
+        System.arraycopy(src, from, items, tail, first);
+        System.arraycopy(src, from + first, items, 0, n - first);
+        tail = (tail + n) % capacity;
+        size += n;
+    }
 }
 
 @Slf4j
@@ -97,3 +281,146 @@ class TestMyAnotherArrayBlockingQueue {
     }
 }
 
+
+/**
+ * 批量消费：逐个put/take对比putAll/drainTo，一个生产者一个消费者，检查元素按顺序到达
+ * 加锁次数按调用次数统计：put/take每个元素加锁一次，putAll/drainTo每批加锁一次（putAll等待空位时会多几次）
+ */
+@Slf4j
+class TestBatchBlockingQueue {
+    private static final int ITEMS = 1 << 20;
+    private static final int CAPACITY = 1024;
+    private static final int BATCH = 64;
+
+    interface PutAll {
+        int putAll(List<Integer> batch, long timeout, TimeUnit unit) throws InterruptedException;
+    }
+
+    interface DrainTo {
+        int drainTo(List<Integer> batch, int max);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        MyArrayBlockingQueue<Integer> timed = new MyArrayBlockingQueue<>(8);
+        MyAnotherArrayBlockingQueue<Integer> anotherTimed = new MyAnotherArrayBlockingQueue<>(8);
+        List<Integer> twenty = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            twenty.add(i);
+        }
+        log.info("putAll of 20 into capacity 8 without consumers, 50ms timeout: MyArrayBlockingQueue={}, MyAnotherArrayBlockingQueue={}",
+                timed.putAll(twenty, 50, TimeUnit.MILLISECONDS), anotherTimed.putAll(twenty, 50, TimeUnit.MILLISECONDS));
+
+        // 放进去一部分之后被中断：返回已放入的个数并保留中断标志，而不是抛出异常、丢掉这个数字
+        MyArrayBlockingQueue<Integer> interrupted = new MyArrayBlockingQueue<>(8);
+        MyAnotherArrayBlockingQueue<Integer> anotherInterrupted = new MyAnotherArrayBlockingQueue<>(8);
+        log.info("putAll of 20 into capacity 8, interrupted after 50ms: MyArrayBlockingQueue={}, MyAnotherArrayBlockingQueue={}",
+                putAllInterrupted(interrupted::putAll, twenty), putAllInterrupted(anotherInterrupted::putAll, twenty));
+
+        List<Integer> withNull = Arrays.asList(1, null, 3);
+        log.info("offerAll with a null element: MyArrayBlockingQueue {}, MyAnotherArrayBlockingQueue {}",
+                offerAllOutcome(() -> timed.offerAll(withNull)), offerAllOutcome(() -> anotherTimed.offerAll(withNull)));
+
+        for (int round = 0; round < 2; round++) {
+            MyArrayBlockingQueue<Integer> a = new MyArrayBlockingQueue<>(CAPACITY);
+            MyAnotherArrayBlockingQueue<Integer> b = new MyAnotherArrayBlockingQueue<>(CAPACITY);
+            QueueHarness.Queue qa = QueueHarness.of(a::put, a::take);
+            QueueHarness.Queue qb = QueueHarness.of(b::put, b::take);
+            run(round == 1, "MyArrayBlockingQueue", qa, a::putAll, a::drainTo, false);
+            run(round == 1, "MyArrayBlockingQueue", qa, a::putAll, a::drainTo, true);
+            run(round == 1, "MyAnotherArrayBlockingQueue", qb, b::putAll, b::drainTo, false);
+            run(round == 1, "MyAnotherArrayBlockingQueue", qb, b::putAll, b::drainTo, true);
+        }
+    }
+
+    /**
+     * 在另一个线程中putAll，50ms后中断它
+     * @return 返回值和返回后的中断标志，或者抛出的异常
+     */
+    private static String putAllInterrupted(PutAll queue, List<Integer> batch) throws InterruptedException {
+        String[] outcome = new String[1];
+        Thread t = new Thread(() -> {
+            try {
+                int n = queue.putAll(batch, 1, TimeUnit.MINUTES);
+                outcome[0] = "returned " + n + " (interrupted=" + Thread.currentThread().isInterrupted() + ")";
+            } catch (InterruptedException e) {
+                outcome[0] = "threw InterruptedException";
+            }
+        });
+        t.start();
+        Thread.sleep(50);
+        t.interrupt();
+        t.join();
+        return outcome[0];
+    }
+
+    private static String offerAllOutcome(IntSupplier offerAll) {
+        try {
+            return "accepted " + offerAll.getAsInt();
+        } catch (NullPointerException e) {
+            return "threw NullPointerException";
+        }
+    }
+
+    private static void run(boolean report, String name, QueueHarness.Queue queue, PutAll putAll, DrainTo drainTo,
+                            boolean batched) throws InterruptedException {
+        long[] consumerCalls = new long[1];
+        CountDownLatch done = new CountDownLatch(2);
+        long start = System.nanoTime();
+        new Thread(() -> {
+            try {
+                if (batched) {
+                    List<Integer> batch = new ArrayList<>(BATCH);
+                    for (int i = 0; i < ITEMS; i += BATCH) {
+                        batch.clear();
+                        for (int j = i; j < i + BATCH; j++) {
+                            batch.add(j);
+                        }
+                        putAll.putAll(batch, 1, TimeUnit.MINUTES);
+                    }
+                } else {
+                    for (int i = 0; i < ITEMS; i++) {
+                        queue.put(i);
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.error(e.getMessage());
+            }
+            done.countDown();
+        }).start();
+        new Thread(() -> {
+            try {
+                int expected = 0;
+                List<Integer> batch = new ArrayList<>(BATCH);
+                while (expected < ITEMS) {
+                    consumerCalls[0]++;
+                    if (batched) {
+                        batch.clear();
+                        if (drainTo.drainTo(batch, BATCH) == 0) {
+                            batch.add(queue.take()); // 队列为空时阻塞等待第一个元素
+                        }
+                    } else {
+                        batch.clear();
+                        batch.add(queue.take());
+                    }
+                    for (int item : batch) {
+                        if (item != expected++) {
+                            log.error("Expected {} but took {}", expected - 1, item);
+                            expected = ITEMS;
+                            break;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.error(e.getMessage());
+            }
+            done.countDown();
+        }).start();
+        done.await();
+        long millis = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+        if (report) {
+            log.info("{} {}: {} ops/ms, consumer lock acquisitions per element: {}",
+                    name, batched ? "putAll/drainTo" : "put/take", ITEMS / millis,
+                    String.format("%.3f", (double) consumerCalls[0] / ITEMS));
+        }
+    }
+}
@@ -1,19 +1,164 @@
 package sets.blocking_queue;
 
 import lombok.extern.slf4j.Slf4j;
+import sets.thread_pool.MyThreadPoolExecutor;
 
-public class MyArrayBlockingQueue<T> {
-    private final T[] items;
-    private int head = 0;
-    private int tail = 0;
-    private int size = 0;
-    private final int capacity;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 防止伪共享的填充：本包中的队列和MySemaphore都用这一种做法，理由只写在这里
+ * - 字段分布在一串父类中，JVM总是先排父类的字段，子类的字段不会被挪到父类的字段之间；同一个类里的字段则可以任意重排，无法保证彼此间隔
+ * - 每段填充128字节而不是64字节，相邻缓存行预取也不会把两边拉到一起
+ * - 填充用byte而不是long：对象头之后有4字节的空隙，JVM会用子类中较小的字段填补父类留下的空隙，byte填充不留空隙
+ *
+ * 本类的布局：| 对象头 | ArrayQueuePad0 128字节 | ArrayQueueFields | ArrayQueuePad1 128字节 | MyArrayBlockingQueue的字段 |
+ * 对象头中的mark word就是synchronized(this)的锁，每个争抢锁的线程都要读写它；持有锁的线程则不停地写head、tail、size
+ * 如果它们在同一个缓存行中，两边每次操作都会让对方的缓存行失效。head、tail、size只由持有锁的线程读写，彼此之间不需要隔开
+ */
+abstract class ArrayQueuePad0<T> extends AbstractQueue<T> {
+    byte p000, p001, p002, p003, p004, p005, p006, p007, p008, p009, p010, p011, p012, p013, p014, p015;
+    byte p016, p017, p018, p019, p020, p021, p022, p023, p024, p025, p026, p027, p028, p029, p030, p031;
+    byte p032, p033, p034, p035, p036, p037, p038, p039, p040, p041, p042, p043, p044, p045, p046, p047;
+    byte p048, p049, p050, p051, p052, p053, p054, p055, p056, p057, p058, p059, p060, p061, p062, p063;
+    byte p064, p065, p066, p067, p068, p069, p070, p071, p072, p073, p074, p075, p076, p077, p078, p079;
+    byte p080, p081, p082, p083, p084, p085, p086, p087, p088, p089, p090, p091, p092, p093, p094, p095;
+    byte p096, p097, p098, p099, p100, p101, p102, p103, p104, p105, p106, p107, p108, p109, p110, p111;
+    byte p112, p113, p114, p115, p116, p117, p118, p119, p120, p121, p122, p123, p124, p125, p126, p127;
+}
+
+/**
+ * 只在持有this时访问的字段，放在同一个缓存行中
+ */
+abstract class ArrayQueueFields<T> extends ArrayQueuePad0<T> {
+    final T[] items;
+    int head = 0;
+    int tail = 0;
+    int size = 0;
+    final int capacity;
 
     @SuppressWarnings("unchecked")
-    public MyArrayBlockingQueue(int capacity) {
+    ArrayQueueFields(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than zero.");
+        }
+
         this.capacity = capacity;
         items = (T[]) new Object[capacity]; // 循环数组
     }
+}
+
+/**
+ * 和之后的字段以及堆中紧随其后的对象隔开
+ */
+abstract class ArrayQueuePad1<T> extends ArrayQueueFields<T> {
+    byte p128, p129, p130, p131, p132, p133, p134, p135, p136, p137, p138, p139, p140, p141, p142, p143;
+    byte p144, p145, p146, p147, p148, p149, p150, p151, p152, p153, p154, p155, p156, p157, p158, p159;
+    byte p160, p161, p162, p163, p164, p165, p166, p167, p168, p169, p170, p171, p172, p173, p174, p175;
+    byte p176, p177, p178, p179, p180, p181, p182, p183, p184, p185, p186, p187, p188, p189, p190, p191;
+    byte p192, p193, p194, p195, p196, p197, p198, p199, p200, p201, p202, p203, p204, p205, p206, p207;
+    byte p208, p209, p210, p211, p212, p213, p214, p215, p216, p217, p218, p219, p220, p221, p222, p223;
+    byte p224, p225, p226, p227, p228, p229, p230, p231, p232, p233, p234, p235, p236, p237, p238, p239;
+    byte p240, p241, p242, p243, p244, p245, p246, p247, p248, p249, p250, p251, p252, p253, p254, p255;
+
+    ArrayQueuePad1(int capacity) {
+        super(capacity);
+    }
+}
+
+/**
+ * synchronized实现的有界阻塞队列
+ * 一个监视器只有一个等待集合，如果生产者和消费者都在this上wait，每次只能notifyAll：所有等待的线程都被唤醒，
+ * 其中大多数醒来后发现条件仍不满足，又回去等待（惊群）
+ * 这里使用"精确通知"（specific notification）：每个需要等待的线程排队一个自己的Waiter，
+ * 生产者排在notFullWaiters中，消费者排在notEmptyWaiters中，每放入（取出）一个元素只唤醒对方队列中的第一个
+ * 队列的状态仍然由this保护；等待之前先离开this，再park
+ * 唤醒分两步：持有this时把等待者从等待集合中取出，离开this之后再unpark它；
+ * 如果在this内唤醒，被唤醒的线程马上又会阻塞在this上，每次交接都多一次上下文切换
+ * 被唤醒但还没有回到this重新检查的等待者记为woken：只有可用的元素（空位）多于woken时才去唤醒新的等待者，
+ * 否则生产者连续放入时会把消费者一个个全部唤醒，而它们大多只是醒来看一眼
+ * 单核上排队之前先Thread.yield()一次再检查：被唤醒的线程常常抢占唤醒它的线程，拿走一个元素就又去排队，
+ * 让出一次CPU，对端往往就能连续放入（取出）一批，省掉大部分park/unpark；
+ * 多核上对端本来就在同时运行，yield只是每次阻塞的put/take多一次系统调用，不做（同其他队列只在多核上自旋）
+ * 实现了BlockingQueue，可以作为MyThreadPoolExecutor的taskQueue
+ * @param <T> 元素类型
+ */
+public class MyArrayBlockingQueue<T> extends ArrayQueuePad1<T> implements BlockingQueue<T> {
+
+    // 排队等待之前是否先让出一次CPU，见类注释
+    private static final boolean YIELD_BEFORE_WAIT = Runtime.getRuntime().availableProcessors() == 1;
+
+    // 两个等待集合，只在持有this时访问
+    private final WaitSet notFullWaiters = new WaitSet(); // 等待非满的生产者
+    private final WaitSet notEmptyWaiters = new WaitSet(); // 等待非空的消费者
+
+    /**
+     * 每次等待新建一个：被取出的等待者可能在被唤醒之前就已经超时返回，迟到的唤醒只会设置这个已经没用的对象
+     * 迟到的unpark留下的许可最多让线程下一次park提前返回一次，await会重新检查notified
+     */
+    private static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        volatile boolean notified;
+    }
+
+    /**
+     * 一侧的等待者，只在持有this时访问
+     */
+    private static final class WaitSet {
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        int woken = 0; // 已经取出、还没有回到this重新检查的等待者
+
+        Waiter add() {
+            Waiter w = new Waiter();
+            waiters.addLast(w);
+            return w;
+        }
+
+        /**
+         * @param available 当前可用的元素或空位
+         * @return 需要在离开this之后唤醒的等待者，没有则返回null
+         */
+        Waiter signal(int available) {
+            if (available <= woken) {
+                return null; // 已经唤醒的等待者足够用了
+            }
+            Waiter w = waiters.pollFirst();
+            if (w != null) {
+                woken++;
+            }
+            return w;
+        }
+
+        /**
+         * 批量操作：按排队顺序取出最多available - woken个等待者
+         */
+        Waiter[] signalAll(int available) {
+            int n = Math.min(available - woken, waiters.size());
+            if (n <= 0) {
+                return null;
+            }
+
+            Waiter[] polled = new Waiter[n];
+            for (int i = 0; i < n; i++) {
+                polled[i] = waiters.pollFirst();
+            }
+            woken += n;
+            return polled;
+        }
+    }
+
+    public MyArrayBlockingQueue(int capacity) {
+        super(capacity);
+    }
 
     /**
      * 第一组：put & take
@@ -21,64 +166,199 @@ public class MyArrayBlockingQueue<T> {
      * @param t 入队/出队的元素
      * @throws InterruptedException 中断异常
      */
-    public synchronized void put(T t) throws InterruptedException {
-        while (size == capacity) {
-            // 队列满，等待写入
-            wait();
+    @Override
+    public void put(T t) throws InterruptedException {
+        doPut(t, false, 0L);
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        return doTake(false, 0L);
+    }
+
+    /**
+     * 限时的put & take：最多等待timeout
+     * @return 超时返回false或空
+     */
+    @Override
+    public boolean offer(T t, long timeout, TimeUnit unit) throws InterruptedException {
+        return doPut(t, true, unit.toNanos(timeout));
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return doTake(true, unit.toNanos(timeout));
+    }
+
+    private boolean doPut(T t, boolean timed, long nanos) throws InterruptedException {
+        if (t == null) {
+            throw new NullPointerException();
         }
 
-        items[tail] = t;
-        if (++tail == capacity) {
-            tail = 0;
-        } // 等价于 tail = (tail + 1) % capacity
-        size++;
+        long deadline = System.nanoTime() + nanos;
+        boolean woken = false;
+        boolean yielded = !YIELD_BEFORE_WAIT;
+        for (;;) {
+            Waiter w;
+            Waiter consumer;
+            boolean yieldFirst = false;
+            synchronized (this) {
+                if (woken) {
+                    notFullWaiters.woken--; // 回到this，不再算作已唤醒
+                }
+                if (size < capacity) {
+                    enqueue(t);
+                    // 取出一个在take()中等待的线程，离开this之后再唤醒
+                    consumer = notEmptyWaiters.signal(size);
+                    w = null;
+                } else {
+                    if (timed && nanos <= 0) {
+                        return false;
+                    }
+                    // 队列满，排队等待写入
+                    // 排队之前先让出一次CPU再检查一次，见类注释；让出CPU必须在离开this之后，否则其他线程照样进不来
+                    yieldFirst = !yielded;
+                    yielded = true;
+                    w = yieldFirst ? null : notFullWaiters.add();
+                    consumer = null;
+                }
+            }
+            if (yieldFirst) {
+                Thread.yield();
+                continue;
+            }
+            if (w == null) {
+                wake(consumer);
+                return true;
+            }
+            woken = await(w, notFullWaiters, timed, deadline);
+            nanos = deadline - System.nanoTime();
+        }
+    }
 
-        // 唤醒在take()中等待的线程
-        notifyAll();
+    private T doTake(boolean timed, long nanos) throws InterruptedException {
+        long deadline = System.nanoTime() + nanos;
+        boolean woken = false;
+        boolean yielded = !YIELD_BEFORE_WAIT;
+        for (;;) {
+            Waiter w;
+            Waiter producer;
+            T t;
+            boolean yieldFirst = false;
+            synchronized (this) {
+                if (woken) {
+                    notEmptyWaiters.woken--;
+                }
+                if (size > 0) {
+                    t = dequeue();
+                    // 取出一个在put()中等待的线程，离开this之后再唤醒
+                    producer = notFullWaiters.signal(capacity - size);
+                    w = null;
+                } else {
+                    if (timed && nanos <= 0) {
+                        return null;
+                    }
+                    // 队列空，排队等待读取
+                    yieldFirst = !yielded;
+                    yielded = true;
+                    w = yieldFirst ? null : notEmptyWaiters.add();
+                    producer = null;
+                    t = null;
+                }
+            }
+            if (yieldFirst) {
+                Thread.yield();
+                continue;
+            }
+            if (w == null) {
+                wake(producer);
+                return t;
+            }
+            woken = await(w, notEmptyWaiters, timed, deadline);
+            nanos = deadline - System.nanoTime();
+        }
     }
 
-    public synchronized T take() throws InterruptedException {
-        while (size == 0) {
-            // 队列空，等待读取
-            wait();
+    /**
+     * 在已经离开this之后调用：park等待，直到被唤醒、超时或被中断
+     * 被唤醒后并不直接拿到元素或空位，而是回到调用者的循环中重新检查，期间可能被其他线程抢先，那就再排一次队
+     * @return 是否被唤醒；返回true时调用者下次进入this要把自己从waiters.woken中减掉
+     */
+    private boolean await(Waiter w, WaitSet waiters, boolean timed, long deadline) throws InterruptedException {
+        while (!w.notified) {
+            if (Thread.interrupted()) {
+                cancel(w, waiters);
+                throw new InterruptedException();
+            }
+            if (!timed) {
+                LockSupport.park(this);
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                cancel(w, waiters);
+                return false;
+            }
+            LockSupport.parkNanos(this, remaining);
         }
+        return true;
+    }
 
-        T t = items[head];
-        if (++head == capacity) {
-            head = 0;
-        } // 等价于 head = (head + 1) % capacity
-        size--;
+    /**
+     * 超时或被中断时把自己从等待集合中移除
+     * 如果已经不在集合中，说明有线程取出了自己、唤醒正在路上，要把这次唤醒转交给下一个等待者，否则这次唤醒就丢失了；
+     * 没有下一个等待者时，这次唤醒作废，woken减一
+     */
+    private void cancel(Waiter w, WaitSet waiters) {
+        Waiter next = null;
+        synchronized (this) {
+            if (!waiters.waiters.remove(w)) {
+                next = waiters.waiters.pollFirst();
+                if (next == null) {
+                    waiters.woken--;
+                }
+            }
+        }
+        wake(next);
+    }
 
-        // 唤醒在put()中等待的线程
-        notifyAll();
-        return t;
+    /**
+     * 在this之外调用
+     */
+    private static void wake(Waiter w) {
+        if (w != null) {
+            w.notified = true;
+            LockSupport.unpark(w.thread);
+        }
+    }
+
+    private static void wakeAll(Waiter[] waiters) {
+        if (waiters != null) {
+            for (Waiter w : waiters) {
+                wake(w);
+            }
+        }
     }
 
     /**
      * 第二组：add & remove
      * 抛出异常
      * @param t 入队/出队的元素
-     * @throws InterruptedException 中断异常
      */
-    public synchronized void add(T t) throws InterruptedException {
-        if (size == capacity) {
+    @Override
+    public boolean add(T t) {
+        if (!offer(t)) {
             throw new IllegalStateException("Queue full");
         }
-
-        items[tail] = t;
-        tail = (tail + 1) % capacity;
-        size++;
+        return true;
     }
 
-    public synchronized T remove() throws InterruptedException {
-        if (size == 0) {
-            throw new IllegalStateException("Queue empty");
+    @Override
+    public T remove() {
+        T t = poll();
+        if (t == null) {
+            throw new NoSuchElementException("Queue empty");
         }
-
-        T t = items[head];
-        items[head] = null;
-        head = (head + 1) % capacity;
-        size--;
         return t;
     }
 
@@ -87,30 +367,328 @@ public class MyArrayBlockingQueue<T> {
      * 失败，返回false或空
      * @param t 入队/出队的元素
      * @return false或空
-     * @throws InterruptedException 中断异常
      */
-    public synchronized boolean offer(T t) throws InterruptedException {
-        if (size == capacity) {
+    @Override
+    public boolean offer(T t) {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+
+        Waiter consumer;
+        synchronized (this) {
+            if (size == capacity) {
+                return false;
+            }
+            enqueue(t);
+            consumer = notEmptyWaiters.signal(size);
+        }
+        wake(consumer);
+        return true;
+    }
+
+    @Override
+    public T poll() {
+        T t;
+        Waiter producer;
+        synchronized (this) {
+            if (size == 0) {
+                return null;
+            }
+            t = dequeue();
+            producer = notFullWaiters.signal(capacity - size);
+        }
+        wake(producer);
+        return t;
+    }
+
+    @Override
+    public synchronized T peek() {
+        return size == 0 ? null : items[head];
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int remainingCapacity() {
+        return capacity - size;
+    }
+
+    /**
+     * 删除队列中第一个与o相等的元素，之后的元素依次前移
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
             return false;
         }
 
-        items[tail] = t;
-        tail = (tail + 1) % capacity;
-        size++;
+        Waiter producer;
+        synchronized (this) {
+            int index = indexOf(o);
+            if (index < 0) {
+                return false;
+            }
+            removeAt(index);
+            producer = notFullWaiters.signal(capacity - size);
+        }
+        wake(producer);
         return true;
     }
 
-    public synchronized T poll() throws InterruptedException {
-        if (size == 0) {
-            return null;
+    @Override
+    public synchronized Object[] toArray() {
+        Object[] a = new Object[size];
+        copyTo(a, size);
+        return a;
+    }
+
+    /**
+     * 迭代器基于调用时的快照，不会抛出ConcurrentModificationException；remove删除的是队列中第一个相等的元素
+     */
+    @Override
+    public Iterator<T> iterator() {
+        Object[] snapshot = toArray();
+        return new Iterator<>() {
+            private int cursor = 0;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < snapshot.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (cursor >= snapshot.length) {
+                    throw new NoSuchElementException();
+                }
+                last = cursor++;
+                return (T) snapshot[last];
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                MyArrayBlockingQueue.this.remove(snapshot[last]);
+                last = -1;
+            }
+        };
+    }
+
+    /**
+     * 第四组：批量操作
+     * 一次加锁搬运一批元素，环形数组中的元素最多分成两段，每段一次System.arraycopy；整批只加锁一次，
+     * 搬运了n个元素就唤醒对方最多n个等待者
+     */
+    @Override
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 最多取出maxElements个元素，不阻塞
+     * 元素在锁外才加入c，c.addAll抛出异常时这一批元素会丢失
+     * @return 取出的元素个数
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        if (maxElements <= 0) {
+            return 0;
+        }
+
+        Object[] batch;
+        Waiter[] producers;
+        synchronized (this) {
+            int n = Math.min(maxElements, size);
+            if (n == 0) {
+                return 0;
+            }
+            batch = new Object[n];
+            copyOut(batch, n);
+            producers = notFullWaiters.signalAll(capacity - size);
+        }
+        wakeAll(producers);
+        c.addAll((List<T>) Arrays.asList(batch));
+        return batch.length;
+    }
+
+    /**
+     * 放入尽可能多的元素，不阻塞
+     * @return 放入的元素个数，即c的前几个元素
+     */
+    public int offerAll(Collection<? extends T> c) {
+        Object[] batch = toArrayNonNull(c); // 在锁外复制
+        int n;
+        Waiter[] consumers;
+        synchronized (this) {
+            n = Math.min(batch.length, capacity - size);
+            if (n == 0) {
+                return 0;
+            }
+            copyIn(batch, 0, n);
+            consumers = notEmptyWaiters.signalAll(size);
+        }
+        wakeAll(consumers);
+        return n;
+    }
+
+    /**
+     * 按顺序放入c的全部元素，队列满时最多等待timeout；每次有空位时一次放入尽可能多的元素
+     * 已经放入了一部分元素之后被中断，不抛出InterruptedException，而是恢复中断标志并返回已放入的个数，
+     * 否则调用者不知道c的哪些元素已经进了队列
+     * @return 放入的元素个数，超时或被中断时小于c.size()
+     * @throws InterruptedException 一个元素都还没有放入时被中断
+     */
+    public int putAll(Collection<? extends T> c, long timeout, TimeUnit unit) throws InterruptedException {
+        Object[] batch = toArrayNonNull(c);
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        int done = 0;
+        boolean woken = false;
+        while (done < batch.length) {
+            Waiter w = null;
+            Waiter[] consumers = null;
+            synchronized (this) {
+                if (woken) {
+                    notFullWaiters.woken--;
+                    woken = false;
+                }
+                int n = Math.min(batch.length - done, capacity - size);
+                if (n > 0) {
+                    copyIn(batch, done, n);
+                    done += n;
+                    consumers = notEmptyWaiters.signalAll(size);
+                } else if (nanos > 0) {
+                    w = notFullWaiters.add();
+                } else {
+                    break;
+                }
+            }
+            if (w == null) {
+                wakeAll(consumers);
+            } else {
+                try {
+                    woken = await(w, notFullWaiters, true, deadline);
+                } catch (InterruptedException e) {
+                    if (done == 0) {
+                        throw e;
+                    }
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                nanos = deadline - System.nanoTime();
+            }
+        }
+        return done;
+    }
+
+    /**
+     * 批量放入前在锁外复制并检查元素：null会被take当成“没有元素”，MyAnotherArrayBlockingQueue的批量操作也用它
+     */
+    static Object[] toArrayNonNull(Collection<?> c) {
+        Object[] a = c.toArray();
+        for (Object o : a) {
+            if (o == null) {
+                throw new NullPointerException();
+            }
         }
+        return a;
+    }
 
+    /**
+     * 以下方法都只在持有this时调用
+     */
+    private void enqueue(T t) {
+        items[tail] = t;
+        if (++tail == capacity) {
+            tail = 0;
+        } // 等价于 tail = (tail + 1) % capacity
+        size++;
+    }
+
+    private T dequeue() {
         T t = items[head];
         items[head] = null;
-        head = (head + 1) % capacity;
+        if (++head == capacity) {
+            head = 0;
+        } // 等价于 head = (head + 1) % capacity
         size--;
         return t;
     }
+
+    private int indexOf(Object o) {
+        for (int i = 0, index = head; i < size; i++) {
+            if (o.equals(items[index])) {
+                return index;
+            }
+            if (++index == capacity) {
+                index = 0;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 删除index处的元素，之后的元素依次前移
+     */
+    private void removeAt(int index) {
+        for (;;) {
+            int next = index + 1 == capacity ? 0 : index + 1;
+            if (next == tail) {
+                break;
+            }
+            items[index] = items[next];
+            index = next;
+        }
+        items[index] = null;
+        tail = index;
+        size--;
+    }
+
+    /**
+     * 从head开始复制n个元素到dst，不修改队列
+     */
+    private void copyTo(Object[] dst, int n) {
+        int first = Math.min(n, capacity - head); // 第一段：head到数组末尾
+        System.arraycopy(items, head, dst, 0, first);
+        System.arraycopy(items, 0, dst, first, n - first); // 第二段：绕回数组开头
+    }
+
+    /**
+     * 从head开始取出n个元素放到dst
+     */
+    private void copyOut(Object[] dst, int n) {
+        copyTo(dst, n);
+        int first = Math.min(n, capacity - head);
+        Arrays.fill(items, head, head + first, null);
+        Arrays.fill(items, 0, n - first, null);
+        head = (head + n) % capacity;
+        size -= n;
+    }
+
+    /**
+     * 把src[from, from + n)放到tail开始的位置
+     */
+    private void copyIn(Object[] src, int from, int n) {
+        int first = Math.min(n, capacity - tail);
+        System.arraycopy(src, from, items, tail, first);
+        System.arraycopy(src, from + first, items, 0, n - first);
+        tail = (tail + n) % capacity;
+        size += n;
+    }
 }
 
 @Slf4j
@@ -149,3 +727,92 @@ class TestMyArrayBlockingQueue {
         consumer.start();
     }
 }
+
+/**
+ * 惊群对比：一个生产者对32个消费者，以及32个生产者对一个消费者，共用一个容量为4的队列
+ * 多的一端大部分时间都在等待，notifyAll每次都会把它们全部唤醒
+ * NotifyAllQueue是改造之前的实现（所有线程在this上wait，每次操作notifyAll），顺带统计每个元素引起的唤醒次数
+ * 之后检查限时的offer/poll，以及作为MyThreadPoolExecutor的taskQueue时，非核心线程能在keepAliveTime之后被回收
+ */
+@Slf4j
+class TestMyArrayBlockingQueueWakeups {
+    private static final int THREADS = 32;
+    private static final int[][] RATIOS = {{1, THREADS}, {THREADS, 1}};
+    private static final int ITEMS = 1 << 18;
+    private static final int CAPACITY = 4;
+
+    static class NotifyAllQueue {
+        private final Integer[] items = new Integer[CAPACITY];
+        private int head = 0;
+        private int tail = 0;
+        private int size = 0;
+        final LongAdder wakeups = new LongAdder();
+
+        synchronized void put(Integer t) throws InterruptedException {
+            while (size == CAPACITY) {
+                wait();
+                wakeups.increment();
+            }
+            items[tail] = t;
+            tail = (tail + 1) % CAPACITY;
+            size++;
+            notifyAll();
+        }
+
+        synchronized Integer take() throws InterruptedException {
+            while (size == 0) {
+                wait();
+                wakeups.increment();
+            }
+            Integer t = items[head];
+            head = (head + 1) % CAPACITY;
+            size--;
+            notifyAll();
+            return t;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int round = 0; round < 2; round++) {
+            for (int[] ratio : RATIOS) {
+                NotifyAllQueue a = new NotifyAllQueue();
+                MyArrayBlockingQueue<Integer> b = new MyArrayBlockingQueue<>(CAPACITY);
+                long ta = QueueHarness.run(ratio[0], ratio[1], ITEMS, QueueHarness.of(a::put, a::take));
+                long tb = QueueHarness.run(ratio[0], ratio[1], ITEMS, QueueHarness.of(b::put, b::take));
+                if (round == 1) {
+                    log.info("{}P/{}C, capacity {}: notifyAll {} ops/ms ({} wake-ups per element), specific notification {} ops/ms",
+                            ratio[0], ratio[1], CAPACITY, ITEMS / ta,
+                            String.format("%.2f", (double) a.wakeups.sum() / ITEMS), ITEMS / tb);
+                }
+            }
+        }
+
+        MyArrayBlockingQueue<Integer> queue = new MyArrayBlockingQueue<>(1);
+        long start = System.nanoTime();
+        Integer polled = queue.poll(50, TimeUnit.MILLISECONDS);
+        boolean first = queue.offer(1, 50, TimeUnit.MILLISECONDS);
+        boolean second = queue.offer(2, 50, TimeUnit.MILLISECONDS);
+        log.info("Timed poll on empty: {}, offer on empty: {}, offer on full: {}, {} ms for the two timeouts",
+                polled, first, second, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                1, 4, 100, TimeUnit.MILLISECONDS,
+                new MyArrayBlockingQueue<>(16),
+                new MyThreadPoolExecutor.CallerRunsPolicy());
+        LongAdder ran = new LongAdder();
+        for (int i = 0; i < 1000; i++) {
+            pool.execute(() -> {
+                ran.increment();
+                LockSupport.parkNanos(10_000);
+            });
+        }
+        while (ran.sum() < 1000) {
+            Thread.sleep(1);
+        }
+        int peak = pool.getPoolSize();
+        Thread.sleep(500);
+        log.info("Pool on MyArrayBlockingQueue: ran {}, pool size {} -> {} after keepAlive", ran.sum(), peak, pool.getPoolSize());
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.SECONDS);
+    }
+}
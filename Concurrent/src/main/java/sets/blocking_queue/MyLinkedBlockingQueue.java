@@ -0,0 +1,265 @@
+package sets.blocking_queue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 双锁链表阻塞队列（Michael & Scott的two-lock queue）
+ * 入队只操作队尾last，出队只操作队头head，两端各用一把锁：putLock和takeLock
+ * 生产者之间互斥，消费者之间互斥，但生产者和消费者互不阻塞
+ * 两端共享的只有元素数量count，用AtomicInteger维护
+ *
+ * 级联唤醒：每一端只唤醒同一端的一个等待者，被唤醒的线程操作完成后如果发现还有剩余（空位或元素），再唤醒下一个
+ * 只有在队列从空变为非空（或从满变为非满）时，才需要去拿另一端的锁来通知另一端
+ * @param <T> 元素类型
+ */
+public class MyLinkedBlockingQueue<T> {
+
+    private static final class Node<T> {
+        T item;
+        Node<T> next;
+
+        Node(T item) {
+            this.item = item;
+        }
+    }
+
+    private final int capacity;
+    private final AtomicInteger count = new AtomicInteger();
+
+    // head是一个哨兵节点，head.item始终为null，第一个元素是head.next
+    // 队列为空时head == last，两端操作的永远是不同的节点
+    private Node<T> head;
+    private Node<T> last;
+
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private final Condition notEmpty = takeLock.newCondition(); // 等待非空
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition(); // 等待非满
+
+    public MyLinkedBlockingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public MyLinkedBlockingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than zero.");
+        }
+
+        this.capacity = capacity;
+        this.head = this.last = new Node<>(null);
+    }
+
+    /**
+     * 第一组：put & take
+     * 阻塞
+     */
+    public void put(T t) throws InterruptedException {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+
+        Node<T> node = new Node<>(t); // 在锁外分配
+        int c;
+        putLock.lockInterruptibly();
+        try {
+            while (count.get() == capacity) {
+                notFull.await();
+            }
+            enqueue(node);
+            c = count.getAndIncrement();
+            if (c + 1 < capacity) {
+                notFull.signal(); // 级联：还有空位，唤醒下一个生产者
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty(); // 队列从空变为非空
+        }
+    }
+
+    public T take() throws InterruptedException {
+        T t;
+        int c;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                notEmpty.await();
+            }
+            t = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1) {
+                notEmpty.signal(); // 级联：还有元素，唤醒下一个消费者
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity) {
+            signalNotFull(); // 队列从满变为非满
+        }
+        return t;
+    }
+
+    /**
+     * 第二组：add & remove
+     * 抛出异常
+     */
+    public void add(T t) {
+        if (!offer(t)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    public T remove() {
+        T t = poll();
+        if (t == null) {
+            throw new IllegalStateException("Queue empty");
+        }
+        return t;
+    }
+
+    /**
+     * 第三组：offer & poll
+     * 失败，返回false或空
+     */
+    public boolean offer(T t) {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+        if (count.get() == capacity) {
+            return false; // 不加锁的快速判断
+        }
+
+        Node<T> node = new Node<>(t);
+        int c;
+        putLock.lock();
+        try {
+            if (count.get() == capacity) {
+                return false;
+            }
+            enqueue(node);
+            c = count.getAndIncrement();
+            if (c + 1 < capacity) {
+                notFull.signal();
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
+        }
+        return true;
+    }
+
+    public T poll() {
+        if (count.get() == 0) {
+            return null;
+        }
+
+        T t;
+        int c;
+        takeLock.lock();
+        try {
+            if (count.get() == 0) {
+                return null;
+            }
+            t = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity) {
+            signalNotFull();
+        }
+        return t;
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    /**
+     * 持有putLock时调用
+     */
+    private void enqueue(Node<T> node) {
+        last = last.next = node;
+    }
+
+    /**
+     * 持有takeLock时调用：原来的第一个元素节点成为新的哨兵
+     */
+    private T dequeue() {
+        Node<T> h = head;
+        Node<T> first = h.next;
+        h.next = h; // 旧哨兵指向自己，帮助GC，也避免跨代引用
+        head = first;
+        T t = first.item;
+        first.item = null;
+        return t;
+    }
+
+    private void signalNotEmpty() {
+        takeLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    private void signalNotFull() {
+        putLock.lock();
+        try {
+            notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+    }
+}
+
+/**
+ * 不同生产者/消费者比例下的吞吐量对比：两种数组队列、MPMC环形队列、双锁链表队列，以及LinkedBlockingQueue
+ * 每种比例下都传递相同数量的元素，元素总数能被生产者数和消费者数整除
+ */
+@Slf4j
+class TestMyLinkedBlockingQueue {
+    private static final int ITEMS = 1_200_000;
+    private static final int CAPACITY = 1024;
+    private static final int[][] RATIOS = {{1, 1}, {1, 4}, {4, 1}, {4, 4}, {2, 6}, {6, 2}};
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int round = 0; round < 2; round++) {
+            for (int[] ratio : RATIOS) {
+                int producers = ratio[0];
+                int consumers = ratio[1];
+                MyArrayBlockingQueue<Integer> a = new MyArrayBlockingQueue<>(CAPACITY);
+                MyAnotherArrayBlockingQueue<Integer> b = new MyAnotherArrayBlockingQueue<>(CAPACITY);
+                MyMpmcRingBlockingQueue<Integer> c = new MyMpmcRingBlockingQueue<>(CAPACITY);
+                MyLinkedBlockingQueue<Integer> d = new MyLinkedBlockingQueue<>(CAPACITY);
+                LinkedBlockingQueue<Integer> e = new LinkedBlockingQueue<>(CAPACITY);
+                long ta = QueueHarness.run(producers, consumers, ITEMS, QueueHarness.of(a::put, a::take));
+                long tb = QueueHarness.run(producers, consumers, ITEMS, QueueHarness.of(b::put, b::take));
+                long tc = QueueHarness.run(producers, consumers, ITEMS, QueueHarness.of(c::put, c::take));
+                long td = QueueHarness.run(producers, consumers, ITEMS, QueueHarness.of(d::put, d::take));
+                long te = QueueHarness.run(producers, consumers, ITEMS, QueueHarness.of(e::put, e::take));
+                if (round == 1) {
+                    log.info("{}P/{}C ops/ms: MyArrayBlockingQueue={}, MyAnotherArrayBlockingQueue={}, "
+                                    + "MyMpmcRingBlockingQueue={}, MyLinkedBlockingQueue={}, LinkedBlockingQueue={}",
+                            producers, consumers, ITEMS / ta, ITEMS / tb, ITEMS / tc, ITEMS / td, ITEMS / te);
+                }
+            }
+        }
+    }
+}
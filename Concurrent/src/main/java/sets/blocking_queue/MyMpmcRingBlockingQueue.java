@@ -0,0 +1,376 @@
+package sets.blocking_queue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 防止伪共享：生产者不停地CAS enqueuePos，消费者不停地CAS dequeuePos，每次offer/poll还要读另一端的等待者数量
+ * 四者如果在同一个缓存行中，生产者和消费者即使操作的是不同的槽位，每次CAS也都会让对方的缓存行失效
+ * 所以把两个位置分别放在128字节的填充之间，只读的字段（items、sequences、mask）和等待者数量放在最后的子类中
+ * | 对象头 | MpmcRingPad0 | enqueuePos | MpmcRingPad1 | dequeuePos | MpmcRingPad2 | MyMpmcRingBlockingQueue的字段 |
+ * 填充的做法见ArrayQueuePad0
+ */
+abstract class MpmcRingPad0 {
+    byte p000, p001, p002, p003, p004, p005, p006, p007, p008, p009, p010, p011, p012, p013, p014, p015;
+    byte p016, p017, p018, p019, p020, p021, p022, p023, p024, p025, p026, p027, p028, p029, p030, p031;
+    byte p032, p033, p034, p035, p036, p037, p038, p039, p040, p041, p042, p043, p044, p045, p046, p047;
+    byte p048, p049, p050, p051, p052, p053, p054, p055, p056, p057, p058, p059, p060, p061, p062, p063;
+    byte p064, p065, p066, p067, p068, p069, p070, p071, p072, p073, p074, p075, p076, p077, p078, p079;
+    byte p080, p081, p082, p083, p084, p085, p086, p087, p088, p089, p090, p091, p092, p093, p094, p095;
+    byte p096, p097, p098, p099, p100, p101, p102, p103, p104, p105, p106, p107, p108, p109, p110, p111;
+    byte p112, p113, p114, p115, p116, p117, p118, p119, p120, p121, p122, p123, p124, p125, p126, p127;
+}
+
+abstract class MpmcRingEnqueuePos extends MpmcRingPad0 {
+    volatile long enqueuePos = 0; // 下一个要写入的位置，生产者CAS推进
+}
+
+abstract class MpmcRingPad1 extends MpmcRingEnqueuePos {
+    byte p128, p129, p130, p131, p132, p133, p134, p135, p136, p137, p138, p139, p140, p141, p142, p143;
+    byte p144, p145, p146, p147, p148, p149, p150, p151, p152, p153, p154, p155, p156, p157, p158, p159;
+    byte p160, p161, p162, p163, p164, p165, p166, p167, p168, p169, p170, p171, p172, p173, p174, p175;
+    byte p176, p177, p178, p179, p180, p181, p182, p183, p184, p185, p186, p187, p188, p189, p190, p191;
+    byte p192, p193, p194, p195, p196, p197, p198, p199, p200, p201, p202, p203, p204, p205, p206, p207;
+    byte p208, p209, p210, p211, p212, p213, p214, p215, p216, p217, p218, p219, p220, p221, p222, p223;
+    byte p224, p225, p226, p227, p228, p229, p230, p231, p232, p233, p234, p235, p236, p237, p238, p239;
+    byte p240, p241, p242, p243, p244, p245, p246, p247, p248, p249, p250, p251, p252, p253, p254, p255;
+}
+
+abstract class MpmcRingDequeuePos extends MpmcRingPad1 {
+    volatile long dequeuePos = 0; // 下一个要读出的位置，消费者CAS推进
+}
+
+abstract class MpmcRingPad2 extends MpmcRingDequeuePos {
+    byte p256, p257, p258, p259, p260, p261, p262, p263, p264, p265, p266, p267, p268, p269, p270, p271;
+    byte p272, p273, p274, p275, p276, p277, p278, p279, p280, p281, p282, p283, p284, p285, p286, p287;
+    byte p288, p289, p290, p291, p292, p293, p294, p295, p296, p297, p298, p299, p300, p301, p302, p303;
+    byte p304, p305, p306, p307, p308, p309, p310, p311, p312, p313, p314, p315, p316, p317, p318, p319;
+    byte p320, p321, p322, p323, p324, p325, p326, p327, p328, p329, p330, p331, p332, p333, p334, p335;
+    byte p336, p337, p338, p339, p340, p341, p342, p343, p344, p345, p346, p347, p348, p349, p350, p351;
+    byte p352, p353, p354, p355, p356, p357, p358, p359, p360, p361, p362, p363, p364, p365, p366, p367;
+    byte p368, p369, p370, p371, p372, p373, p374, p375, p376, p377, p378, p379, p380, p381, p382, p383;
+}
+
+/**
+ * 无锁的多生产者多消费者环形队列（Dmitry Vyukov的有界MPMC队列）
+ * 每个槽位有一个序号sequence：
+ * - sequence == pos：槽位空闲，可以写入第pos个元素
+ * - sequence == pos + 1：第pos个元素已经写好，可以读出
+ * - 读出后把sequence设为pos + capacity，也就是下一圈写入时的pos
+ * 生产者之间只竞争enqueuePos，消费者之间只竞争dequeuePos，生产者和消费者之间只通过各自槽位的序号同步，
+ * 不需要任何锁，也不需要像MyArrayBlockingQueue那样维护一个共享的size
+ * 容量向上取整为2的幂，用pos & mask代替pos % capacity
+ *
+ * put/take保留阻塞语义：先无锁地尝试，自旋一会儿仍然失败才加锁park
+ * 只有确实有线程在等待时，另一端才会去加锁signal，无人等待时完全不碰锁
+ * @param <T> 元素类型
+ */
+public class MyMpmcRingBlockingQueue<T> extends MpmcRingPad2 {
+
+    // park之前的自旋次数；单核上自旋时另一端不可能同时运行，只是白白浪费时间片
+    private static final int SPIN_TRIES = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 7 : 0;
+
+    private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle ENQUEUE_POS;
+    private static final VarHandle DEQUEUE_POS;
+
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            ENQUEUE_POS = l.findVarHandle(MpmcRingEnqueuePos.class, "enqueuePos", long.class);
+            DEQUEUE_POS = l.findVarHandle(MpmcRingDequeuePos.class, "dequeuePos", long.class);
+        } catch (IllegalAccessException | NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final Object[] items;
+    private final long[] sequences;
+    private final int mask;
+
+    // 阻塞等待只在队列满或空时使用
+    // 等待者数量只在持有对应的锁时修改，另一端无锁地读取，为0时不需要加锁signal
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private final Condition notEmpty = takeLock.newCondition();
+    private volatile int takeWaiters = 0;
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition();
+    private volatile int putWaiters = 0;
+
+    public MyMpmcRingBlockingQueue(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be in (0, 2^30].");
+        }
+
+        int size = capacity == 1 ? 2 : Integer.highestOneBit(capacity - 1) << 1; // 向上取整为2的幂
+        this.items = new Object[size];
+        this.sequences = new long[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences[i] = i;
+        }
+    }
+
+    /**
+     * 第一组：put & take
+     * 阻塞
+     */
+    public void put(T t) throws InterruptedException {
+        if (offer(t)) {
+            return;
+        }
+        for (int i = 0; i < SPIN_TRIES; i++) {
+            Thread.onSpinWait();
+            if (offer(t)) {
+                return;
+            }
+        }
+
+        putLock.lockInterruptibly();
+        try {
+            // 先登记为等待者，再重新尝试：消费者腾出槽位后一定能看到登记，或者这里一定能看到空出的槽位
+            putWaiters++;
+            while (!tryOffer(t)) {
+                notFull.await();
+            }
+        } finally {
+            putWaiters--;
+            putLock.unlock();
+        }
+        // 释放putLock之后再去拿takeLock，两把锁永远不会被同一个线程同时持有，不会死锁
+        if (takeWaiters > 0) {
+            signalNotEmpty();
+        }
+    }
+
+    public T take() throws InterruptedException {
+        T t = poll();
+        if (t != null) {
+            return t;
+        }
+        for (int i = 0; i < SPIN_TRIES; i++) {
+            Thread.onSpinWait();
+            if ((t = poll()) != null) {
+                return t;
+            }
+        }
+
+        takeLock.lockInterruptibly();
+        try {
+            takeWaiters++;
+            while ((t = tryPoll()) == null) {
+                notEmpty.await();
+            }
+        } finally {
+            takeWaiters--;
+            takeLock.unlock();
+        }
+        if (putWaiters > 0) {
+            signalNotFull();
+        }
+        return t;
+    }
+
+    /**
+     * 第二组：add & remove
+     * 抛出异常
+     */
+    public void add(T t) {
+        if (!offer(t)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    public T remove() {
+        T t = poll();
+        if (t == null) {
+            throw new IllegalStateException("Queue empty");
+        }
+        return t;
+    }
+
+    /**
+     * 第三组：offer & poll
+     * 失败，返回false或空；不阻塞，也不加锁
+     */
+    public boolean offer(T t) {
+        if (!tryOffer(t)) {
+            return false;
+        }
+        // tryOffer中的volatile写保证这里读takeWaiters不会被重排到发布元素之前
+        if (takeWaiters > 0) {
+            signalNotEmpty();
+        }
+        return true;
+    }
+
+    public T poll() {
+        T t = tryPoll();
+        if (t != null && putWaiters > 0) {
+            signalNotFull();
+        }
+        return t;
+    }
+
+    /**
+     * 无锁入队，不唤醒等待者
+     */
+    private boolean tryOffer(T t) {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+
+        long pos = enqueuePos;
+        for (;;) {
+            int index = (int) (pos & mask);
+            long seq = (long) SEQUENCES.getVolatile(sequences, index);
+            long diff = seq - pos;
+            if (diff == 0) {
+                // 槽位空闲，抢占pos；失败说明被其他生产者抢走，重新读取enqueuePos
+                if (ENQUEUE_POS.weakCompareAndSet(this, pos, pos + 1)) {
+                    items[index] = t;
+                    SEQUENCES.setVolatile(sequences, index, pos + 1); // 发布元素
+                    return true;
+                }
+                pos = enqueuePos;
+            } else if (diff < 0) {
+                // 槽位上还是上一圈的元素，没有被消费：队列满
+                return false;
+            } else {
+                pos = enqueuePos; // 其他生产者已经推进了enqueuePos
+            }
+        }
+    }
+
+    /**
+     * 无锁出队，不唤醒等待者
+     */
+    @SuppressWarnings("unchecked")
+    private T tryPoll() {
+        long pos = dequeuePos;
+        for (;;) {
+            int index = (int) (pos & mask);
+            long seq = (long) SEQUENCES.getVolatile(sequences, index);
+            long diff = seq - (pos + 1);
+            if (diff == 0) {
+                if (DEQUEUE_POS.weakCompareAndSet(this, pos, pos + 1)) {
+                    T t = (T) items[index];
+                    items[index] = null;
+                    // 槽位留给下一圈的生产者
+                    SEQUENCES.setVolatile(sequences, index, pos + mask + 1);
+                    return t;
+                }
+                pos = dequeuePos;
+            } else if (diff < 0) {
+                // 第pos个元素还没有写好：队列空
+                return null;
+            } else {
+                pos = dequeuePos;
+            }
+        }
+    }
+
+    /**
+     * 并发修改时只是一个近似值
+     */
+    public int size() {
+        long size = enqueuePos - dequeuePos;
+        return Math.clamp(size, 0, items.length);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    private void signalNotEmpty() {
+        takeLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    private void signalNotFull() {
+        putLock.lock();
+        try {
+            notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+    }
+}
+
+/**
+ * 相同数量的生产者和消费者，用put/take传递固定数量的元素，比较四种队列的吞吐量
+ * 再用一个容量很小的队列验证阻塞路径：生产者远多于容量时不会丢元素、不会卡死
+ */
+@Slf4j
+class TestMyMpmcRingBlockingQueue {
+    private static final int ITEMS = 2_000_000;
+    private static final int CAPACITY = 1024;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int round = 0; round < 2; round++) {
+            for (int pairs : new int[]{1, 2, 4}) {
+                MyArrayBlockingQueue<Integer> a = new MyArrayBlockingQueue<>(CAPACITY);
+                MyAnotherArrayBlockingQueue<Integer> b = new MyAnotherArrayBlockingQueue<>(CAPACITY);
+                MyMpmcRingBlockingQueue<Integer> c = new MyMpmcRingBlockingQueue<>(CAPACITY);
+                ArrayBlockingQueue<Integer> d = new ArrayBlockingQueue<>(CAPACITY);
+                long ta = QueueHarness.run(pairs, pairs, ITEMS, QueueHarness.of(a::put, a::take));
+                long tb = QueueHarness.run(pairs, pairs, ITEMS, QueueHarness.of(b::put, b::take));
+                long tc = QueueHarness.run(pairs, pairs, ITEMS, QueueHarness.of(c::put, c::take));
+                long td = QueueHarness.run(pairs, pairs, ITEMS, QueueHarness.of(d::put, d::take));
+                if (round == 1) {
+                    log.info("{}P/{}C ops/ms: MyArrayBlockingQueue={}, MyAnotherArrayBlockingQueue={}, "
+                                    + "MyMpmcRingBlockingQueue={}, ArrayBlockingQueue={}",
+                            pairs, pairs, ITEMS / ta, ITEMS / tb, ITEMS / tc, ITEMS / td);
+                }
+            }
+        }
+
+        // 容量为2，16个生产者、16个消费者，几乎每次put/take都要走阻塞路径
+        MyMpmcRingBlockingQueue<Integer> small = new MyMpmcRingBlockingQueue<>(2);
+        LongAdder sum = new LongAdder();
+        int perThread = 10_000;
+        CountDownLatch done = new CountDownLatch(32);
+        for (int i = 0; i < 16; i++) {
+            new Thread(() -> {
+                try {
+                    for (int j = 1; j <= perThread; j++) {
+                        small.put(j);
+                    }
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+                done.countDown();
+            }).start();
+            new Thread(() -> {
+                try {
+                    for (int j = 0; j < perThread; j++) {
+                        sum.add(small.take());
+                    }
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+                done.countDown();
+            }).start();
+        }
+        boolean finished = done.await(30, TimeUnit.SECONDS);
+        long expected = 16L * perThread * (perThread + 1) / 2;
+        log.info("Blocking path: finished={}, sum={}, expected={}, remaining={}",
+                finished, sum.sum(), expected, small.size());
+    }
+}
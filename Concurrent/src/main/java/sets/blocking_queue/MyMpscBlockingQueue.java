@@ -0,0 +1,313 @@
+package sets.blocking_queue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 防止伪共享：生产者不停地CAS tail，消费者不停地写head，两端的字段放在128字节的填充之间
+ * | 对象头 | MpscPad0 | tail、producerLimit | MpscPad1 | head | MpscPad2 | MyMpscBlockingQueue的字段 |
+ * 填充的做法见ArrayQueuePad0
+ */
+abstract class MpscPad0 {
+    byte p000, p001, p002, p003, p004, p005, p006, p007, p008, p009, p010, p011, p012, p013, p014, p015;
+    byte p016, p017, p018, p019, p020, p021, p022, p023, p024, p025, p026, p027, p028, p029, p030, p031;
+    byte p032, p033, p034, p035, p036, p037, p038, p039, p040, p041, p042, p043, p044, p045, p046, p047;
+    byte p048, p049, p050, p051, p052, p053, p054, p055, p056, p057, p058, p059, p060, p061, p062, p063;
+    byte p064, p065, p066, p067, p068, p069, p070, p071, p072, p073, p074, p075, p076, p077, p078, p079;
+    byte p080, p081, p082, p083, p084, p085, p086, p087, p088, p089, p090, p091, p092, p093, p094, p095;
+    byte p096, p097, p098, p099, p100, p101, p102, p103, p104, p105, p106, p107, p108, p109, p110, p111;
+    byte p112, p113, p114, p115, p116, p117, p118, p119, p120, p121, p122, p123, p124, p125, p126, p127;
+}
+
+abstract class MpscTail extends MpscPad0 {
+    volatile long tail = 0; // 下一个要写入的位置，生产者CAS推进
+    long producerLimit; // 生产者缓存的head + capacity
+}
+
+abstract class MpscPad1 extends MpscTail {
+    byte p128, p129, p130, p131, p132, p133, p134, p135, p136, p137, p138, p139, p140, p141, p142, p143;
+    byte p144, p145, p146, p147, p148, p149, p150, p151, p152, p153, p154, p155, p156, p157, p158, p159;
+    byte p160, p161, p162, p163, p164, p165, p166, p167, p168, p169, p170, p171, p172, p173, p174, p175;
+    byte p176, p177, p178, p179, p180, p181, p182, p183, p184, p185, p186, p187, p188, p189, p190, p191;
+    byte p192, p193, p194, p195, p196, p197, p198, p199, p200, p201, p202, p203, p204, p205, p206, p207;
+    byte p208, p209, p210, p211, p212, p213, p214, p215, p216, p217, p218, p219, p220, p221, p222, p223;
+    byte p224, p225, p226, p227, p228, p229, p230, p231, p232, p233, p234, p235, p236, p237, p238, p239;
+    byte p240, p241, p242, p243, p244, p245, p246, p247, p248, p249, p250, p251, p252, p253, p254, p255;
+}
+
+abstract class MpscHead extends MpscPad1 {
+    long head = 0; // 下一个要读出的位置，只有消费者写
+}
+
+abstract class MpscPad2 extends MpscHead {
+    byte p256, p257, p258, p259, p260, p261, p262, p263, p264, p265, p266, p267, p268, p269, p270, p271;
+    byte p272, p273, p274, p275, p276, p277, p278, p279, p280, p281, p282, p283, p284, p285, p286, p287;
+    byte p288, p289, p290, p291, p292, p293, p294, p295, p296, p297, p298, p299, p300, p301, p302, p303;
+    byte p304, p305, p306, p307, p308, p309, p310, p311, p312, p313, p314, p315, p316, p317, p318, p319;
+    byte p320, p321, p322, p323, p324, p325, p326, p327, p328, p329, p330, p331, p332, p333, p334, p335;
+    byte p336, p337, p338, p339, p340, p341, p342, p343, p344, p345, p346, p347, p348, p349, p350, p351;
+    byte p352, p353, p354, p355, p356, p357, p358, p359, p360, p361, p362, p363, p364, p365, p366, p367;
+    byte p368, p369, p370, p371, p372, p373, p374, p375, p376, p377, p378, p379, p380, p381, p382, p383;
+}
+
+/**
+ * 多生产者单消费者（MPSC）有界环形队列
+ * 生产者之间用CAS争抢tail，抢到位置后再用release写把元素放进槽位；槽位为null表示还没有写好
+ * 消费者只有一个，推进head不需要CAS，清空槽位后用release写（lazySet）推进head即可
+ * 生产者共享一份缓存的上限producerLimit = head + capacity，只有tail追上它时才去读消费者的head，
+ * 大多数offer只访问生产者这一端的缓存行
+ *
+ * 字段的布局见MpscPad0
+ *
+ * offer/poll是非阻塞操作，不会唤醒阻塞在put/take上的线程；put/take是阻塞操作，同一个队列上请成对使用
+ * 队列只允许一个消费者线程，违反时不会报错，但结果不可预测
+ * @param <T> 元素类型
+ */
+public class MyMpscBlockingQueue<T> extends MpscPad2 {
+
+    // park之前的自旋次数；单核上自旋时另一端不可能同时运行，只是白白浪费时间片
+    private static final int SPIN_TRIES = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 7 : 0;
+
+    private static final VarHandle ITEMS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle TAIL;
+    private static final VarHandle PRODUCER_LIMIT;
+    private static final VarHandle HEAD;
+    private static final VarHandle CONSUMER_WAITER;
+
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            TAIL = l.findVarHandle(MpscTail.class, "tail", long.class);
+            PRODUCER_LIMIT = l.findVarHandle(MpscTail.class, "producerLimit", long.class);
+            HEAD = l.findVarHandle(MpscHead.class, "head", long.class);
+            CONSUMER_WAITER = l.findVarHandle(MyMpscBlockingQueue.class, "consumerWaiter", Thread.class);
+        } catch (IllegalAccessException | NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final Object[] items;
+    private final int mask;
+
+    // 阻塞在take上的消费者，最多一个
+    private volatile Thread consumerWaiter;
+    // 阻塞在put上的生产者可能有多个，和MyMpmcRingBlockingQueue一样用锁和条件队列，只有确实有人等待时消费者才去加锁signal
+    // 和MyLinkedBlockingQueue一样级联唤醒：消费者只唤醒一个，被唤醒的生产者发现还有空位时再唤醒下一个
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition();
+    private volatile int putWaiters = 0;
+
+    public MyMpscBlockingQueue(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be in (0, 2^30].");
+        }
+
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1; // 向上取整为2的幂
+        this.items = new Object[size];
+        this.mask = size - 1;
+        producerLimit = size;
+    }
+
+    /**
+     * 第一组：put & take
+     * 阻塞
+     */
+    public void put(T t) throws InterruptedException {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+
+        boolean offered = offer(t);
+        for (int i = 0; !offered && i < SPIN_TRIES; i++) {
+            Thread.onSpinWait();
+            offered = offer(t);
+        }
+        if (!offered) {
+            putLock.lockInterruptibly();
+            try {
+                // 先登记再复查：消费者推进head之后一定能看到登记，或者这里一定能看到新的head
+                putWaiters++;
+                VarHandle.fullFence();
+                while (!offer(t)) {
+                    notFull.await();
+                }
+                if (putWaiters > 1 && size() < items.length) {
+                    notFull.signal(); // 级联：还有空位，唤醒下一个等待的生产者
+                }
+            } finally {
+                putWaiters--;
+                putLock.unlock();
+            }
+        }
+        VarHandle.fullFence(); // 元素的release写必须先于读取consumerWaiter
+        unpark(CONSUMER_WAITER);
+    }
+
+    public T take() throws InterruptedException {
+        T t;
+        int spins = 0;
+        while ((t = poll()) == null) {
+            if (spins++ < SPIN_TRIES) {
+                Thread.onSpinWait();
+                continue;
+            }
+            consumerWaiter = Thread.currentThread();
+            VarHandle.fullFence();
+            if (isEmpty()) {
+                LockSupport.park(this);
+            }
+            consumerWaiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        VarHandle.fullFence();
+        // 只在队列从满变为非满时唤醒一个生产者，其余的由被唤醒的生产者级联唤醒
+        if (putWaiters > 0 && size() == items.length - 1) {
+            signalNotFull();
+        }
+        return t;
+    }
+
+    /**
+     * 第二组：add & remove
+     * 抛出异常
+     */
+    public void add(T t) {
+        if (!offer(t)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    public T remove() {
+        T t = poll();
+        if (t == null) {
+            throw new IllegalStateException("Queue empty");
+        }
+        return t;
+    }
+
+    /**
+     * 第三组：offer & poll
+     * 失败，返回false或空
+     * offer可以由任意线程调用
+     */
+    public boolean offer(T t) {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+
+        long limit = (long) PRODUCER_LIMIT.getAcquire(this);
+        long tail;
+        do {
+            tail = this.tail;
+            if (tail >= limit) {
+                limit = (long) HEAD.getAcquire(this) + items.length;
+                if (tail >= limit) {
+                    return false;
+                }
+                // 多个生产者可能以任意顺序写回，但每个值都不会超过真实的上限，写回旧值只会让之后多读一次head
+                PRODUCER_LIMIT.setRelease(this, limit);
+            }
+        } while (!TAIL.compareAndSet(this, tail, tail + 1));
+
+        ITEMS.setRelease(items, (int) tail & mask, t);
+        return true;
+    }
+
+    /**
+     * 只能由消费者线程调用
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long head = this.head; // 只有自己写head，普通读即可
+        int i = (int) head & mask;
+        Object t = ITEMS.getAcquire(items, i);
+        if (t == null) {
+            if (head == tail) {
+                return null;
+            }
+            // 某个生产者已经抢到了这个位置，但还没有写入元素，等它写完；先自旋，单核上则直接让出CPU
+            for (int spins = 0; (t = ITEMS.getAcquire(items, i)) == null; spins++) {
+                if (spins < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+        items[i] = null;
+        HEAD.setRelease(this, head + 1); // lazySet：生产者看到新的head之后才会覆盖这个槽位
+        return (T) t;
+    }
+
+    /**
+     * 任意线程都可以调用，结果只是一个瞬间的近似值；包含已经抢到位置但还没有写入的元素
+     */
+    public int size() {
+        long head = (long) HEAD.getVolatile(this);
+        long tail = this.tail;
+        return (int) Math.max(0, Math.min(tail - head, items.length));
+    }
+
+    public boolean isEmpty() {
+        return tail == (long) HEAD.getVolatile(this);
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    /**
+     * 由唤醒的一方把等待者清掉：对端被唤醒之后、真正运行之前，后续的操作不会再重复unpark它
+     */
+    private void unpark(VarHandle waiterHandle) {
+        Thread waiter = (Thread) waiterHandle.getVolatile(this);
+        if (waiter != null && waiterHandle.compareAndSet(this, waiter, null)) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    private void signalNotFull() {
+        putLock.lock();
+        try {
+            notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+    }
+}
+
+/**
+ * 多个生产者一个消费者：MyMpscBlockingQueue对比MyAnotherArrayBlockingQueue和MyMpmcRingBlockingQueue
+ * 每个生产者写入的元素编码了生产者编号和序号，消费者检查同一个生产者的元素按顺序到达、总数不多不少
+ */
+@Slf4j
+class TestMyMpscBlockingQueue {
+    private static final int ITEMS = 1_000_000;
+    private static final int[] PRODUCERS = {1, 4};
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int capacity : new int[]{1024, 2}) {
+            for (int producers : PRODUCERS) {
+                for (int round = 0; round < 2; round++) {
+                    MyMpscBlockingQueue<Integer> a = new MyMpscBlockingQueue<>(capacity);
+                    MyAnotherArrayBlockingQueue<Integer> b = new MyAnotherArrayBlockingQueue<>(capacity);
+                    MyMpmcRingBlockingQueue<Integer> c = new MyMpmcRingBlockingQueue<>(capacity);
+                    long ta = QueueHarness.run(producers, 1, ITEMS, QueueHarness.of(a::put, a::take));
+                    long tb = QueueHarness.run(producers, 1, ITEMS, QueueHarness.of(b::put, b::take));
+                    long tc = QueueHarness.run(producers, 1, ITEMS, QueueHarness.of(c::put, c::take));
+                    if (round == 1) {
+                        log.info("capacity {}, {}P/1C ops/ms: MyMpscBlockingQueue={}, MyAnotherArrayBlockingQueue={}, MyMpmcRingBlockingQueue={}",
+                                capacity, producers, ITEMS / ta, ITEMS / tb, ITEMS / tc);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package sets.blocking_queue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各个队列的Test类共用的吞吐量测量
+ * 队列之间只有put/take是共同的，有的实现了BlockingQueue，有的没有，统一用方法引用适配成Queue：
+ * <pre>
+ * QueueHarness.Queue queue = QueueHarness.of(q::put, q::take);
+ * long millis = QueueHarness.run(4, 1, ITEMS, queue);
+ * </pre>
+ */
+@Slf4j
+final class QueueHarness {
+
+    private QueueHarness() { }
+
+    interface Put {
+        void put(Integer t) throws InterruptedException;
+    }
+
+    interface Take {
+        Integer take() throws InterruptedException;
+    }
+
+    interface Queue extends Put, Take { }
+
+    static Queue of(Put put, Take take) {
+        return new Queue() {
+            @Override
+            public void put(Integer t) throws InterruptedException {
+                put.put(t);
+            }
+
+            @Override
+            public Integer take() throws InterruptedException {
+                return take.take();
+            }
+        };
+    }
+
+    /**
+     * producers个线程各放入items / producers个元素，consumers个线程平分取出，items要能被producers和consumers整除
+     * 第p个生产者放入p * perProducer到(p + 1) * perProducer - 1；只有一个消费者时，顺带检查每个生产者的元素按顺序到达
+     * @return 从启动线程到全部完成的耗时，毫秒，至少为1
+     */
+    static long run(int producers, int consumers, int items, Queue queue) throws InterruptedException {
+        int perProducer = items / producers;
+        int perConsumer = items / consumers;
+        CountDownLatch done = new CountDownLatch(producers + consumers);
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int first = p * perProducer;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.put(first + i);
+                    }
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+                done.countDown();
+            }).start();
+        }
+        for (int c = 0; c < consumers; c++) {
+            new Thread(() -> {
+                int[] next = consumers == 1 ? new int[producers] : null;
+                try {
+                    for (int i = 0; i < perConsumer; i++) {
+                        int item = queue.take();
+                        if (next != null && item % perProducer != next[item / perProducer]++) {
+                            log.error("Producer {} out of order: took {}", item / perProducer, item);
+                            next = null;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+    }
+}
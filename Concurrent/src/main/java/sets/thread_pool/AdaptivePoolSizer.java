@@ -0,0 +1,284 @@
+package sets.thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 根据负载自动调整线程池的核心线程数
+ * 每隔一个采样周期读取一次metrics()，用两次快照之差估算这一周期的到达率和平均执行时间
+ * 利特尔法则：同时在忙的线程数 = 到达率 × 平均执行时间
+ * 再除以目标利用率留出余量，得到目标线程数；如果排队时间的p90超过了目标，说明估计偏低（突发、执行时间估计偏小），
+ * 在当前基础上至少再加一个线程
+ * 每次只向目标移动一半的距离，避免负载抖动时线程数来回振荡
+ * 关闭耗时统计（setTimingEnabled(false)）后拿不到执行时间，这期间不做调整
+ */
+@Slf4j
+public class AdaptivePoolSizer {
+
+    private static final double TARGET_UTILIZATION = 0.8;
+
+    private final MyThreadPoolExecutor pool;
+    private final int minCoreSize;
+    private final int maxCoreSize;
+    private final long intervalNanos; // 采样周期
+    private final long targetQueueWaitNanos; // 排队时间p90的目标值
+
+    private volatile Thread controller;
+    private ThreadPoolMetrics previous; // 只由controller线程访问
+    private long previousAt;
+    private boolean skipLogged; // 不做调整的原因只记录一次，恢复调整后重新记录
+
+    public AdaptivePoolSizer(MyThreadPoolExecutor pool,
+                             int minCoreSize,
+                             int maxCoreSize,
+                             long interval,
+                             long targetQueueWait,
+                             TimeUnit unit) {
+        if (minCoreSize < 0 || maxCoreSize < minCoreSize || maxCoreSize > pool.getMaximumPoolSize()
+                || interval <= 0 || targetQueueWait < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.pool = pool;
+        this.minCoreSize = minCoreSize;
+        this.maxCoreSize = maxCoreSize;
+        this.intervalNanos = unit.toNanos(interval);
+        this.targetQueueWaitNanos = unit.toNanos(targetQueueWait);
+    }
+
+    public synchronized void start() {
+        if (controller != null) {
+            throw new IllegalStateException("Already started");
+        }
+
+        Thread t = new Thread(this::loop, "adaptive-pool-sizer");
+        t.setDaemon(true);
+        controller = t;
+        t.start();
+    }
+
+    public synchronized void stop() {
+        Thread t = controller;
+        if (t != null) {
+            t.interrupt();
+            controller = null;
+        }
+    }
+
+    private void loop() {
+        while (!Thread.currentThread().isInterrupted() && !pool.isShutdown()) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+            // 任何一次调整失败（例如线程池的最大线程数被改得比minCoreSize还小）都不能让控制线程就此退出
+            try {
+                adjust();
+            } catch (RuntimeException e) {
+                log.warn("Pool size adjustment failed", e);
+            }
+        }
+    }
+
+    /**
+     * 一次采样和调整
+     */
+    private void adjust() {
+        ThreadPoolMetrics now = pool.metrics();
+        long at = System.nanoTime();
+        ThreadPoolMetrics prev = previous;
+        long prevAt = previousAt;
+        previous = now;
+        previousAt = at;
+        if (prev == null) {
+            return; // 第一次采样只作为基准
+        }
+
+        double seconds = (at - prevAt) / 1e9;
+        long completed = now.completedTasks() - prev.completedTasks();
+        // 到达 = 完成 + 拒绝 + 队列的增量
+        long arrived = completed
+                + (now.rejectedTasks() - prev.rejectedTasks())
+                + (now.queueDepth() - prev.queueDepth());
+        double arrivalRate = Math.max(arrived, 0) / seconds;
+        LatencyHistogram.Snapshot execution = now.execution().since(prev.execution());
+        LatencyHistogram.Snapshot queueWait = now.queueWait().since(prev.queueWait());
+
+        // 有任务完成却没有执行时间的样本：耗时统计被关闭了，平均执行时间读出来是0，按它算目标线程数会把线程数一路降到minCoreSize
+        // 真正空闲（没有任务完成）时照常调整，核心线程数随到达率降下来
+        if (!pool.isTimingEnabled() || (completed > 0 && execution.count() == 0)) {
+            if (!skipLogged) {
+                log.info("No execution time samples (timing disabled), core size stays at {}", pool.getCorePoolSize());
+                skipLogged = true;
+            }
+            return;
+        }
+        skipLogged = false;
+
+        int current = pool.getCorePoolSize();
+        double busy = arrivalRate * execution.mean() / 1e9;
+        int target = (int) Math.ceil(busy / TARGET_UTILIZATION);
+        if (queueWait.count() > 0 && queueWait.valueAtPercentile(90) > targetQueueWaitNanos) {
+            target = Math.max(target, current + 1);
+        }
+
+        // 阻尼：每次移动一半的距离，至少移动1
+        int step = (target - current) / 2;
+        if (step == 0) {
+            step = Integer.signum(target - current);
+        }
+        // 最大线程数可能在运行时被调小，每次都重新确定边界；比minCoreSize还小时以它为准
+        int upper = Math.min(maxCoreSize, pool.getMaximumPoolSize());
+        int next = Math.clamp(current + step, Math.min(minCoreSize, upper), upper);
+        if (next != current) {
+            log.info("Core size {} -> {} (arrival={}/s, mean service={}us, queue wait p90={}us)",
+                    current, next, (long) arrivalRate, (long) (execution.mean() / 1000),
+                    queueWait.valueAtPercentile(90) / 1000);
+            pool.setCorePoolSize(next);
+        }
+    }
+}
+
+/**
+ * 负载在低、高之间切换（相差10倍），观察核心线程数跟随变化
+ */
+@Slf4j
+class TestAdaptivePoolSizer {
+    public static void main(String[] args) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                1, 64, 200L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(pool, 1, 64, 200, 5, TimeUnit.MILLISECONDS);
+        sizer.start();
+
+        // 每个任务阻塞10ms（模拟I/O），低负载每秒100个，高负载每秒1000个
+        // 利特尔法则：分别需要约1个和10个线程
+        int[] ratesPerSecond = {100, 1000, 100, 1000};
+        for (int rate : ratesPerSecond) {
+            log.info("=== {} tasks/s ===", rate);
+            long phaseEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+            long intervalNanos = 1_000_000_000L / rate;
+            long next = System.nanoTime();
+            while (next < phaseEnd) {
+                pool.execute(() -> {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        log.error(e.getMessage());
+                    }
+                });
+                next += intervalNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            ThreadPoolMetrics metrics = pool.metrics();
+            log.info("End of phase: core={}, poolSize={}, queueDepth={}, queue wait {}",
+                    pool.getCorePoolSize(), metrics.poolSize(), metrics.queueDepth(), metrics.queueWait());
+        }
+
+        sizer.stop();
+        pool.shutdown();
+        pool.awaitTermination(3000, TimeUnit.MILLISECONDS);
+    }
+}
+
+/**
+ * minCoreSize为0：空闲时核心线程数降到0、所有线程超时退出，之后再提交的任务不能因为没有线程而卡在队列里
+ * 期望：空闲之后core=0、poolSize=0，随后提交的10个任务全部执行
+ */
+@Slf4j
+class TestAdaptivePoolSizerIdle {
+    private static final int TASKS = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                2, 4, 50L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(pool, 0, 4, 100, 5, TimeUnit.MILLISECONDS);
+        sizer.start();
+
+        Thread.sleep(1000);
+        log.info("After idling: core={}, poolSize={}", pool.getCorePoolSize(), pool.getPoolSize());
+
+        CountDownLatch done = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            pool.execute(done::countDown);
+        }
+        boolean allRan = done.await(3, TimeUnit.SECONDS);
+        log.info("Submitted after idling: ran {}/{}, allRan={}, poolSize={}",
+                TASKS - done.getCount(), TASKS, allRan, pool.getPoolSize());
+
+        sizer.stop();
+        pool.shutdown();
+        pool.awaitTermination(3000, TimeUnit.MILLISECONDS);
+    }
+}
+
+/**
+ * 1. 关闭耗时统计后持续加负载：以前平均执行时间读出来是0，核心线程数被一路降到minCoreSize
+ * 2. 运行时把最大线程数调到minCoreSize以下：以前Math.clamp抛出IllegalArgumentException，控制线程悄悄退出，
+ *    之后恢复最大线程数、打开耗时统计再加负载，核心线程数不再变化
+ * 期望：第一阶段core保持4，第二阶段不抛异常、core跟随最大线程数降到1，第三阶段控制线程仍在运行，core重新增长
+ */
+@Slf4j
+class TestAdaptivePoolSizerRobustness {
+    public static void main(String[] args) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                4, 4, 200L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(pool, 2, 4, 100, 5, TimeUnit.MILLISECONDS);
+        sizer.start();
+
+        pool.setTimingEnabled(false);
+        load(pool, 1000);
+        log.info("Timing disabled under load: core={} (expected 4)", pool.getCorePoolSize());
+
+        pool.setTimingEnabled(true);
+        pool.setCorePoolSize(1);
+        pool.setMaximumPoolSize(1);
+        Thread.sleep(500);
+        log.info("Maximum lowered below minCoreSize: core={} (expected 1)", pool.getCorePoolSize());
+
+        pool.setMaximumPoolSize(4);
+        load(pool, 1000);
+        boolean alive = Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(t -> t.getName().equals("adaptive-pool-sizer"));
+        log.info("Maximum restored under load: core={}, controller alive={}", pool.getCorePoolSize(), alive);
+
+        sizer.stop();
+        pool.shutdown();
+        pool.awaitTermination(3000, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 按rate个/秒提交阻塞2ms的任务，持续1秒
+     */
+    private static void load(MyThreadPoolExecutor pool, int rate) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        long intervalNanos = 1_000_000_000L / rate;
+        long next = System.nanoTime();
+        while (next < end) {
+            pool.execute(() -> {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+            });
+            next += intervalNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
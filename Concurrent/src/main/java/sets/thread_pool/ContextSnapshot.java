@@ -0,0 +1,68 @@
+package sets.thread_pool;
+
+/**
+ * 提交时捕获的全部上下文，一个任务只对应一个快照对象
+ * 只有一个装饰器时（最常见的情况）直接存放它的上下文，不再分配数组，restore也不分配
+ */
+final class ContextSnapshot {
+
+    private final TaskDecorator<Object>[] decorators; // 捕获时的装饰器链，之后装饰器链被修改也不影响这个快照
+    private final Object captured; // 一个装饰器时是它的上下文，多个时是Object[]
+
+    private ContextSnapshot(TaskDecorator<Object>[] decorators, Object captured) {
+        this.decorators = decorators;
+        this.captured = captured;
+    }
+
+    /**
+     * 在提交线程中调用
+     * @return 没有装饰器时返回null，不分配任何对象
+     */
+    static ContextSnapshot capture(TaskDecorator<Object>[] decorators) {
+        int n = decorators.length;
+        if (n == 0) {
+            return null;
+        }
+        if (n == 1) {
+            return new ContextSnapshot(decorators, decorators[0].capture());
+        }
+
+        Object[] values = new Object[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = decorators[i].capture();
+        }
+        return new ContextSnapshot(decorators, values);
+    }
+
+    /**
+     * 在工作线程中装入上下文
+     * @return 被替换掉的旧上下文，原样交给reset
+     */
+    Object restore() {
+        if (decorators.length == 1) {
+            return decorators[0].restore(captured);
+        }
+
+        Object[] values = (Object[]) captured;
+        Object[] previous = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            previous[i] = decorators[i].restore(values[i]);
+        }
+        return previous;
+    }
+
+    /**
+     * 按与restore相反的顺序恢复旧上下文
+     */
+    void reset(Object previous) {
+        if (decorators.length == 1) {
+            decorators[0].reset(previous);
+            return;
+        }
+
+        Object[] values = (Object[]) previous;
+        for (int i = values.length - 1; i >= 0; i--) {
+            decorators[i].reset(values[i]);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package sets.thread_pool;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * HDR风格的对数-线性直方图，用来记录纳秒级的耗时
+ * 每个2的幂区间再等分成2^SUB_BUCKET_BITS个子桶，相对误差不超过1/2^SUB_BUCKET_BITS（这里是12.5%）
+ * 计数按线程分条（striped）存放：不同线程写不同的条带，避免所有工作线程争抢同一个计数器
+ * 写入只有一次数组定位加一次getAndIncrement，可以常开
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // 最大可表示的值是Long.MAX_VALUE，指数最大为62
+    private static final int BUCKET_COUNT = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final int stripeMask;
+    private final AtomicLongArray counts; // [stripe][bucket]，每个条带连续存放，相互之间不共享缓存行
+
+    public LatencyHistogram() {
+        int stripes = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 1) * 2 - 1);
+        this.stripeMask = stripes - 1;
+        this.counts = new AtomicLongArray(stripes * BUCKET_COUNT);
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int stripe = (int) Thread.currentThread().threadId() & stripeMask;
+        counts.getAndIncrement(stripe * BUCKET_COUNT + bucketOf(nanos));
+    }
+
+    static int bucketOf(long v) {
+        if (v < SUB_BUCKET_COUNT) {
+            return (int) v;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(v);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int mantissa = (int) (v >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + mantissa;
+    }
+
+    /**
+     * 桶的下界，即该桶内最小的值
+     */
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        int mantissa = bucket % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + mantissa) << shift;
+    }
+
+    /**
+     * 把所有条带合并成一个快照，读取方付出合并的代价，写入方不受影响
+     */
+    public Snapshot snapshot() {
+        long[] merged = new long[BUCKET_COUNT];
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            int base = stripe * BUCKET_COUNT;
+            for (int b = 0; b < BUCKET_COUNT; b++) {
+                merged[b] += counts.get(base + b);
+            }
+        }
+        return new Snapshot(merged);
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    public static final class Snapshot {
+        private final long[] buckets;
+        private final long count;
+
+        private Snapshot(long[] buckets) {
+            this.buckets = buckets;
+            long total = 0;
+            for (long c : buckets) {
+                total += c;
+            }
+            this.count = total;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @param percentile 0 ~ 100
+         * @return 对应百分位所在桶的下界（纳秒）
+         */
+        public long valueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= rank) {
+                    return lowerBoundOf(b);
+                }
+            }
+            return lowerBoundOf(buckets.length - 1);
+        }
+
+        public long max() {
+            for (int b = buckets.length - 1; b >= 0; b--) {
+                if (buckets[b] != 0) {
+                    return lowerBoundOf(b);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * 两次快照之差，即earlier之后新记录的部分，用于按时间窗口观察
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] delta = new long[buckets.length];
+            for (int b = 0; b < buckets.length; b++) {
+                delta[b] = Math.max(buckets[b] - earlier.buckets[b], 0); // reset之后可能为负
+            }
+            return new Snapshot(delta);
+        }
+
+        public double mean() {
+            if (count == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                sum += (double) buckets[b] * lowerBoundOf(b);
+            }
+            return sum / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, p50=%dns, p99=%dns, p99.9=%dns, max=%dns",
+                    count, valueAtPercentile(50), valueAtPercentile(99), valueAtPercentile(99.9), max());
+        }
+    }
+}
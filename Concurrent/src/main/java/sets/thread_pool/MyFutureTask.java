@@ -0,0 +1,421 @@
+package sets.thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 可取消、可获取结果的异步任务
+ * 完成状态是一个用CAS推进的状态机，不使用任何监视器锁：
+ * NEW -> COMPLETING -> NORMAL
+ * NEW -> COMPLETING -> EXCEPTIONAL
+ * NEW -> CANCELLED
+ * NEW -> INTERRUPTING -> INTERRUPTED
+ * 等待者只有在真的需要park时才会分配一个WaitNode；结果直接存放在outcome字段中
+ * @param <V> 结果类型
+ */
+public class MyFutureTask<V> implements RunnableFuture<V> {
+
+    private static final int NEW = 0;
+    private static final int COMPLETING = 1; // 结果正在写入outcome，非常短暂
+    private static final int NORMAL = 2;
+    private static final int EXCEPTIONAL = 3;
+    private static final int CANCELLED = 4;
+    private static final int INTERRUPTING = 5;
+    private static final int INTERRUPTED = 6;
+
+    private static final int SPIN_TRIES = 1 << 7; // park之前的自旋次数
+
+    private volatile int state = NEW;
+    private Callable<V> callable; // 执行完毕后置空
+    private Object outcome; // 结果或异常，不需要volatile，由state的volatile写读保证可见性
+    private volatile Thread runner; // 正在执行任务的线程，用于cancel(true)时中断
+    private volatile WaitNode waiters; // 等待者的Treiber栈
+    private volatile CompletableFuture<V> completable; // 按需创建的CompletableFuture视图
+
+    private static final VarHandle STATE;
+    private static final VarHandle RUNNER;
+    private static final VarHandle WAITERS;
+    private static final VarHandle COMPLETABLE;
+
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            STATE = l.findVarHandle(MyFutureTask.class, "state", int.class);
+            RUNNER = l.findVarHandle(MyFutureTask.class, "runner", Thread.class);
+            WAITERS = l.findVarHandle(MyFutureTask.class, "waiters", WaitNode.class);
+            COMPLETABLE = l.findVarHandle(MyFutureTask.class, "completable", CompletableFuture.class);
+        } catch (IllegalAccessException | NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class WaitNode {
+        volatile Thread thread = Thread.currentThread();
+        volatile WaitNode next;
+    }
+
+    public MyFutureTask(Callable<V> callable) {
+        if (callable == null) {
+            throw new NullPointerException();
+        }
+        this.callable = callable;
+    }
+
+    /**
+     * 供子类使用：不传入Callable，由子类覆盖call()提供任务逻辑
+     */
+    protected MyFutureTask() { }
+
+    /**
+     * 任务逻辑，默认调用构造时传入的Callable
+     */
+    protected V call() throws Exception {
+        return callable.call();
+    }
+
+    @Override
+    public void run() {
+        // 只有第一个CAS成功的线程能执行任务
+        if (state != NEW || !RUNNER.compareAndSet(this, null, Thread.currentThread())) {
+            return;
+        }
+
+        try {
+            if (state == NEW) {
+                V result;
+                try {
+                    result = call();
+                } catch (Throwable ex) {
+                    setException(ex);
+                    return;
+                }
+                set(result);
+            }
+        } finally {
+            runner = null;
+            handlePossibleCancellationInterrupt(state);
+        }
+    }
+
+    /**
+     * 执行任务但不设置结果，任务保持NEW状态，可以再次执行，用于周期任务
+     * @return 任务正常执行完毕且没有被取消
+     */
+    protected boolean runAndReset() {
+        if (state != NEW || !RUNNER.compareAndSet(this, null, Thread.currentThread())) {
+            return false;
+        }
+
+        boolean ran = false;
+        int s = state;
+        try {
+            Callable<V> c = callable;
+            if (c != null && s == NEW) {
+                try {
+                    c.call(); // 不设置结果
+                    ran = true;
+                } catch (Throwable ex) {
+                    setException(ex);
+                }
+            }
+        } finally {
+            runner = null;
+            s = state;
+            handlePossibleCancellationInterrupt(s);
+        }
+        return ran && s == NEW;
+    }
+
+    private void handlePossibleCancellationInterrupt(int s) {
+        if (s >= INTERRUPTING) {
+            // 等待cancel(true)完成中断，避免中断标记泄漏到后续任务
+            while (state == INTERRUPTING) {
+                Thread.yield();
+            }
+            Thread.interrupted();
+        }
+    }
+
+    protected void set(V v) {
+        if (STATE.compareAndSet(this, NEW, COMPLETING)) {
+            outcome = v;
+            STATE.setRelease(this, NORMAL);
+            finishCompletion();
+        }
+    }
+
+    protected void setException(Throwable t) {
+        if (STATE.compareAndSet(this, NEW, COMPLETING)) {
+            outcome = t;
+            STATE.setRelease(this, EXCEPTIONAL);
+            finishCompletion();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!(state == NEW && STATE.compareAndSet(this, NEW, mayInterruptIfRunning ? INTERRUPTING : CANCELLED))) {
+            return false;
+        }
+
+        if (mayInterruptIfRunning) {
+            try {
+                Thread t = runner;
+                if (t != null) {
+                    t.interrupt();
+                }
+            } finally {
+                STATE.setRelease(this, INTERRUPTED);
+            }
+        }
+        finishCompletion();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return state >= CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return state != NEW;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        int s = state;
+        if (s <= COMPLETING) {
+            s = awaitDone(false, 0L);
+        }
+        return report(s);
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        int s = state;
+        if (s <= COMPLETING && (s = awaitDone(true, unit.toNanos(timeout))) <= COMPLETING) {
+            throw new TimeoutException();
+        }
+        return report(s);
+    }
+
+    /**
+     * 返回一个CompletableFuture视图，便于接入thenApply等组合操作
+     * 只有第一次调用时才会分配；取消这个视图不会取消任务本身
+     */
+    public CompletableFuture<V> toCompletableFuture() {
+        CompletableFuture<V> cf = completable;
+        if (cf == null) {
+            cf = new CompletableFuture<>();
+            if (!COMPLETABLE.compareAndSet(this, null, cf)) {
+                cf = completable;
+            }
+        }
+        if (isDone()) { // 任务可能在视图创建之前就已完成
+            propagate(cf);
+        }
+        return cf;
+    }
+
+    /**
+     * 任务完成（包括取消）时的回调，子类可以覆盖
+     */
+    protected void done() { }
+
+    @SuppressWarnings("unchecked")
+    private V report(int s) throws ExecutionException {
+        Object x = outcome;
+        if (s == NORMAL) {
+            return (V) x;
+        }
+        if (s >= CANCELLED) {
+            throw new CancellationException();
+        }
+        throw new ExecutionException((Throwable) x);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void propagate(CompletableFuture<V> cf) {
+        int s = state;
+        if (s == NORMAL) {
+            cf.complete((V) outcome);
+        } else if (s == EXCEPTIONAL) {
+            cf.completeExceptionally((Throwable) outcome);
+        } else if (s >= CANCELLED) {
+            cf.cancel(false);
+        }
+    }
+
+    /**
+     * 唤醒并移除所有等待者
+     */
+    private void finishCompletion() {
+        for (WaitNode q; (q = waiters) != null; ) {
+            if (WAITERS.weakCompareAndSet(this, q, null)) {
+                for (;;) {
+                    Thread t = q.thread;
+                    if (t != null) {
+                        q.thread = null;
+                        LockSupport.unpark(t);
+                    }
+                    WaitNode next = q.next;
+                    if (next == null) {
+                        break;
+                    }
+                    q.next = null;
+                    q = next;
+                }
+                break;
+            }
+        }
+
+        done();
+
+        CompletableFuture<V> cf = completable;
+        if (cf != null) {
+            propagate(cf);
+        }
+        callable = null;
+    }
+
+    /**
+     * 等待任务完成：先自旋SPIN_TRIES次，仍未完成才入栈并park
+     * 微秒级的任务通常在自旋期间就已完成，不需要分配WaitNode，也不需要付出park/unpark的代价
+     */
+    private int awaitDone(boolean timed, long nanos) throws InterruptedException {
+        long deadline = timed ? System.nanoTime() + nanos : 0L;
+        WaitNode q = null;
+        boolean queued = false;
+        int spins = SPIN_TRIES;
+        for (;;) {
+            int s = state;
+            if (s > COMPLETING) {
+                if (q != null) {
+                    q.thread = null;
+                }
+                return s;
+            } else if (s == COMPLETING) {
+                Thread.yield(); // 马上就会完成
+            } else if (Thread.interrupted()) {
+                removeWaiter(q);
+                throw new InterruptedException();
+            } else if (spins > 0) {
+                spins--;
+                Thread.onSpinWait();
+            } else if (q == null) {
+                if (timed && deadline - System.nanoTime() <= 0L) {
+                    return s;
+                }
+                q = new WaitNode();
+            } else if (!queued) {
+                q.next = waiters;
+                queued = WAITERS.weakCompareAndSet(this, q.next, q);
+            } else if (timed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    removeWaiter(q);
+                    return state;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * 超时或中断时把自己的WaitNode从栈中摘除，避免垃圾堆积
+     */
+    private void removeWaiter(WaitNode node) {
+        if (node == null) {
+            return;
+        }
+
+        node.thread = null;
+        retry:
+        for (;;) {
+            for (WaitNode pred = null, q = waiters, s; q != null; q = s) {
+                s = q.next;
+                if (q.thread != null) {
+                    pred = q;
+                } else if (pred != null) {
+                    pred.next = s;
+                    if (pred.thread == null) { // pred也被摘除了，重新遍历
+                        continue retry;
+                    }
+                } else if (!WAITERS.compareAndSet(this, q, s)) {
+                    continue retry;
+                }
+            }
+            break;
+        }
+    }
+}
+
+/**
+ * scatter/gather：用submit + get收集结果，不再需要MyCountDownLatch加一个结果容器
+ */
+@Slf4j
+class TestMyFutureTask {
+    public static void main(String[] args) throws Exception {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                4, 4, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+
+        // scatter
+        List<MyFutureTask<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int n = i;
+            futures.add(pool.submit(() -> n * n));
+        }
+
+        // gather
+        long sum = 0;
+        for (MyFutureTask<Integer> future : futures) {
+            sum += future.get();
+        }
+        log.info("Sum of squares: {}", sum);
+
+        // 超时
+        MyFutureTask<String> slow = pool.submit(() -> {
+            Thread.sleep(1000);
+            return "slow";
+        });
+        try {
+            slow.get(10, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.info("Timed out as expected");
+        }
+
+        // 取消
+        log.info("Cancelled: {}", slow.cancel(true));
+
+        // 异常
+        MyFutureTask<Integer> failing = pool.submit(() -> {
+            throw new IllegalStateException("boom");
+        });
+        try {
+            failing.get();
+        } catch (ExecutionException e) {
+            log.info("Failed with: {}", e.getCause().getMessage());
+        }
+
+        // CompletableFuture视图
+        String composed = pool.submit(() -> 21)
+                .toCompletableFuture()
+                .thenApply(x -> "answer = " + x * 2)
+                .get();
+        log.info(composed);
+
+        pool.shutdown();
+        pool.awaitTermination(3000, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,272 @@
+package sets.thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Serial;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 分治任务，在MyThreadPoolExecutor上提供fork/join语义
+ * fork()：把任务提交给当前工作线程所在的线程池；工作窃取模式下进入当前工作线程的本地队列，空闲线程从队列的另一端窃取
+ * join()：不会占着工作线程干等，而是先把还没有被认领的任务直接在当前线程执行，
+ *         任务已被窃取时再去窃取别的任务来做，详见MyThreadPoolExecutor.helpJoin
+ * 以前父任务用submit + get等待子任务，每一层都占住一个工作线程，递归深度超过线程数就会死锁
+ *
+ * 典型用法：
+ * <pre>
+ * left.fork();
+ * long r = right.compute();
+ * return left.join() + r;
+ * </pre>
+ * @param <V> 结果类型，不需要结果时使用Void
+ */
+public abstract class MyRecursiveTask<V> extends MyFutureTask<V> {
+
+    protected MyRecursiveTask() {
+        super();
+    }
+
+    /**
+     * 任务的计算逻辑，通常把问题拆成子任务，fork其中一部分，自己计算另一部分，再join
+     */
+    protected abstract V compute();
+
+    @Override
+    protected final V call() {
+        return compute();
+    }
+
+    /**
+     * 异步执行本任务，只能在线程池的工作线程（包括虚拟线程模式下的虚拟线程）中调用；从外部开始计算请使用MyThreadPoolExecutor.invoke
+     * @return 本任务，便于链式调用
+     */
+    public final MyRecursiveTask<V> fork() {
+        MyThreadPoolExecutor pool = MyThreadPoolExecutor.currentPool();
+        if (pool == null) {
+            throw new IllegalStateException("fork() must be called from a pool worker, use MyThreadPoolExecutor.invoke instead");
+        }
+        pool.execute(this);
+        return this;
+    }
+
+    /**
+     * 等待任务完成并返回结果，在工作线程中调用时会帮忙执行任务而不是阻塞
+     * 任务抛出的RuntimeException和Error原样抛出，受检异常包装成CompletionException；不响应中断
+     */
+    public final V join() {
+        if (!isDone()) {
+            MyThreadPoolExecutor pool = MyThreadPoolExecutor.currentPool();
+            if (pool != null) {
+                pool.helpJoin(this);
+            }
+        }
+        return awaitResult();
+    }
+
+    /**
+     * 在当前线程中立即执行本任务并返回结果
+     */
+    public final V invoke() {
+        run();
+        return join();
+    }
+
+    /**
+     * fork第二个任务，在当前线程中执行第一个任务，再join第二个任务
+     */
+    public static void invokeAll(MyRecursiveTask<?> first, MyRecursiveTask<?> second) {
+        second.fork();
+        first.invoke();
+        second.join();
+    }
+
+    private V awaitResult() {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException re) {
+                        throw re;
+                    }
+                    if (cause instanceof Error err) {
+                        throw err;
+                    }
+                    throw new CompletionException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+/**
+ * 对长度为N的数组求和，拆到THRESHOLD以下再直接计算
+ * 1. 旧写法：父任务submit两个子任务再get，只有2个工作线程，递归第二层就把线程占满，get超时（死锁）
+ * 2. fork/join：共享队列、工作窃取和虚拟线程三种模式下都能在2个线程上完成，并和ForkJoinPool对比耗时
+ */
+@Slf4j
+class TestMyRecursiveTask {
+    private static final int N = 1 << 24;
+    private static final int THRESHOLD = 1 << 12;
+    private static final long[] DATA = new long[N];
+
+    static final class Sum extends MyRecursiveTask<Long> {
+        private final int from;
+        private final int to;
+
+        Sum(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= THRESHOLD) {
+                return sequential(from, to);
+            }
+            int mid = (from + to) >>> 1;
+            Sum left = new Sum(from, mid);
+            Sum right = new Sum(mid, to);
+            left.fork();
+            long r = right.compute();
+            return left.join() + r;
+        }
+    }
+
+    static final class JdkSum extends RecursiveTask<Long> {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        JdkSum(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= THRESHOLD) {
+                return sequential(from, to);
+            }
+            int mid = (from + to) >>> 1;
+            JdkSum left = new JdkSum(from, mid);
+            JdkSum right = new JdkSum(mid, to);
+            left.fork();
+            long r = right.compute();
+            return left.join() + r;
+        }
+    }
+
+    static long sequential(int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += DATA[i];
+        }
+        return sum;
+    }
+
+    /**
+     * 旧写法：子任务通过submit提交，父任务阻塞在get上
+     */
+    static long blockingSum(MyThreadPoolExecutor pool, int from, int to) throws Exception {
+        if (to - from <= THRESHOLD) {
+            return sequential(from, to);
+        }
+        int mid = (from + to) >>> 1;
+        MyFutureTask<Long> left = pool.submit(() -> blockingSum(pool, from, mid));
+        MyFutureTask<Long> right = pool.submit(() -> blockingSum(pool, mid, to));
+        return left.get() + right.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < N; i++) {
+            DATA[i] = i;
+        }
+        long expected = (long) N * (N - 1) / 2;
+
+        MyThreadPoolExecutor blocking = newPool(MyThreadPoolExecutor.ExecutionMode.SHARED_QUEUE);
+        MyFutureTask<Long> root = blocking.submit(() -> blockingSum(blocking, 0, N));
+        try {
+            root.get(2, TimeUnit.SECONDS);
+            log.info("submit + get: finished (unexpected)");
+        } catch (TimeoutException e) {
+            log.info("submit + get: deadlocked, every worker is blocked waiting for its children");
+        }
+        blocking.shutdownNow();
+
+        for (MyThreadPoolExecutor.ExecutionMode mode : new MyThreadPoolExecutor.ExecutionMode[]{
+                MyThreadPoolExecutor.ExecutionMode.SHARED_QUEUE, MyThreadPoolExecutor.ExecutionMode.WORK_STEALING,
+                MyThreadPoolExecutor.ExecutionMode.VIRTUAL_THREAD}) {
+            MyThreadPoolExecutor pool = newPool(mode);
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                long sum = pool.invoke(new Sum(0, N));
+                long elapsed = System.nanoTime() - start;
+                if (round == 4) {
+                    log.info("{}: sum={} correct={} in {} ms", mode, sum, sum == expected, elapsed / 1_000_000);
+                }
+            }
+            pool.shutdown();
+            pool.awaitTermination(3, TimeUnit.SECONDS);
+        }
+
+        ForkJoinPool fjp = new ForkJoinPool(2);
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long sum = fjp.invoke(new JdkSum(0, N));
+            long elapsed = System.nanoTime() - start;
+            if (round == 4) {
+                log.info("ForkJoinPool: sum={} correct={} in {} ms", sum, sum == expected, elapsed / 1_000_000);
+            }
+        }
+        fjp.shutdown();
+
+        // 子任务抛出的异常原样传给join的调用者
+        MyThreadPoolExecutor pool = newPool(MyThreadPoolExecutor.ExecutionMode.WORK_STEALING);
+        try {
+            pool.invoke(new MyRecursiveTask<Void>() {
+                @Override
+                protected Void compute() {
+                    MyRecursiveTask<Void> child = new MyRecursiveTask<>() {
+                        @Override
+                        protected Void compute() {
+                            throw new IllegalStateException("child failed");
+                        }
+                    };
+                    child.fork();
+                    return child.join();
+                }
+            });
+        } catch (IllegalStateException e) {
+            log.info("Exception from child propagated: {}", e.getMessage());
+        }
+        pool.shutdown();
+        pool.awaitTermination(3, TimeUnit.SECONDS);
+    }
+
+    private static MyThreadPoolExecutor newPool(MyThreadPoolExecutor.ExecutionMode mode) {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                2, 2, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy(),
+                mode);
+        pool.setTimingEnabled(false);
+        return pool;
+    }
+}
@@ -1,5 +1,19 @@
 package sets.thread_pool;
 
 public interface MyRejectedExecutionHandler {
+    /**
+     * 提交路径上任务无法入队时调用；抛出异常的任务由线程池计入拒绝数，
+     * 正常返回但丢弃了任务的实现需要调用executor.countRejected()，执行了或者重新放入队列的任务不算拒绝
+     */
     void rejectedExecution(Runnable task, MyThreadPoolExecutor executor);
+
+    /**
+     * 出队时的准入控制：工作线程取到任务、准备执行之前调用，返回true则任务不执行
+     * 被丢弃的任务只计入getShedTaskCount并交给MyThreadPoolExecutor.onShed，不会再调用rejectedExecution
+     * 只有开启耗时统计（能拿到排队时间）时才会调用
+     * @param sojournNanos 任务在队列中等待的时间
+     */
+    default boolean shouldShed(long sojournNanos) {
+        return false;
+    }
 }
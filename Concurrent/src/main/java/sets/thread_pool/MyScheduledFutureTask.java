@@ -0,0 +1,96 @@
+package sets.thread_pool;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 延迟任务和周期任务
+ * 到期时由时间轮交给线程池执行；周期任务每次执行完毕后计算下一次的到期时间，重新放回时间轮
+ * 周期任务抛出异常或被取消后不再执行
+ * @param <V> 结果类型，周期任务没有结果
+ */
+public class MyScheduledFutureTask<V> extends MyFutureTask<V> implements ScheduledFuture<V> {
+
+    private final MyThreadPoolExecutor executor;
+    private volatile long time; // 下一次到期时间，以System.nanoTime()为基准
+    // 0表示只执行一次；正数表示固定频率（scheduleAtFixedRate）；负数表示固定延迟（scheduleWithFixedDelay）
+    private final long period;
+    private volatile TimingWheel.Timeout timeout; // 当前在时间轮中的句柄，用于取消
+    private ContextSnapshot context; // 调用schedule时捕获的上下文，在入轮之前设置
+
+    MyScheduledFutureTask(MyThreadPoolExecutor executor, Callable<V> callable, long time, long period) {
+        super(callable);
+        this.executor = executor;
+        this.time = time;
+        this.period = period;
+    }
+
+    long time() {
+        return time;
+    }
+
+    void setTimeout(TimingWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    void setContext(ContextSnapshot context) {
+        this.context = context;
+    }
+
+    public boolean isPeriodic() {
+        return period != 0;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+        if (other == this) {
+            return 0;
+        }
+        if (other instanceof MyScheduledFutureTask<?> x) {
+            return Long.compare(time - x.time, 0);
+        }
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * 在调用schedule时的上下文中执行
+     */
+    @Override
+    public void run() {
+        ContextSnapshot c = context;
+        Object previous = c != null ? c.restore() : null;
+        try {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                // 固定频率从上一次的到期时间开始算，执行慢了也不会累积漂移；固定延迟从本次执行结束开始算
+                time = period > 0 ? time + period : System.nanoTime() - period;
+                executor.reExecutePeriodic(this);
+            }
+        } finally {
+            if (c != null) {
+                c.reset(previous);
+            }
+        }
+    }
+
+    /**
+     * 同时从时间轮中摘除，O(1)
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        TimingWheel.Timeout t = timeout;
+        if (cancelled && t != null) {
+            t.cancel();
+        }
+        return cancelled;
+    }
+}
@@ -1,247 +1,3404 @@
 package sets.thread_pool;
 
 import lombok.extern.slf4j.Slf4j;
+import sets.blocking_queue.MyMpscBlockingQueue;
+import sets.blocking_queue.MySpscBlockingQueue;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 @Slf4j
 public class MyThreadPoolExecutor {
-    private final int coreSize; // 核心线程数量
-    private final int maxSize; // 线程池最多线程数量
-    private final long keepAliveTime; // 非核心线程的最长等待时间，之后销毁
-    private final TimeUnit unit; // keepAliveTime的时间单位
+    // 以下三个参数可以在运行时调整，因此是volatile而不是final
+    private volatile int coreSize; // 核心线程数量
+    private volatile int maxSize; // 线程池最多线程数量
+    private volatile long keepAliveNanos; // 超出核心数量的线程的最长空闲时间（纳秒），之后销毁
     private final BlockingQueue<Runnable> taskQueue; // 任务队列
     private final MyRejectedExecutionHandler rejectedExecutionHandler; // 拒绝策略
+    private final ExecutionMode mode; // 执行模式
 
-    private final HashSet<Worker> workers = new HashSet<>(); // 工作线程集合
-    private final Object lock = new Object(); // 锁
+    // 控制字ctl：把运行状态和工作线程数量打包进同一个int，用CAS整体更新
+    // 高3位是运行状态，低29位是工作线程数量
+    private final AtomicInteger ctl = new AtomicInteger(ctlOf(RUNNING, 0));
+    private static final int COUNT_BITS = Integer.SIZE - 3;
+    private static final int COUNT_MASK = (1 << COUNT_BITS) - 1;
 
-    private volatile boolean isShutdown = false;
-    private volatile boolean isTerminated = false;
+    // 运行状态，数值从小到大即生命周期的先后顺序，因此可以直接比较大小
+    private static final int RUNNING = -1 << COUNT_BITS; // 接受新任务，并处理队列中的任务
+    private static final int SHUTDOWN = 0 << COUNT_BITS; // 不接受新任务，但继续处理队列中的任务
+    private static final int STOP = 1 << COUNT_BITS; // 不接受新任务，也不再处理队列中的任务
+    private static final int TIDYING = 2 << COUNT_BITS; // 所有工作线程均已退出，正在执行终止逻辑
+    private static final int TERMINATED = 3 << COUNT_BITS; // 完全终止
+
+    private static int runStateOf(int c) { return c & ~COUNT_MASK; }
+    private static int workerCountOf(int c) { return c & COUNT_MASK; }
+    private static int ctlOf(int runState, int workerCount) { return runState | workerCount; }
+    private static boolean isRunning(int c) { return c < SHUTDOWN; }
+    private static boolean runStateAtLeast(int c, int s) { return c >= s; }
+
+    private final HashSet<Worker> workers = new HashSet<>(); // 工作线程集合，只在慢路径上加锁访问
+    private final Object lock = new Object(); // 只保护workers集合、终止信号以及装饰器链的写入
+    private final AtomicInteger workerSeq = new AtomicInteger(); // 工作线程命名用的序号
+
+    // 工作窃取模式下使用
+    private volatile Worker[] stealTargets = new Worker[0]; // workers的只读快照，写时复制，窃取时无需加锁
+    private final AtomicInteger idleCount = new AtomicInteger(); // 正在park的空闲工作线程数量
+
+    private static final VarHandle IDLE;
+    private static final VarHandle WORKER_LOCK;
+    private static final VarHandle CONSUMING;
+
+    static {
+        try {
+            IDLE = MethodHandles.lookup().findVarHandle(Worker.class, "idle", boolean.class);
+            WORKER_LOCK = MethodHandles.lookup().findVarHandle(Worker.class, "lockState", int.class);
+            CONSUMING = MethodHandles.lookup().findVarHandle(SingleConsumerPartition.class, "consuming", int.class);
+        } catch (IllegalAccessException | NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 执行模式
+     * SHARED_QUEUE：所有工作线程从同一个taskQueue取任务
+     * WORK_STEALING：每个工作线程额外拥有一个本地双端队列，工作线程内部提交的任务进入本地队列，空闲线程从其他线程的本地队列窃取
+     * VIRTUAL_THREAD：不创建平台工作线程，每个任务运行在一个虚拟线程上，最多maxSize个虚拟线程同时运行，
+     *                 超出的任务进入taskQueue，由正在运行的虚拟线程接力执行；coreSize和keepAliveTime在此模式下不起作用
+     * PARTITIONED：固定maxSize个车道，每个车道由一个工作线程独占消费；execute(key, task)按key的哈希选择车道，
+     *              同一个key的任务按提交顺序串行执行，不同key的任务并行执行，执行过程中不需要任何按key的锁。
+     *              要求coreSize == maxSize，运行时不能调整；taskQueue只用来确定容量，容量平均分给各个车道
+     */
+    public enum ExecutionMode {
+        SHARED_QUEUE,
+        WORK_STEALING,
+        VIRTUAL_THREAD,
+        PARTITIONED
+    }
+
+    /**
+     * 分区模式下车道队列的拓扑，拓扑已知时可以换成更便宜的队列
+     * MPMC：ConcurrentLinkedQueue（默认），对提交线程没有任何限制，有界时另用一个计数器限制容量
+     * MPSC：MyMpscBlockingQueue，每个车道只有所属的工作线程一个消费者，提交线程可以有多个；要求taskQueue有界
+     * SPSC：MySpscBlockingQueue，整个线程池只有一个提交线程时使用；到期的定时任务由时间轮线程提交，
+     *       所以不能和schedule系列方法一起使用；要求taskQueue有界
+     * 后两种的车道容量向上取整为2的幂
+     */
+    public enum LaneTopology {
+        MPMC,
+        MPSC,
+        SPSC
+    }
+
+    /**
+     * 工作线程没有任务时的等待方式：在spin预算内用对应的方式反复尝试取任务，预算耗尽后再进入阻塞等待（park）
+     * 任务到达时如果工作线程还在spin，就省去了一次park/unpark，适合微秒级的任务；代价是空闲时占用CPU
+     * BUSY_SPIN：不做任何让步地反复轮询，延迟最低，会占满一个核
+     * SPIN_WAIT：每次轮询之间调用Thread.onSpinWait，次数指数退避，和MySemaphore.Sync.acquire的做法一致
+     * YIELD：每次轮询之间让出CPU，核数少于线程数时比前两种更友好
+     * PARK：不spin，直接阻塞等待（默认）
+     */
+    public enum IdleStrategy {
+        BUSY_SPIN,
+        SPIN_WAIT,
+        YIELD,
+        PARK
+    }
+
+    private static final int MAX_SPIN_BACKOFF = 1 << 6; // SPIN_WAIT每轮最多调用onSpinWait的次数
+
+    // join一个被窃取的任务时，连续窃取失败HELP_SPINS次后等待HELP_PARK_NANOS，再回来窃取
+    private static final int HELP_SPINS = 1 << 6;
+    private static final long HELP_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private volatile IdleStrategy idleStrategy = IdleStrategy.PARK;
+    private volatile long spinBudgetNanos; // 每次空闲时最多spin多久
+
+    // 分区模式下的车道，数量固定为maxSize
+    private final Partition[] partitions;
+
+    // 虚拟线程模式下正在运行的虚拟线程，只用于shutdownNow时中断它们
+    private final Set<Thread> virtualWorkers = ConcurrentHashMap.newKeySet();
+    // 虚拟线程模式下使用，ThreadFactory是线程安全的，可以被多个提交者同时调用
+    private final ThreadFactory virtualThreadFactory = Thread.ofVirtual().name("virtual-worker-", 0).factory();
+    // 虚拟线程所属的线程池：虚拟线程不是Worker，fork/join通过它找到当前线程池
+    private static final ThreadLocal<MyThreadPoolExecutor> VIRTUAL_WORKER_OWNER = new ThreadLocal<>();
+
+    // 定时任务使用的时间轮，第一次调用schedule系列方法时才创建
+    private static final long TIMER_TICK_MILLIS = 1L;
+    private volatile TimingWheel timingWheel;
+
+    // 指标：计数器全部使用LongAdder，高并发写入时分散到不同的Cell上，读取时才求和
+    private final LongAdder completedTaskCount = new LongAdder();
+    private final LongAdder rejectedTaskCount = new LongAdder();
+    private final LongAdder expiredTaskCount = new LongAdder(); // 出队时已过截止时间而被丢弃的任务
+    private final LongAdder shedTaskCount = new LongAdder(); // 出队时被shouldShed丢弃的任务
+    private final LongAdder activeCount = new LongAdder(); // 正在执行任务的线程数
+    // 尚未被认领的批量子任务数：一个BatchTask在taskQueue中只占几个位置，队列容量和队列深度都要按子任务数计算
+    private final AtomicInteger batchedTaskCount = new AtomicInteger();
+    private final LatencyHistogram queueWaitHistogram = new LatencyHistogram();
+    private final LatencyHistogram executionHistogram = new LatencyHistogram();
+    // 是否记录耗时直方图：开启后每个任务多两次nanoTime调用，等待时间还需要给任务包一层WrappedTask
+    private volatile boolean timingEnabled = true;
+
+    @SuppressWarnings("unchecked")
+    private static final TaskDecorator<Object>[] NO_DECORATORS = (TaskDecorator<Object>[]) new TaskDecorator<?>[0];
+    // 任务装饰器链，写时复制：提交路径上只有一次volatile读，为空时不做任何包装
+    private volatile TaskDecorator<Object>[] taskDecorators = NO_DECORATORS;
 
     public MyThreadPoolExecutor(int coreSize, int maxSize, long keepAliveTime,
                                 TimeUnit unit, BlockingQueue<Runnable> taskQueue,
                                 MyRejectedExecutionHandler rejectedExecutionHandler) {
+        this(coreSize, maxSize, keepAliveTime, unit, taskQueue, rejectedExecutionHandler, ExecutionMode.SHARED_QUEUE);
+    }
+
+    public MyThreadPoolExecutor(int coreSize, int maxSize, long keepAliveTime,
+                                TimeUnit unit, BlockingQueue<Runnable> taskQueue,
+                                MyRejectedExecutionHandler rejectedExecutionHandler,
+                                ExecutionMode mode) {
+        this(coreSize, maxSize, keepAliveTime, unit, taskQueue, rejectedExecutionHandler, mode, LaneTopology.MPMC);
+    }
+
+    public MyThreadPoolExecutor(int coreSize, int maxSize, long keepAliveTime,
+                                TimeUnit unit, BlockingQueue<Runnable> taskQueue,
+                                MyRejectedExecutionHandler rejectedExecutionHandler,
+                                ExecutionMode mode, LaneTopology laneTopology) {
+        if (coreSize < 0 || maxSize <= 0 || maxSize < coreSize || maxSize > COUNT_MASK || keepAliveTime < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (mode == ExecutionMode.PARTITIONED && coreSize != maxSize) {
+            throw new IllegalArgumentException("Partitioned mode requires coreSize == maxSize");
+        }
+        if (laneTopology != LaneTopology.MPMC
+                && (mode != ExecutionMode.PARTITIONED || taskQueue.remainingCapacity() == Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("Single-consumer lanes require PARTITIONED mode and a bounded task queue");
+        }
+
         this.coreSize = coreSize;
         this.maxSize = maxSize;
-        this.keepAliveTime = keepAliveTime;
-        this.unit = unit;
+        this.keepAliveNanos = unit.toNanos(keepAliveTime);
         this.rejectedExecutionHandler = rejectedExecutionHandler;
         this.taskQueue = taskQueue;  // 使用传入的队列类型
+        this.mode = mode;
+        if (mode == ExecutionMode.PARTITIONED) {
+            // 有界队列的容量平均分给各个车道
+            int capacity = taskQueue.remainingCapacity() == Integer.MAX_VALUE
+                    ? Integer.MAX_VALUE
+                    : Math.max(taskQueue.remainingCapacity() / maxSize, 1);
+            this.partitions = new Partition[maxSize];
+            for (int i = 0; i < maxSize; i++) {
+                partitions[i] = switch (laneTopology) {
+                    case MPMC -> new ConcurrentPartition(capacity);
+                    case MPSC -> {
+                        MyMpscBlockingQueue<Runnable> q = new MyMpscBlockingQueue<>(capacity);
+                        yield new SingleConsumerPartition(q::offer, q::poll, q::size);
+                    }
+                    case SPSC -> {
+                        MySpscBlockingQueue<Runnable> q = new MySpscBlockingQueue<>(capacity);
+                        yield new SingleConsumerPartition(q::offer, q::poll, q::size);
+                    }
+                };
+            }
+        } else {
+            this.partitions = null;
+        }
+
+        if (mode == ExecutionMode.VIRTUAL_THREAD) {
+            return; // 虚拟线程按需创建，不需要预先启动核心线程
+        }
 
         for (int i = 0; i < coreSize; i++) {
-            addWorker(true);
+            addWorker(null, true);
         }
     }
 
     public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+
         // 线程池感知到关闭开始，所有新来的任务走拒绝逻辑
-        if (isShutdown) {
-            rejectedExecutionHandler.rejectedExecution(task, this);
+        if (!isRunning(ctl.get())) {
+            reject(task);
             return;
         }
 
-        boolean success = taskQueue.offer(task);
-        if (!success) { // 任务队列满
-            synchronized (lock) {
-                if (workers.size() < maxSize) { // 且线程池没有达到最大负荷
-                    addWorker(false); // 创建一个非核心线程
-                    taskQueue.offer(task); // 再次尝试入队
-                    return;
-                }
-            }
+        task = wrap(task); // 记下入队时间、捕获上下文
 
-            // 线程池已达最大负荷，走拒绝策略
-            rejectedExecutionHandler.rejectedExecution(task, this);
+        if (mode == ExecutionMode.VIRTUAL_THREAD) {
+            executeVirtual(task);
+            return;
         }
-    }
 
-    private void addWorker(boolean isCore) {
-        Worker worker;
-        if (isCore) {
-            worker = new Worker("core-worker-" + workers.size(), true);
-        } else {
-            worker = new Worker("non-core-worker-" + workers.size(), false);
+        if (mode == ExecutionMode.PARTITIONED) {
+            // 没有key的任务按任务对象本身分散到各个车道
+            executePartitioned(System.identityHashCode(unwrap(task)), task);
+            return;
         }
-        synchronized (lock) {
-            workers.add(worker);
+
+        if (mode == ExecutionMode.WORK_STEALING) {
+            // 工作线程内部提交的任务直接进入自己的本地队列，完全不碰共享的taskQueue
+            if (Thread.currentThread() instanceof Worker w && w.owner() == this) {
+                w.localQueue.push(task);
+                signalWork();
+                return;
+            }
         }
 
-        worker.start();
+        if (offerTask(task)) {
+            // 入队之后再检查一次：如果入队期间线程池被关闭了，把任务撤回并拒绝
+            int c = ctl.get();
+            if (!isRunning(c) && taskQueue.remove(task)) {
+                reject(task);
+                return;
+            }
+            // coreSize可能为0（或者运行时被调小到0），此时可能一个线程都没有，入队的任务没人处理
+            if (workerCountOf(c) == 0) {
+                addWorker(null, false);
+            }
+            signalWork();
+            return;
+        }
+
+        // 任务队列满，尝试创建一个非核心线程，把任务直接交给它作为第一个任务
+        // 不再重新入队：队列此时是满的，第二次offer同样可能失败，任务就会被悄悄丢掉
+        if (addWorker(task, false)) {
+            return;
+        }
+
+        // 线程池已达最大负荷，走拒绝策略
+        reject(task);
     }
 
-    public void shutdown() {
-        log.info("Thread pool shutting down...");
-        isShutdown = true;
+    /**
+     * 按优先级和相对截止时间提交，需要配合PriorityLaneQueue作为taskQueue才能按优先级调度
+     * 到出队时已经超过截止时间的任务不会执行，计入getExpiredTaskCount并交给onExpired，不经过拒绝策略
+     */
+    public void execute(Runnable task, int priority, long timeout, TimeUnit unit) {
+        execute(PrioritizedTask.of(task, priority, timeout, unit));
     }
 
-    public List<Runnable> shutdownNow() {
-        log.info("Thread pool force shutting down...");
-        isShutdown = true;
+    /**
+     * 分区模式下按key提交：相同key（equals且hashCode相同）的任务总是进入同一个车道，按提交顺序执行
+     */
+    public void execute(Object key, Runnable task) {
+        if (key == null || task == null) {
+            throw new NullPointerException();
+        }
+        if (mode != ExecutionMode.PARTITIONED) {
+            throw new IllegalStateException("Keyed execution requires PARTITIONED mode");
+        }
 
-        List<Runnable> remainingTasks = new ArrayList<>();
-        taskQueue.drainTo(remainingTasks); // 获取全部未处理的任务
-        return remainingTasks;
+        if (!isRunning(ctl.get())) {
+            reject(task);
+            return;
+        }
+
+        executePartitioned(key.hashCode(), wrap(task));
     }
 
-    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-        log.info("Begin to wait...");
-        long startTime = System.nanoTime();
-        synchronized (lock) {
-            while (!isTerminated) {
-                long elapsed = System.nanoTime() - startTime;
-                long remaining = unit.toNanos(timeout) - elapsed;
-                if (remaining <= 0) {
-                    return false;
+    private void executePartitioned(int hash, Runnable task) {
+        Partition partition = partitions[partitionIndex(hash)];
+        if (!partition.offer(task)) {
+            reject(task); // 车道已满，通常说明出现了热点key
+            return;
+        }
+        // 入队之后再检查一次，和execute中共享队列的处理一致
+        if (!isRunning(ctl.get())) {
+            boolean withdrawn = false;
+            for (Runnable t : partition.withdraw(task, runStateAtLeast(ctl.get(), STOP))) {
+                if (t == task) {
+                    withdrawn = true;
+                } else {
+                    rejectQuietly(t); // 其他提交者的任务，拒绝策略抛出的异常不应该抛给当前提交者
                 }
-                lock.wait(remaining / 1000000, (int) (remaining % 1000000)); // 等待到终止
+            }
+            if (withdrawn) {
+                reject(task);
+                return;
             }
         }
-        return true;
+
+        Worker owner = partition.owner;
+        if (owner != null && owner.tryClearIdle()) {
+            LockSupport.unpark(owner);
+        }
     }
 
-    private class Worker extends Thread {
+    private int partitionIndex(int hash) {
+        hash ^= hash >>> 16; // 和HashMap一样把高位混进低位
+        return Math.floorMod(hash, partitions.length);
+    }
 
-        private final boolean core;
+    /**
+     * @return key所在的车道编号
+     */
+    public int partitionOf(Object key) {
+        if (mode != ExecutionMode.PARTITIONED) {
+            throw new IllegalStateException("Keyed execution requires PARTITIONED mode");
+        }
+        return partitionIndex(key.hashCode());
+    }
 
-        public Worker(String name, boolean core) {
-            super(name);
-            this.core = core;
+    /**
+     * 每个车道当前排队的任务数，某个车道明显高于其他车道说明出现了热点key
+     */
+    public int[] getPartitionDepths() {
+        if (mode != ExecutionMode.PARTITIONED) {
+            return new int[0];
         }
 
-        @Override
-        public void run() {
-            try {
-                while (true) {
-                   Runnable task;
-                   if (core) {
-                       // 核心线程，一直阻塞地等待任务
-                       task = taskQueue.take();
-                   } else {
-                       // 非核心线程
-                       // 最多等待keepAliveTime，然后退出
-                       task = taskQueue.poll(keepAliveTime, unit);
-                       if (task == null) {
-                           synchronized (lock) {
-                               workers.remove(this);
-                           }
-
-                           log.info("{} exited due to idle timeout", this.getName());
-                           break;
-                       }
-                   }
-
-                   task.run();
-
-                   // 工作线程销毁逻辑
-                   if (isShutdown && taskQueue.isEmpty()) {
-                       synchronized (lock) {
-                           workers.remove(this);
-                       }
-
-                       log.info("{} exited due to shutdown and empty queue", this.getName());
-                       checkAndSetTermination();
-                       break;
-                   }
-                }
-            } catch (InterruptedException e) {
-                log.error(e.getMessage());
+        int[] depths = new int[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            depths[i] = partitions[i].depth();
+        }
+        return depths;
+    }
+
+    private boolean hasQueuedTasks() {
+        return !taskQueue.isEmpty() || hasPartitionedTasks();
+    }
+
+    /**
+     * 只在持有lock时调用
+     */
+    private boolean claimPartition(Worker worker) {
+        for (Partition partition : partitions) {
+            if (partition.owner == null) {
+                partition.owner = worker;
+                worker.partition = partition;
+                return true;
             }
         }
+        return false;
+    }
 
-        private void checkAndSetTermination() {
-            synchronized (lock) {
-                if (taskQueue.isEmpty() && workers.isEmpty() && isShutdown) {
-                    isTerminated = true;
-                    log.info("Thread pool has been fully terminated.");
+    private boolean hasPartitionedTasks() {
+        if (partitions != null) {
+            for (Partition partition : partitions) {
+                if (partition.depth() > 0) {
+                    return true;
                 }
             }
         }
+        return false;
     }
 
     /**
-     * 以下是拒绝策略
-     * 抛出异常的拒绝策略
+     * 分区模式的一个车道：一个消费者，即独占它的工作线程
      */
-    public static class AbortRejectPolicy implements MyRejectedExecutionHandler {
-        public AbortRejectPolicy() { }
+    private abstract static class Partition {
+        volatile Worker owner; // 独占消费这个车道的工作线程，在lock内更新
 
-        @Override
-        public void rejectedExecution(Runnable task, MyThreadPoolExecutor executor) {
-            throw new RuntimeException("Task " + task.toString() + " rejected");
+        abstract boolean offer(Runnable task);
+
+        abstract Runnable poll();
+
+        abstract int depth();
+
+        /**
+         * 所属工作线程在关闭后发现车道为空、准备退出时调用
+         * @return false表示车道中又出现了任务，还不能退出
+         */
+        boolean close() {
+            return true;
         }
+
+        /**
+         * 入队之后发现线程池已经关闭时调用，尝试撤回task
+         * @param stopped 线程池是否已经STOP，此时工作线程不会再出队
+         * @return 撤回的任务，可能包含其他提交者的、同样不会再被执行的任务，由调用者逐个拒绝
+         */
+        abstract List<Runnable> withdraw(Runnable task, boolean stopped);
     }
 
     /**
-     * 直接忽略的拒绝策略
+     * 多个提交者，出队也不限线程
+     * 入队出队都是无锁的，depth只用于容量限制和观测
      */
-    public static class DiscardRejectPolicy implements MyRejectedExecutionHandler {
-        public DiscardRejectPolicy() { }
+    private static final class ConcurrentPartition extends Partition {
+        final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger depth = new AtomicInteger();
+        final int capacity;
+
+        ConcurrentPartition(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        boolean offer(Runnable task) {
+            if (depth.incrementAndGet() > capacity) {
+                depth.decrementAndGet();
+                return false;
+            }
+            queue.offer(task);
+            return true;
+        }
+
+        @Override
+        Runnable poll() {
+            Runnable task = queue.poll();
+            if (task != null) {
+                depth.decrementAndGet();
+            }
+            return task;
+        }
+
+        @Override
+        int depth() {
+            return depth.get();
+        }
 
         @Override
-        public void rejectedExecution(Runnable task, MyThreadPoolExecutor executor) { }
+        List<Runnable> withdraw(Runnable task, boolean stopped) {
+            if (queue.remove(task)) {
+                depth.decrementAndGet();
+                return List.of(task);
+            }
+            return List.of();
+        }
     }
 
     /**
-     * 记录日志的拒绝策略
+     * 建立在单消费者队列（MPSC、SPSC）上的车道，队列本身有界，不再需要depth计数
+     * 正常情况下只有所属工作线程出队，但shutdownNow和入队后的关闭复查也要出队，所以出队前先抢consuming：
+     * 几乎总是一次无竞争的CAS，仍然比ConcurrentLinkedQueue出队再加上depth计数便宜
+     * 单消费者队列不能撤回任意一个元素，因此工作线程退出前在consuming内把车道标记为closed，
+     * 入队后的复查只在车道已经closed或线程池已经STOP（都不会再有人出队）时才把车道中的任务全部取出
      */
-    public static class LogAndDropPolicy implements MyRejectedExecutionHandler {
-        public LogAndDropPolicy() { }
+    private static final class SingleConsumerPartition extends Partition {
+        private final Predicate<Runnable> offer;
+        private final Supplier<Runnable> poll;
+        private final IntSupplier size;
+        private volatile int consuming; // 1表示有线程正在出队
+        private boolean closed; // 只在持有consuming时读写
+
+        SingleConsumerPartition(Predicate<Runnable> offer, Supplier<Runnable> poll, IntSupplier size) {
+            this.offer = offer;
+            this.poll = poll;
+            this.size = size;
+        }
 
         @Override
-        public void rejectedExecution(Runnable task, MyThreadPoolExecutor executor) {
-            log.info("Task {} rejected", task.toString());
+        boolean offer(Runnable task) {
+            return offer.test(task);
         }
-    }
-}
 
-@Slf4j
-class TestMyThreadPool {
-    public static void main(String[] args) throws InterruptedException {
-        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
-                2, // 核心线程数
-                5, // 最大线程数
-                5000L, // 非核心线程存活时间
-                TimeUnit.MILLISECONDS, // keepAliveTime为5s
-                new LinkedBlockingQueue<>(50),
-                new MyThreadPoolExecutor.LogAndDropPolicy()); // 使用日志记录的拒绝策略
-        AtomicInteger taskId = new AtomicInteger();
+        @Override
+        Runnable poll() {
+            lockConsumer();
+            try {
+                return poll.get();
+            } finally {
+                unlockConsumer();
+            }
+        }
 
-        for (int i = 0; i < 100; i++) {
-            int currentId = taskId.getAndIncrement();
+        @Override
+        int depth() {
+            return size.getAsInt();
+        }
 
-            pool.execute(() -> {
-                // 唯一的Runnable任务是打印一条通知
-                log.info("{} executing task {}", Thread.currentThread().getName(), currentId);
-                try {
-                    Thread.sleep(1000); // 模拟任务耗时
-                } catch (InterruptedException e) {
-                    log.error(e.getMessage());
-                }
-            });
+        @Override
+        boolean close() {
+            lockConsumer();
+            try {
+                closed = size.getAsInt() == 0;
+                return closed;
+            } finally {
+                unlockConsumer();
+            }
+        }
 
+        @Override
+        List<Runnable> withdraw(Runnable task, boolean stopped) {
+            lockConsumer();
             try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                log.error(e.getMessage());
+                if (!closed && !stopped) {
+                    return List.of(); // 工作线程还会出队，它只在车道为空时才会退出
+                }
+
+                List<Runnable> withdrawn = new ArrayList<>();
+                Runnable t;
+                while ((t = poll.get()) != null) {
+                    withdrawn.add(t);
+                }
+                return withdrawn;
+            } finally {
+                unlockConsumer();
             }
         }
 
-        pool.shutdown();
+        private void lockConsumer() {
+            while (!CONSUMING.compareAndSet(this, 0, 1)) {
+                Thread.yield(); // 只有关闭时才会竞争，持有者很快就会释放
+            }
+        }
 
-        if (!pool.awaitTermination(3000, TimeUnit.MILLISECONDS)) {
-            List<Runnable> remainingTasks = pool.shutdownNow();
-            log.info("The number of remaining tasks: {}", remainingTasks.size());
+        private void unlockConsumer() {
+            CONSUMING.setRelease(this, 0);
         }
+    }
 
-        int i = 0;
-        for (int j = 0; j < 100; j++) {
-            log.info("i = {}", i);
-            i++;
+    /**
+     * 供拒绝策略使用：最多等待timeout，直到任务队列出现空位
+     * 分区模式下拿不到任务的key，无法放回原来的车道，直接返回false
+     * @return 是否成功入队
+     */
+    boolean offerWithTimeout(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        if (mode == ExecutionMode.PARTITIONED || !isRunning(ctl.get())) {
+            return false;
+        }
+
+        task = wrap(task);
+        if (!taskQueue.offer(task, timeout, unit)) {
+            return false;
+        }
+        if (!isRunning(ctl.get()) && taskQueue.remove(task)) {
+            return false;
+        }
+
+        if (mode == ExecutionMode.VIRTUAL_THREAD) {
+            if (tryAcquireVirtualSlot(true)) {
+                startVirtualWorker(null);
+            }
+        } else if (workerCountOf(ctl.get()) == 0) {
+            addWorker(null, false); // 等待期间所有线程都空闲超时退出了
+        } else {
+            signalWork();
+        }
+        return true;
+    }
+
+    /**
+     * 供拒绝策略使用：丢弃队首的任务（批量任务则丢弃其中尚未认领的全部任务），计入拒绝数
+     * @return 是否丢弃了任务
+     */
+    boolean discardOldest() {
+        Runnable head = taskQueue.poll();
+        if (head == null) {
+            return false;
+        }
+
+        if (head instanceof BatchTask batchTask) {
+            batchTask.drainRemaining(task -> rejectedTaskCount.increment());
+        } else {
+            rejectedTaskCount.increment();
+        }
+        return true;
+    }
+
+    /**
+     * 供拒绝策略使用：丢弃了传给rejectedExecution的任务、它不会再执行时调用一次，计入getRejectedTaskCount
+     * 拒绝策略抛出异常时由线程池自己计数，不需要调用
+     */
+    public void countRejected() {
+        rejectedTaskCount.increment();
+    }
+
+    /**
+     * 尚未认领的批量子任务同样占用队列容量，没有批量任务时只多一次volatile读
+     */
+    private boolean offerTask(Runnable task) {
+        int batched = batchedTaskCount.get();
+        return (batched == 0 || taskQueue.remainingCapacity() > batched) && taskQueue.offer(task);
+    }
+
+    /**
+     * 只有任务真的被丢弃时才计入拒绝数：拒绝策略抛出异常时在这里计数，
+     * 正常返回的策略可能执行了任务（CallerRuns）、把它放进了队列（BlockWithTimeout、DiscardOldest），
+     * 由丢弃任务的策略自己调用countRejected
+     */
+    private void reject(Runnable task) {
+        Runnable original = unwrap(task);
+        try {
+            rejectedExecutionHandler.rejectedExecution(original, this);
+        } catch (RuntimeException e) {
+            rejectedTaskCount.increment();
+            // 拒绝策略抛出了异常，任务不会再执行了：Future以这个异常结束，等待它的get()不会一直阻塞
+            // 时间轮派发的定时任务尤其需要：那时的调用者是ticker线程，异常只会被记录下来
+            if (original instanceof MyFutureTask<?> future) {
+                future.setException(e);
+            }
+            throw e;
+        }
+    }
+
+    private void rejectQuietly(Runnable task) {
+        try {
+            reject(task);
+        } catch (RuntimeException e) {
+            log.warn("Rejected task {} after shutdown: {}", unwrap(task), e.getMessage());
+        }
+    }
+
+    static Runnable unwrap(Runnable task) {
+        return task instanceof WrappedTask wrapped ? wrapped.task : task;
+    }
+
+    /**
+     * 提交时的统一包装：需要记录入队时间或者传播上下文时才分配一个WrappedTask，否则原样返回
+     */
+    private Runnable wrap(Runnable task) {
+        ContextSnapshot context = ContextSnapshot.capture(taskDecorators);
+        boolean timing = timingEnabled;
+        if (!timing && context == null) {
+            return task;
         }
+        return new WrappedTask(task, timing ? System.nanoTime() : 0L, context);
+    }
+
+    /**
+     * 带有入队时间和上下文快照的任务，只在开启耗时统计或者注册了装饰器时才会包装
+     * @param enqueuedAt 入队时间，没有开启耗时统计时为0
+     * @param context 提交时捕获的上下文，没有装饰器时为null
+     */
+    private record WrappedTask(Runnable task, long enqueuedAt, ContextSnapshot context) implements Runnable {
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * 所有工作线程（平台线程、虚拟线程）执行任务的统一入口
+     * 负责拆包、调用beforeExecute/afterExecute钩子，以及更新指标
+     */
+    private void runTask(Runnable task) {
+        if (task instanceof BatchTask batchTask) {
+            batchTask.run(); // 批量任务内部会为每个子任务调用runTask
+            return;
+        }
+        if (task instanceof WrappedTask wrapped) {
+            runTask(wrapped.task, wrapped.enqueuedAt, wrapped.context);
+            return;
+        }
+        runTask(task, 0L, null);
+    }
+
+    private void runTask(Runnable task, long enqueuedAt, ContextSnapshot context) {
+        // 出队时已经过了截止时间，执行也没有意义了，计数后直接丢弃
+        // 不能交给拒绝策略：拒绝策略是给提交者用的，在工作线程中抛出异常会杀死工作线程
+        if (task instanceof PrioritizedTask p && p.isExpired()) {
+            expiredTaskCount.increment();
+            try {
+                onExpired(task);
+            } catch (RuntimeException e) {
+                log.warn("onExpired threw for task {}: {}", task, e.getMessage());
+            }
+            return;
+        }
+
+        boolean timing = timingEnabled;
+        long start = timing || enqueuedAt != 0L ? System.nanoTime() : 0L;
+        if (enqueuedAt != 0L) {
+            long sojourn = start - enqueuedAt;
+            queueWaitHistogram.record(sojourn);
+            // 按排队时间做准入控制（例如CoDel），排队太久的任务不再执行
+            // 和过期任务一样只计数丢弃，不交给拒绝策略：重新入队、由当前线程执行这类策略都是为提交者设计的
+            if (rejectedExecutionHandler.shouldShed(sojourn)) {
+                shedTaskCount.increment();
+                try {
+                    onShed(task, sojourn);
+                } catch (RuntimeException e) {
+                    log.warn("onShed threw for task {}: {}", task, e.getMessage());
+                }
+                return;
+            }
+        }
+
+        activeCount.increment();
+        // 钩子也在提交者的上下文中执行，例如在afterExecute中打印的日志同样带有MDC
+        Object previous = context != null ? context.restore() : null;
+        try {
+            beforeExecute(Thread.currentThread(), task);
+            Throwable thrown = null;
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                thrown = ex;
+                throw ex;
+            } finally {
+                afterExecute(task, thrown);
+            }
+        } finally {
+            if (context != null) {
+                context.reset(previous);
+            }
+            activeCount.decrement();
+            completedTaskCount.increment();
+            if (timing) {
+                executionHistogram.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * 任务执行前的钩子，在执行任务的线程中调用，子类可以覆盖
+     * 抛出异常会导致任务不被执行
+     */
+    protected void beforeExecute(Thread t, Runnable r) { }
+
+    /**
+     * 任务执行后的钩子，在执行任务的线程中调用，子类可以覆盖
+     * @param t 任务抛出的异常，正常完成时为null
+     */
+    protected void afterExecute(Runnable r, Throwable t) { }
+
+    /**
+     * 任务出队时已经过了截止时间、被丢弃时的钩子，在工作线程中调用，子类可以覆盖
+     * 例如取消任务关联的Future，或者通知提交者；抛出的异常只会被记录，不会影响工作线程
+     */
+    protected void onExpired(Runnable r) { }
+
+    /**
+     * 任务出队时被拒绝策略的shouldShed判定为排队太久、被丢弃时的钩子，在工作线程中调用，子类可以覆盖
+     * @param sojournNanos 任务在队列中等待的时间
+     */
+    protected void onShed(Runnable r, long sojournNanos) { }
+
+    /**
+     * 批量提交
+     * 整批任务放进同一个BatchTask中，队列里只放“需要几个线程来帮忙就放几份”的BatchTask引用，
+     * 而不是每个任务入队一次。取到BatchTask的工作线程通过共享游标一个接一个地认领任务，
+     * 所以一次入队最多唤醒一个空闲线程，整批最多唤醒min(任务数, 线程数)个
+     * @param tasks 要执行的任务
+     */
+    public void executeAll(Collection<? extends Runnable> tasks) {
+        Runnable[] batch = tasks.toArray(new Runnable[0]);
+        for (Runnable task : batch) {
+            if (task == null) {
+                throw new NullPointerException();
+            }
+        }
+        if (batch.length == 0) {
+            return;
+        }
+        if (batch.length == 1) {
+            execute(batch[0]);
+            return;
+        }
+
+        if (!isRunning(ctl.get())) {
+            forEach(batch, 0, this::reject);
+            return;
+        }
+
+        if (mode == ExecutionMode.PARTITIONED) {
+            // 每个车道只有一个消费者，不能把整批任务交给多个线程共同认领
+            forEach(batch, 0, this::execute);
+            return;
+        }
+
+        if (mode == ExecutionMode.WORK_STEALING
+                && Thread.currentThread() instanceof Worker w && w.owner() == this) {
+            // 工作线程内部的批量提交全部进入本地队列，由空闲线程来窃取；整批共用一个上下文快照
+            ContextSnapshot context = ContextSnapshot.capture(taskDecorators);
+            for (Runnable task : batch) {
+                w.localQueue.push(context == null ? task : new WrappedTask(task, 0L, context));
+            }
+            signalWork();
+            return;
+        }
+
+        long enqueuedAt = timingEnabled ? System.nanoTime() : 0L;
+        ContextSnapshot context = ContextSnapshot.capture(taskDecorators);
+        if (mode == ExecutionMode.VIRTUAL_THREAD) {
+            // 一次CAS占用多个名额，每个虚拟线程都从同一个批次中认领任务，不经过队列
+            int granted = tryAcquireVirtualSlots(batch.length);
+            if (granted > 0) {
+                BatchTask batchTask = new BatchTask(batch, enqueuedAt, context);
+                for (int i = 0; i < granted; i++) {
+                    startVirtualWorker(batchTask);
+                }
+                return;
+            }
+        }
+
+        // 需要帮忙的线程数：不超过任务数，也不超过当前线程数（至少1个）；虚拟线程模式下由接力的虚拟线程认领，放一份即可
+        int helpers = mode == ExecutionMode.VIRTUAL_THREAD
+                ? 1 : Math.min(batch.length, Math.max(workerCountOf(ctl.get()), 1));
+        // 按子任务数占用队列容量（BatchTask自己占的位置也算上），放不下的部分逐个走execute：扩容或者拒绝，和单个提交一样
+        int room = taskQueue.remainingCapacity() - batchedTaskCount.get() - helpers;
+        int accepted = Math.clamp(room, 0, batch.length);
+        if (accepted < 2) {
+            forEach(batch, 0, this::execute);
+            return;
+        }
+
+        helpers = Math.min(helpers, accepted);
+        BatchTask batchTask = new BatchTask(
+                accepted == batch.length ? batch : Arrays.copyOf(batch, accepted), enqueuedAt, context);
+        int enqueued = 0;
+        while (enqueued < helpers && taskQueue.offer(batchTask)) {
+            enqueued++;
+            signalWork();
+        }
+
+        RuntimeException failure = null;
+        try {
+            if (enqueued == 0) {
+                // 和其他提交者竞争，队列已经满了：尝试创建一个非核心线程，整批作为它的第一个任务
+                if (mode == ExecutionMode.VIRTUAL_THREAD || !addWorker(batchTask, false)) {
+                    batchTask.drainRemaining(this::reject);
+                }
+            } else if (!isRunning(ctl.get())) {
+                // 入队之后再检查一次，同execute：入队期间线程池被关闭了，撤回还没有被认领的任务并拒绝
+                while (taskQueue.remove(batchTask)) {
+                    // 撤回所有副本
+                }
+                batchTask.drainRemaining(this::reject);
+            } else if (mode == ExecutionMode.VIRTUAL_THREAD) {
+                if (tryAcquireVirtualSlot(true)) {
+                    startVirtualWorker(null);
+                }
+            } else if (workerCountOf(ctl.get()) == 0) {
+                addWorker(null, false); // 同execute
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        try {
+            forEach(batch, accepted, this::execute);
+        } catch (RuntimeException e) {
+            failure = addFailure(failure, e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 对tasks[from..]逐个调用action，其中某个任务抛出异常（例如拒绝策略是AbortRejectPolicy）时，
+     * 剩下的任务照样处理，不能既没执行也没被拒绝；全部处理完再抛出第一个异常
+     */
+    private static void forEach(Runnable[] tasks, int from, Consumer<Runnable> action) {
+        RuntimeException failure = null;
+        for (int i = from; i < tasks.length; i++) {
+            try {
+                action.accept(tasks[i]);
+            } catch (RuntimeException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static RuntimeException addFailure(RuntimeException first, RuntimeException e) {
+        if (first == null) {
+            return e;
+        }
+        first.addSuppressed(e);
+        return first;
+    }
+
+    /**
+     * 提交一个有返回值的任务
+     * @return 可以获取结果、取消任务，也可以转成CompletableFuture的句柄
+     */
+    public <T> MyFutureTask<T> submit(Callable<T> task) {
+        MyFutureTask<T> future = new MyFutureTask<>(task);
+        execute(future);
+        return future;
+    }
+
+    /**
+     * 执行一个分治任务并等待结果
+     * 在本线程池的工作线程中调用时直接在当前线程中计算；否则提交到线程池，调用者阻塞等待
+     */
+    public <V> V invoke(MyRecursiveTask<V> task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        if (currentPool() == this) {
+            return task.invoke();
+        }
+        execute(task);
+        return task.join();
+    }
+
+    /**
+     * @return 当前线程所属的线程池；当前线程既不是平台工作线程，也不是虚拟线程模式下的虚拟线程时返回null
+     */
+    static MyThreadPoolExecutor currentPool() {
+        return Thread.currentThread() instanceof MyThreadPoolExecutor.Worker w ? w.owner() : VIRTUAL_WORKER_OWNER.get();
+    }
+
+    /**
+     * 工作线程在join一个尚未完成的任务时调用，帮忙执行任务，而不是占着线程干等
+     * 1. 工作窃取模式下，先从本地队列弹出任务执行：fork之后压入的子任务先完成，通常紧接着就弹出要join的任务本身
+     * 2. 任务还没有被任何线程认领（仍在共享队列中，或者已经弹出的任务里没有它），直接在当前线程执行，
+     *    队列中剩下的那一份之后被取出时会因为状态不是NEW而直接返回
+     * 3. 任务已经被其他线程窃取并正在执行，工作窃取模式下继续从其他线程的本地队列窃取任务来做（窃取者fork出的子任务就在那里），
+     *    窃取不到时短暂等待后再试；其他模式下由调用者阻塞等待，正在执行它的线程一定会把它做完
+     * 虚拟线程模式下没有本地队列，只做第2步：名额全被join的父任务占满时，子任务还在队列中，由父任务自己执行
+     * 因为每一层join都会先把自己的子任务做完或者交给正在执行的线程，父任务不会因为等待子任务而把线程池耗尽
+     */
+    void helpJoin(MyFutureTask<?> task) {
+        if (currentPool() != this) {
+            return;
+        }
+        if (!(Thread.currentThread() instanceof MyThreadPoolExecutor.Worker w)) {
+            if (!task.isDone()) {
+                task.run();
+            }
+            return;
+        }
+
+        if (mode == ExecutionMode.WORK_STEALING) {
+            while (!task.isDone()) {
+                Runnable next = w.localQueue.pop();
+                if (next == null) {
+                    break;
+                }
+                runHelping(next);
+            }
+        }
+
+        if (!task.isDone()) {
+            task.run();
+        }
+
+        if (mode != ExecutionMode.WORK_STEALING) {
+            return;
+        }
+
+        boolean interrupted = false;
+        int misses = 0;
+        while (!task.isDone()) {
+            Runnable next = w.steal();
+            if (next != null) {
+                runHelping(next);
+                misses = 0;
+            } else if (++misses < HELP_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                try {
+                    task.get(HELP_PARK_NANOS, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException | ExecutionException | CancellationException e) {
+                    // 超时后回到循环开头再窃取一次；其余两种说明任务已经完成
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                misses = 0;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * join期间帮忙执行的任务抛出的异常不能传播给正在join的任务
+     */
+    private void runHelping(Runnable task) {
+        try {
+            runTask(task);
+        } catch (Throwable ex) {
+            log.error("Task {} threw while helping a join", unwrap(task), ex);
+        }
+    }
+
+    /**
+     * 批量执行Callable，等待全部完成后返回对应的Future列表
+     * 提交被拒绝或者等待时被中断，调用者拿不到任何Future，所以抛出异常前取消所有尚未完成的任务（同AbstractExecutorService.invokeAll）
+     */
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        List<MyFutureTask<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(new MyFutureTask<>(task));
+        }
+
+        boolean done = false;
+        try {
+            executeAll(futures);
+
+            for (Future<T> future : futures) {
+                if (!future.isDone()) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException | CancellationException ignored) {
+                        // 异常会保存在对应的Future中，由调用者自行处理
+                    }
+                }
+            }
+            done = true;
+            return new ArrayList<>(futures);
+        } finally {
+            if (!done) {
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * 批量执行Callable，返回最先成功完成的那个结果，其余任务被取消
+     */
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+        if (tasks.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+
+        BlockingQueue<Future<T>> completed = new LinkedBlockingQueue<>();
+        List<MyFutureTask<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(new MyFutureTask<>(task) {
+                @Override
+                protected void done() {
+                    completed.offer(this);
+                }
+            });
+        }
+
+        try {
+            executeAll(futures);
+
+            ExecutionException lastException = null;
+            for (int i = 0; i < futures.size(); i++) {
+                Future<T> future = completed.take();
+                try {
+                    return future.get();
+                } catch (ExecutionException e) {
+                    lastException = e;
+                } catch (CancellationException e) {
+                    lastException = new ExecutionException(e);
+                }
+            }
+            throw lastException;
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 延迟执行一次
+     */
+    public MyScheduledFutureTask<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        if (command == null || unit == null) {
+            throw new NullPointerException();
+        }
+
+        return schedule(Executors.callable(command), delay, unit);
+    }
+
+    public <V> MyScheduledFutureTask<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        if (callable == null || unit == null) {
+            throw new NullPointerException();
+        }
+
+        MyScheduledFutureTask<V> task = new MyScheduledFutureTask<>(this, callable, triggerTime(delay, unit), 0);
+        delayedExecute(task);
+        return task;
+    }
+
+    /**
+     * 固定频率：第n次在initialDelay + n * period时执行，上一次执行超时则下一次顺延，不会并发执行
+     */
+    public MyScheduledFutureTask<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (command == null || unit == null) {
+            throw new NullPointerException();
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        MyScheduledFutureTask<Void> task = new MyScheduledFutureTask<>(
+                this, Executors.callable(command, null), triggerTime(initialDelay, unit), unit.toNanos(period));
+        delayedExecute(task);
+        return task;
+    }
+
+    /**
+     * 固定延迟：上一次执行结束后再等待delay
+     */
+    public MyScheduledFutureTask<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (command == null || unit == null) {
+            throw new NullPointerException();
+        }
+        if (delay <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        MyScheduledFutureTask<Void> task = new MyScheduledFutureTask<>(
+                this, Executors.callable(command, null), triggerTime(initialDelay, unit), -unit.toNanos(delay));
+        delayedExecute(task);
+        return task;
+    }
+
+    private static long triggerTime(long delay, TimeUnit unit) {
+        return System.nanoTime() + unit.toNanos(Math.max(delay, 0L));
+    }
+
+    /**
+     * 放进时间轮，到期后由时间轮把同一个tick中到期的任务一起交给executeAll
+     */
+    private void delayedExecute(MyScheduledFutureTask<?> task) {
+        if (!isRunning(ctl.get())) {
+            reject(task);
+            return;
+        }
+
+        // 到期时由时间轮线程提交，那时已经拿不到调用者的上下文了，在这里捕获；周期任务每次执行都复用这一份
+        task.setContext(ContextSnapshot.capture(taskDecorators));
+        enqueueDelayed(task);
+    }
+
+    /**
+     * 周期任务执行完毕后重新放回时间轮；线程池已关闭时直接取消，不走拒绝策略
+     */
+    void reExecutePeriodic(MyScheduledFutureTask<?> task) {
+        if (!isRunning(ctl.get())) {
+            task.cancel(false);
+            return;
+        }
+
+        enqueueDelayed(task);
+    }
+
+    private void enqueueDelayed(MyScheduledFutureTask<?> task) {
+        TimingWheel.Timeout timeout = timingWheel().schedule(task, task.time());
+        task.setTimeout(timeout);
+        // 设置句柄之前任务可能已经被取消，此时cancel读到的是旧句柄，需要在这里补一次
+        if (task.isCancelled()) {
+            timeout.cancel();
+        }
+        // 入轮之后再检查一次：期间线程池被关闭，时间轮可能已经停止，不会再触发这个任务
+        if (!isRunning(ctl.get())) {
+            task.cancel(false);
+        }
+    }
+
+    private TimingWheel timingWheel() {
+        TimingWheel w = timingWheel;
+        if (w == null) {
+            synchronized (lock) {
+                if ((w = timingWheel) == null) {
+                    w = new TimingWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, this::executeAll, "timing-wheel");
+                    w.start();
+                    timingWheel = w;
+                }
+            }
+        }
+        return w;
+    }
+
+    /**
+     * 停止时间轮，返回尚未到期的定时任务
+     */
+    private List<Runnable> stopTimingWheel() {
+        TimingWheel w = timingWheel;
+        return w == null ? List.of() : w.stop();
+    }
+
+    /**
+     * 一批任务，被多个工作线程共享
+     * 每个取到它的线程都用同一个游标认领下一个任务，直到整批认领完毕
+     * 创建时把全部子任务计入batchedTaskCount，每认领一个减一
+     */
+    private final class BatchTask implements Runnable {
+        private final Runnable[] tasks;
+        private final long enqueuedAt; // 整批共用一个入队时间
+        private final ContextSnapshot context; // 整批共用一个上下文快照
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        BatchTask(Runnable[] tasks, long enqueuedAt, ContextSnapshot context) {
+            this.tasks = tasks;
+            this.enqueuedAt = enqueuedAt;
+            this.context = context;
+            batchedTaskCount.addAndGet(tasks.length);
+        }
+
+        @Override
+        public void run() {
+            int i;
+            while ((i = claim()) >= 0) {
+                Runnable task = tasks[i];
+                tasks[i] = null; // 认领后释放引用
+                boolean completed = false;
+                try {
+                    runTask(task, enqueuedAt, context);
+                    completed = true;
+                } finally {
+                    // 任务抛出异常会让当前线程退出，剩余的任务重新入队交给其他线程
+                    // 队列已满时由当前线程执行完再退出，不能在工作线程中调用拒绝策略
+                    if (!completed && isUnclaimed() && !taskQueue.offer(this)) {
+                        runRemaining();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return 认领到的下标，整批已经认领完时返回-1
+         */
+        private int claim() {
+            int i = cursor.getAndIncrement();
+            if (i < tasks.length) {
+                batchedTaskCount.decrementAndGet();
+                return i;
+            }
+            return -1;
+        }
+
+        private void runRemaining() {
+            int i;
+            while ((i = claim()) >= 0) {
+                Runnable task = tasks[i];
+                tasks[i] = null;
+                try {
+                    runTask(task, enqueuedAt, context);
+                } catch (Throwable ex) {
+                    log.warn("{} failed a batched task while finishing its batch: {}",
+                            Thread.currentThread().getName(), ex.toString());
+                }
+            }
+        }
+
+        boolean isUnclaimed() {
+            return cursor.get() < tasks.length;
+        }
+
+        /**
+         * 认领剩余的全部任务，交给consumer处理（拒绝或者收集）
+         * consumer对某个任务抛出异常时，剩下的任务照样交给它，最后再抛出第一个异常
+         */
+        void drainRemaining(Consumer<Runnable> consumer) {
+            RuntimeException failure = null;
+            int i;
+            while ((i = claim()) >= 0) {
+                Runnable task = tasks[i];
+                tasks[i] = null;
+                try {
+                    consumer.accept(task);
+                } catch (RuntimeException e) {
+                    failure = addFailure(failure, e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * 虚拟线程模式的提交逻辑
+     * ctl中的工作线程数量在这里相当于一个信号量：占到名额就直接开一个虚拟线程，占不到就排队
+     */
+    private void executeVirtual(Runnable task) {
+        if (tryAcquireVirtualSlot(false)) {
+            startVirtualWorker(task);
+            return;
+        }
+
+        // 并发数已达上限，任务进入队列，由正在运行的虚拟线程在完成手头任务后接力执行
+        if (!offerTask(task)) {
+            reject(task);
+            return;
+        }
+
+        // 入队之后再检查一次：如果这期间有虚拟线程归还了名额并退出，队列中的任务就没人处理了
+        if (tryAcquireVirtualSlot(true)) {
+            startVirtualWorker(null);
+        }
+    }
+
+    /**
+     * 在ctl上CAS占用一个虚拟线程名额
+     * @param forQueuedTask 是否是为了处理队列中已有的任务，SHUTDOWN状态下仍允许为排空队列占用名额
+     */
+    private boolean tryAcquireVirtualSlot(boolean forQueuedTask) {
+        for (;;) {
+            int c = ctl.get();
+            if (runStateAtLeast(c, STOP) || (!forQueuedTask && runStateAtLeast(c, SHUTDOWN))) {
+                return false;
+            }
+            if (workerCountOf(c) >= maxSize) {
+                return false;
+            }
+            if (ctl.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 一次CAS占用最多wanted个虚拟线程名额
+     * @return 实际占到的名额数
+     */
+    private int tryAcquireVirtualSlots(int wanted) {
+        for (;;) {
+            int c = ctl.get();
+            if (runStateAtLeast(c, SHUTDOWN)) {
+                return 0;
+            }
+            int granted = Math.min(wanted, maxSize - workerCountOf(c));
+            if (granted <= 0) {
+                return 0;
+            }
+            if (ctl.compareAndSet(c, c + granted)) {
+                return granted;
+            }
+        }
+    }
+
+    private void startVirtualWorker(Runnable firstTask) {
+        virtualThreadFactory.newThread(() -> runVirtualWorker(firstTask)).start();
+    }
+
+    /**
+     * 虚拟线程的执行逻辑：先执行firstTask，再接力执行队列中的任务，队列空了就归还名额并退出
+     */
+    private void runVirtualWorker(Runnable firstTask) {
+        Runnable task = firstTask;
+        boolean holdingSlot = true;
+        Thread self = Thread.currentThread();
+        virtualWorkers.add(self);
+        VIRTUAL_WORKER_OWNER.set(this);
+        // 登记之后再检查一次，避免shutdownNow在登记之前完成了中断
+        if (runStateAtLeast(ctl.get(), STOP)) {
+            self.interrupt();
+        }
+        try {
+            for (;;) {
+                if (task == null && !runStateAtLeast(ctl.get(), STOP)) {
+                    task = taskQueue.poll();
+                }
+                if (task != null) {
+                    runTask(task);
+                    task = null;
+                    continue;
+                }
+
+                // 队列已空，归还名额
+                holdingSlot = false;
+                ctl.decrementAndGet();
+
+                // 归还之后复查：名额被占满时入队的任务，可能恰好没有被任何虚拟线程看到
+                if (taskQueue.isEmpty() || !tryAcquireVirtualSlot(true)) {
+                    break;
+                }
+                holdingSlot = true;
+            }
+        } finally {
+            if (holdingSlot) { // 任务抛出了异常
+                ctl.decrementAndGet();
+                if (!taskQueue.isEmpty() && tryAcquireVirtualSlot(true)) {
+                    startVirtualWorker(null);
+                }
+            }
+            VIRTUAL_WORKER_OWNER.remove();
+            virtualWorkers.remove(self);
+            tryTerminate();
+        }
+    }
+
+    /**
+     * 创建工作线程
+     * 快路径：在ctl上CAS递增工作线程数量，相当于先“占一个名额”，无需加锁
+     * 慢路径：名额占到之后，才加锁把Worker登记到workers集合中
+     * @param firstTask 新线程直接执行的第一个任务，不经过任务队列；为null时新线程直接从队列取任务
+     * @param isCore 是否为核心线程
+     * @return 是否成功创建；返回false时firstTask没有被接收，由调用者处理
+     */
+    private boolean addWorker(Runnable firstTask, boolean isCore) {
+        for (;;) {
+            int c = ctl.get();
+            // 已关闭时不再接收新任务，只允许为了排空队列而补充线程
+            if (runStateAtLeast(c, STOP)
+                    || (runStateAtLeast(c, SHUTDOWN) && (firstTask != null || !hasQueuedTasks()))) {
+                return false;
+            }
+            if (workerCountOf(c) >= (isCore ? coreSize : maxSize)) {
+                return false;
+            }
+            if (ctl.compareAndSet(c, c + 1)) {
+                break;
+            }
+            // CAS失败说明有其他线程修改了ctl，重新读取后重试
+        }
+
+        // 线程是否“核心”只取决于当前线程总数是否超过coreSize，名字只是创建时的身份，方便观察日志
+        Worker worker;
+        if (isCore) {
+            worker = new Worker("core-worker-" + workerSeq.getAndIncrement(), firstTask);
+        } else {
+            worker = new Worker("non-core-worker-" + workerSeq.getAndIncrement(), firstTask);
+        }
+        synchronized (lock) {
+            // 占位和登记之间线程池可能被强制关闭，此时放弃创建
+            // 分区模式下认领一个没有消费者的车道（退出的线程会先释放自己的车道）
+            if (runStateAtLeast(ctl.get(), STOP)
+                    || (mode == ExecutionMode.PARTITIONED && !claimPartition(worker))) {
+                ctl.decrementAndGet();
+                tryTerminate();
+                return false;
+            }
+            workers.add(worker);
+            refreshStealTargets();
+        }
+
+        worker.start();
+        return true;
+    }
+
+    /**
+     * 重新生成窃取目标快照，必须在持有lock时调用
+     */
+    private void refreshStealTargets() {
+        if (mode == ExecutionMode.WORK_STEALING) {
+            stealTargets = workers.toArray(new Worker[0]);
+        }
+    }
+
+    /**
+     * 工作窃取模式下，有新任务时唤醒一个正在park的空闲线程
+     * 没有空闲线程时只有一次volatile读，开销可以忽略
+     */
+    private void signalWork() {
+        if (mode != ExecutionMode.WORK_STEALING || idleCount.get() == 0) {
+            return;
+        }
+
+        for (Worker w : stealTargets) {
+            if (w.tryClearIdle()) {
+                LockSupport.unpark(w);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 唤醒所有正在park的空闲线程，让它们重新检查线程池状态
+     */
+    private void signalAllIdle() {
+        if (mode != ExecutionMode.WORK_STEALING) {
+            return;
+        }
+
+        for (Worker w : stealTargets) {
+            if (w.tryClearIdle()) {
+                LockSupport.unpark(w);
+            }
+        }
+    }
+
+    /**
+     * 工作线程退出：加锁从workers中移除
+     * 正常退出时getTask已经在ctl上递减了工作线程数量，只有因任务异常退出时才需要在这里递减
+     */
+    private void processWorkerExit(Worker worker, boolean completedAbruptly) {
+        if (completedAbruptly) {
+            ctl.decrementAndGet();
+        }
+        if (worker.localQueue != null) {
+            // 必须在从workers中移除之前转移，否则在tryTerminate看来任务已经全部完成
+            handOffLocalTasks(worker);
+        }
+        synchronized (lock) {
+            workers.remove(worker);
+            refreshStealTargets();
+            if (worker.partition != null) {
+                worker.partition.owner = null; // 释放车道，由补充的线程接手其中剩余的任务
+            }
+        }
+
+        tryTerminate();
+
+        int c = ctl.get();
+        if (runStateAtLeast(c, STOP)) {
+            return;
+        }
+        if (!completedAbruptly) {
+            // 正常退出：只要线程数还不低于coreSize（队列非空时至少保留一个）就不用补充
+            int min = coreSize;
+            if (min == 0 && hasQueuedTasks()) {
+                min = 1;
+            }
+            if (workerCountOf(c) >= min) {
+                return;
+            }
+        }
+        // 任务抛出异常导致线程退出，或者线程数低于coreSize，补充一个工作线程
+        addWorker(null, false);
+    }
+
+    /**
+     * 工作窃取模式下，退出的线程把本地队列中剩余的任务转移到共享队列，交给其他线程
+     * 正常退出时本地队列已经是空的（只有拥有者自己会往里放任务），需要转移的只有任务抛出异常、线程提前退出的情况
+     * 共享队列已满时由当前线程自己执行：这时已经不能交给拒绝策略了，拒绝策略是给提交者用的
+     * STOP之后不再转移，剩余的任务由shutdownNow从本地队列中窃取出来返回给调用者
+     */
+    private void handOffLocalTasks(Worker worker) {
+        Runnable task;
+        while (!runStateAtLeast(ctl.get(), STOP) && (task = worker.localQueue.pop()) != null) {
+            if (taskQueue.offer(task)) {
+                signalWork();
+                continue;
+            }
+            try {
+                runTask(task);
+            } catch (Throwable ex) {
+                log.warn("{} failed a task while handing off its local queue: {}", worker.getName(), ex.toString());
+            }
+        }
+    }
+
+    private void interruptIdleWorkers() {
+        interruptIdleWorkers(false);
+    }
+
+    /**
+     * 中断空闲的工作线程，让它们重新检查线程池状态和线程数量上限
+     * 正在执行任务的线程持有自己的lockState，tryLock失败就跳过，不会误伤正在执行的任务
+     * @param onlyOne 只中断一个，用于在tryTerminate中接力传递关闭信号
+     */
+    private void interruptIdleWorkers(boolean onlyOne) {
+        synchronized (lock) {
+            for (Worker w : workers) {
+                if (!w.isInterrupted() && w.tryLock()) {
+                    try {
+                        w.interrupt();
+                    } finally {
+                        w.unlock();
+                    }
+                }
+                if (onlyOne) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 中断所有工作线程，包括正在执行任务的线程和虚拟线程，只在shutdownNow中使用
+     */
+    private void interruptWorkers() {
+        synchronized (lock) {
+            for (Worker w : workers) {
+                w.interrupt();
+            }
+        }
+        for (Thread t : virtualWorkers) {
+            t.interrupt();
+        }
+    }
+
+    public int getCorePoolSize() {
+        return coreSize;
+    }
+
+    /**
+     * 运行时调整核心线程数
+     * 调大：立即补齐新增的核心线程
+     * 调小：中断空闲线程，多出来的线程会改为限时等待，空闲超过keepAliveTime后退出
+     */
+    public void setCorePoolSize(int corePoolSize) {
+        if (corePoolSize < 0 || corePoolSize > maxSize) {
+            throw new IllegalArgumentException();
+        }
+        if (mode == ExecutionMode.PARTITIONED) {
+            throw new IllegalStateException("Partition count is fixed");
+        }
+
+        int delta = corePoolSize - this.coreSize;
+        this.coreSize = corePoolSize;
+        if (mode == ExecutionMode.VIRTUAL_THREAD) {
+            return;
+        }
+
+        if (workerCountOf(ctl.get()) > corePoolSize) {
+            interruptIdleWorkers();
+        } else if (delta > 0) {
+            while (delta-- > 0 && addWorker(null, true)) {
+                // 逐个补齐，addWorker在达到coreSize时返回false
+            }
+        }
+    }
+
+    public int getMaximumPoolSize() {
+        return maxSize;
+    }
+
+    /**
+     * 运行时调整最大线程数（虚拟线程模式下即最大并发数）
+     * 调小时，多出来的空闲线程会被中断并退出，正在执行任务的线程在任务完成后退出
+     */
+    public void setMaximumPoolSize(int maximumPoolSize) {
+        if (maximumPoolSize <= 0 || maximumPoolSize < coreSize || maximumPoolSize > COUNT_MASK) {
+            throw new IllegalArgumentException();
+        }
+        if (mode == ExecutionMode.PARTITIONED) {
+            throw new IllegalStateException("Partition count is fixed");
+        }
+
+        this.maxSize = maximumPoolSize;
+        if (mode != ExecutionMode.VIRTUAL_THREAD && workerCountOf(ctl.get()) > maximumPoolSize) {
+            interruptIdleWorkers();
+        }
+    }
+
+    public long getKeepAliveTime(TimeUnit unit) {
+        return unit.convert(keepAliveNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void setKeepAliveTime(long time, TimeUnit unit) {
+        if (time < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        long keepAliveNanos = unit.toNanos(time);
+        long delta = keepAliveNanos - this.keepAliveNanos;
+        this.keepAliveNanos = keepAliveNanos;
+        if (delta < 0) {
+            interruptIdleWorkers(); // 让正在限时等待的线程按新的时间重新等待
+        }
+    }
+
+    /**
+     * 尝试把线程池推进到终止状态
+     * 条件：已关闭且队列为空（或已强制关闭），并且工作线程数量为0
+     */
+    private void tryTerminate() {
+        for (;;) {
+            int c = ctl.get();
+            if (isRunning(c) || runStateAtLeast(c, TIDYING)
+                    || (runStateOf(c) == SHUTDOWN && hasQueuedTasks())) {
+                return;
+            }
+            if (workerCountOf(c) != 0) {
+                // 关闭时队列还没排空，空闲线程被中断后又阻塞回了take()
+                // 每退出一个线程就中断一个空闲线程，把关闭信号接力传下去，直到所有线程退出
+                interruptIdleWorkers(true);
+                return;
+            }
+
+            if (ctl.compareAndSet(c, ctlOf(TIDYING, 0))) {
+                synchronized (lock) {
+                    ctl.set(ctlOf(TERMINATED, 0));
+                    lock.notifyAll(); // 唤醒在awaitTermination中等待的线程
+                }
+                log.info("Thread pool has been fully terminated.");
+                return;
+            }
+        }
+    }
+
+    /**
+     * 用CAS把运行状态推进到targetState，工作线程数量保持不变
+     * 状态只能往后推进，不能回退
+     */
+    private void advanceRunState(int targetState) {
+        for (;;) {
+            int c = ctl.get();
+            if (runStateAtLeast(c, targetState)
+                    || ctl.compareAndSet(c, ctlOf(targetState, workerCountOf(c)))) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 已经在队列中的任务会继续执行，尚未到期的定时任务直接取消
+     */
+    public void shutdown() {
+        log.info("Thread pool shutting down...");
+        advanceRunState(SHUTDOWN);
+        for (Runnable delayed : stopTimingWheel()) {
+            ((Future<?>) delayed).cancel(false);
+        }
+        interruptIdleWorkers(); // 阻塞在take()/poll()中的空闲线程醒来后发现已关闭，排空队列后退出
+        signalAllIdle();
+        tryTerminate();
+    }
+
+    public List<Runnable> shutdownNow() {
+        log.info("Thread pool force shutting down...");
+        advanceRunState(STOP);
+        interruptWorkers(); // 正在执行的任务也会收到中断
+
+        List<Runnable> remainingTasks = new ArrayList<>();
+        List<Runnable> drained = new ArrayList<>();
+        taskQueue.drainTo(drained); // 获取全部未处理的任务
+        for (Runnable task : drained) {
+            if (task instanceof BatchTask batchTask) {
+                batchTask.drainRemaining(remainingTasks::add); // 批量任务拆开返回
+            } else {
+                remainingTasks.add(unwrap(task));
+            }
+        }
+        remainingTasks.addAll(stopTimingWheel()); // 尚未到期的定时任务
+        if (partitions != null) {
+            for (Partition partition : partitions) {
+                Runnable task;
+                while ((task = partition.poll()) != null) {
+                    remainingTasks.add(unwrap(task));
+                }
+            }
+        }
+        for (Worker w : stealTargets) { // 工作窃取模式下，本地队列中的任务也要取出
+            Runnable task;
+            while ((task = w.localQueue.steal()) != null) {
+                remainingTasks.add(unwrap(task));
+            }
+        }
+        signalAllIdle();
+        tryTerminate();
+        return remainingTasks;
+    }
+
+    public boolean isShutdown() {
+        return !isRunning(ctl.get());
+    }
+
+    public boolean isTerminated() {
+        return runStateAtLeast(ctl.get(), TERMINATED);
+    }
+
+    public int getPoolSize() {
+        return workerCountOf(ctl.get());
+    }
+
+    public int getActiveCount() {
+        return (int) activeCount.sum();
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTaskCount.sum();
+    }
+
+    /**
+     * 因超过截止时间而在出队后被丢弃的任务数，这些任务不经过拒绝策略，也不计入getRejectedTaskCount
+     */
+    public long getExpiredTaskCount() {
+        return expiredTaskCount.sum();
+    }
+
+    /**
+     * 出队时被拒绝策略的shouldShed丢弃的任务数，这些任务不经过rejectedExecution，也不计入getRejectedTaskCount
+     */
+    public long getShedTaskCount() {
+        return shedTaskCount.sum();
+    }
+
+    public long getRejectedTaskCount() {
+        return rejectedTaskCount.sum();
+    }
+
+    /**
+     * 包括尚未被认领的批量子任务；批量任务在taskQueue中的引用本身也计入，所以有批量任务时略微偏大
+     */
+    public int getQueueDepth() {
+        int depth = taskQueue.size() + batchedTaskCount.get();
+        if (partitions != null) {
+            for (Partition partition : partitions) {
+                depth += partition.depth();
+            }
+        }
+        return depth;
+    }
+
+    public void setTimingEnabled(boolean timingEnabled) {
+        this.timingEnabled = timingEnabled;
+    }
+
+    public boolean isTimingEnabled() {
+        return timingEnabled;
+    }
+
+    /**
+     * 在装饰器链的末尾添加一个装饰器，之后提交的任务才会捕获它的上下文
+     */
+    @SuppressWarnings("unchecked")
+    public void addTaskDecorator(TaskDecorator<?> decorator) {
+        if (decorator == null) {
+            throw new NullPointerException();
+        }
+
+        synchronized (lock) {
+            TaskDecorator<Object>[] current = taskDecorators;
+            TaskDecorator<Object>[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = (TaskDecorator<Object>) decorator;
+            taskDecorators = next;
+        }
+    }
+
+    /**
+     * 已经提交的任务仍然按提交时的装饰器链恢复上下文
+     * @return 装饰器是否在链中
+     */
+    public boolean removeTaskDecorator(TaskDecorator<?> decorator) {
+        synchronized (lock) {
+            TaskDecorator<Object>[] current = taskDecorators;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == decorator) {
+                    TaskDecorator<Object>[] next = Arrays.copyOf(current, current.length - 1);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    taskDecorators = next;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param spinBudget 每次空闲时最多spin多久，之后进入阻塞等待；PARK策略下忽略
+     */
+    public void setIdleStrategy(IdleStrategy strategy, long spinBudget, TimeUnit unit) {
+        if (strategy == null) {
+            throw new NullPointerException();
+        }
+        if (spinBudget < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.spinBudgetNanos = unit.toNanos(spinBudget);
+        this.idleStrategy = strategy;
+    }
+
+    public IdleStrategy getIdleStrategy() {
+        return idleStrategy;
+    }
+
+    /**
+     * 读取当前的指标快照
+     * 所有计数器都只在读取时求和，不会给执行任务的线程带来额外的同步
+     */
+    public ThreadPoolMetrics metrics() {
+        int poolSize = getPoolSize();
+        int core = Math.min(coreSize, poolSize);
+        int active = Math.min(getActiveCount(), poolSize);
+        return new ThreadPoolMetrics(
+                getQueueDepth(),
+                poolSize,
+                core,
+                poolSize - core,
+                active,
+                poolSize - active,
+                getCompletedTaskCount(),
+                getRejectedTaskCount(),
+                queueWaitHistogram.snapshot(),
+                executionHistogram.snapshot());
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        log.info("Begin to wait...");
+        long startTime = System.nanoTime();
+        synchronized (lock) {
+            while (!isTerminated()) {
+                long elapsed = System.nanoTime() - startTime;
+                long remaining = unit.toNanos(timeout) - elapsed;
+                if (remaining <= 0) {
+                    return false;
+                }
+                lock.wait(remaining / 1000000, (int) (remaining % 1000000)); // 等待到终止
+            }
+        }
+        return true;
+    }
+
+    private class Worker extends Thread {
+
+        private final WorkStealingDeque<Runnable> localQueue; // 本地任务队列，仅工作窃取模式使用
+        private volatile boolean idle; // 是否正在park等待任务，仅工作窃取模式和分区模式使用
+        private Partition partition; // 独占的车道，仅分区模式使用，在start之前设置
+        private Runnable firstTask; // 创建时直接交给它的任务，执行前置空
+        // 0表示空闲，1表示正在执行任务（或正在被interruptIdleWorkers中断）
+        // 执行任务期间一直持有，保证只中断空闲的线程，而不会打断正在执行的任务
+        private volatile int lockState;
+
+        public Worker(String name, Runnable firstTask) {
+            super(name);
+            this.firstTask = firstTask;
+            this.localQueue = mode == ExecutionMode.WORK_STEALING ? new WorkStealingDeque<>() : null;
+        }
+
+        boolean tryLock() {
+            return WORKER_LOCK.compareAndSet(this, 0, 1);
+        }
+
+        void unlock() {
+            lockState = 0;
+        }
+
+        MyThreadPoolExecutor owner() {
+            return MyThreadPoolExecutor.this;
+        }
+
+        @Override
+        public void run() {
+            boolean completedAbruptly = true;
+            try {
+                Runnable task = firstTask;
+                firstTask = null;
+                while (task != null || (task = getTask()) != null) {
+                    while (!tryLock()) {
+                        Thread.onSpinWait(); // interruptIdleWorkers正在中断自己，很快就会释放
+                    }
+                    try {
+                        // 线程池没有STOP时，清除之前作为空闲线程被中断留下的标记，避免影响任务
+                        // 清除之后再检查一次，防止与shutdownNow竞争
+                        if ((runStateAtLeast(ctl.get(), STOP)
+                                || (Thread.interrupted() && runStateAtLeast(ctl.get(), STOP)))
+                                && !isInterrupted()) {
+                            interrupt();
+                        }
+                        runTask(task);
+                    } finally {
+                        task = null;
+                        unlock();
+                    }
+                }
+                completedAbruptly = false;
+            } finally {
+                processWorkerExit(this, completedAbruptly);
+            }
+        }
+
+        /**
+         * 获取下一个任务，返回null表示当前工作线程应当退出
+         */
+        private Runnable getTask() {
+            if (mode == ExecutionMode.WORK_STEALING) {
+                return getTaskStealing();
+            }
+            if (mode == ExecutionMode.PARTITIONED) {
+                return getTaskPartitioned();
+            }
+
+            boolean timedOut = false; // 上一次限时等待是否超时
+            for (;;) {
+                int c = ctl.get();
+                // 工作线程销毁逻辑：强制关闭，或者已关闭且任务队列为空
+                if (runStateAtLeast(c, STOP)
+                        || (runStateAtLeast(c, SHUTDOWN) && taskQueue.isEmpty())) {
+                    ctl.decrementAndGet();
+                    log.info("{} exited due to shutdown and empty queue", this.getName());
+                    return null;
+                }
+
+                // 线程总数超过coreSize时，当前线程按非核心线程对待：最多等待keepAliveTime，然后退出
+                // 线程总数超过maxSize（被调小了）时，直接退出
+                int wc = workerCountOf(c);
+                boolean timed = wc > coreSize;
+                if ((wc > maxSize || (timed && timedOut)) && (wc > 1 || taskQueue.isEmpty())) {
+                    // 用CAS递减，多个线程同时超时也不会减到coreSize以下
+                    if (ctl.compareAndSet(c, c - 1)) {
+                        log.info("{} exited due to idle timeout", this.getName());
+                        return null;
+                    }
+                    continue;
+                }
+
+                Runnable task = spin();
+                if (task != null) {
+                    return task;
+                }
+
+                try {
+                    task = timed
+                            ? taskQueue.poll(keepAliveNanos, TimeUnit.NANOSECONDS)
+                            : taskQueue.take(); // 核心线程，一直阻塞地等待任务
+                    if (task != null) {
+                        return task;
+                    }
+                    timedOut = true;
+                } catch (InterruptedException e) {
+                    // 被interruptIdleWorkers中断，回到循环开头重新检查线程池状态和线程数量
+                    timedOut = false;
+                }
+            }
+        }
+
+        /**
+         * 工作窃取模式下获取任务
+         * 顺序：本地队列（LIFO） → 共享taskQueue → 从其他工作线程的本地队列窃取（FIFO） → park
+         */
+        private Runnable getTaskStealing() {
+            boolean timedOut = false;
+            for (;;) {
+                int c = ctl.get();
+                if (runStateAtLeast(c, STOP)) {
+                    ctl.decrementAndGet();
+                    log.info("{} exited due to shutdown and empty queue", this.getName());
+                    return null;
+                }
+
+                Runnable task = localQueue.pop();
+                if (task == null) {
+                    task = taskQueue.poll();
+                }
+                if (task == null) {
+                    task = steal();
+                }
+                if (task != null) {
+                    return task;
+                }
+
+                if (runStateAtLeast(c, SHUTDOWN)) {
+                    // 本地队列、共享队列都已空，其余本地队列中的任务由它们的拥有者处理
+                    ctl.decrementAndGet();
+                    log.info("{} exited due to shutdown and empty queue", this.getName());
+                    return null;
+                }
+
+                int wc = workerCountOf(c);
+                boolean timed = wc > coreSize;
+                if (wc > maxSize || (timed && timedOut)) {
+                    if (ctl.compareAndSet(c, c - 1)) {
+                        log.info("{} exited due to idle timeout", this.getName());
+                        return null;
+                    }
+                    continue;
+                }
+
+                task = spin();
+                if (task != null) {
+                    return task;
+                }
+
+                // 先登记为空闲，再复查一遍，避免与signalWork之间丢失唤醒
+                idle = true;
+                idleCount.incrementAndGet();
+                if (!taskQueue.isEmpty() || hasStealableWork() || runStateAtLeast(ctl.get(), SHUTDOWN)) {
+                    tryClearIdle();
+                    continue;
+                }
+
+                long parkStart = System.nanoTime();
+                if (timed) {
+                    LockSupport.parkNanos(this, keepAliveNanos);
+                } else {
+                    LockSupport.park(this);
+                }
+                // tryClearIdle失败说明是被signalWork唤醒的，不算超时
+                boolean signalled = !tryClearIdle();
+                Thread.interrupted(); // park会因中断返回，清除中断标记后回到循环开头重新检查
+                timedOut = timed && !signalled && System.nanoTime() - parkStart >= keepAliveNanos;
+            }
+        }
+
+        /**
+         * 进入阻塞等待之前，按空闲策略在spin预算内反复尝试取任务
+         * @return 取到的任务；预算耗尽或线程池已关闭时返回null，由调用者进入阻塞等待
+         */
+        private Runnable spin() {
+            IdleStrategy strategy = idleStrategy;
+            long budget = spinBudgetNanos;
+            if (strategy == IdleStrategy.PARK || budget <= 0) {
+                return null;
+            }
+
+            long deadline = System.nanoTime() + budget;
+            int backoff = 1;
+            do {
+                switch (strategy) {
+                    case SPIN_WAIT -> {
+                        for (int i = 0; i < backoff; i++) {
+                            Thread.onSpinWait();
+                        }
+                        backoff = Math.min(backoff << 1, MAX_SPIN_BACKOFF);
+                    }
+                    case YIELD -> Thread.yield();
+                    default -> { } // BUSY_SPIN
+                }
+
+                Runnable task = pollOnce();
+                if (task != null) {
+                    return task;
+                }
+                if (runStateAtLeast(ctl.get(), SHUTDOWN)) {
+                    return null;
+                }
+            } while (System.nanoTime() - deadline < 0);
+            return null;
+        }
+
+        /**
+         * 不阻塞地尝试取一次任务，来源取决于执行模式
+         */
+        private Runnable pollOnce() {
+            if (mode == ExecutionMode.PARTITIONED) {
+                return partition.poll();
+            }
+
+            Runnable task = null;
+            if (mode == ExecutionMode.WORK_STEALING) {
+                task = localQueue.pop();
+            }
+            if (task == null) {
+                task = taskQueue.poll();
+            }
+            if (task == null && mode == ExecutionMode.WORK_STEALING) {
+                task = steal();
+            }
+            return task;
+        }
+
+        /**
+         * 分区模式：只从自己的车道取任务，车道为空时park，由提交者在入队后唤醒
+         * 车道的消费者只有自己，所以同一个key的任务一定按入队顺序一个接一个执行
+         */
+        private Runnable getTaskPartitioned() {
+            for (;;) {
+                int c = ctl.get();
+                if (runStateAtLeast(c, STOP)) {
+                    ctl.decrementAndGet();
+                    log.info("{} exited due to shutdown and empty queue", this.getName());
+                    return null;
+                }
+
+                Runnable task = partition.poll();
+                if (task != null) {
+                    return task;
+                }
+
+                if (runStateAtLeast(c, SHUTDOWN)) {
+                    if (!partition.close()) {
+                        continue; // 关闭车道之前又有任务入队
+                    }
+                    ctl.decrementAndGet();
+                    log.info("{} exited due to shutdown and empty queue", this.getName());
+                    return null;
+                }
+
+                task = spin();
+                if (task != null) {
+                    return task;
+                }
+
+                // 先登记为空闲，再复查一遍，避免与executePartitioned之间丢失唤醒
+                idle = true;
+                idleCount.incrementAndGet();
+                if (partition.depth() > 0 || runStateAtLeast(ctl.get(), SHUTDOWN)) {
+                    tryClearIdle();
+                    continue;
+                }
+
+                LockSupport.park(this);
+                tryClearIdle();
+                Thread.interrupted(); // 被shutdown中断时清除标记，回到循环开头重新检查
+            }
+        }
+
+        /**
+         * 从随机位置开始扫描其他工作线程的本地队列，减少多个窃取者撞在同一个队列上
+         */
+        private Runnable steal() {
+            Worker[] targets = stealTargets;
+            int n = targets.length;
+            if (n <= 1) {
+                return null;
+            }
+
+            int start = ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; i++) {
+                Worker victim = targets[(start + i) % n];
+                if (victim != this) {
+                    Runnable task = victim.localQueue.steal();
+                    if (task != null) {
+                        return task;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private boolean hasStealableWork() {
+            for (Worker w : stealTargets) {
+                if (!w.localQueue.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 把空闲标记从true改为false，CAS成功的一方负责递减idleCount
+         * 工作线程自己和signalWork都可能调用，CAS保证只有一方成功
+         */
+        private boolean tryClearIdle() {
+            if (idle && IDLE.compareAndSet(this, true, false)) {
+                idleCount.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 以下是拒绝策略
+     * rejectedExecution只在提交路径上调用（队列已满、线程池已关闭），调用者就是提交任务的线程，任务也还没有排过队；
+     * 出队时过期或者被shouldShed丢弃的任务由工作线程计数后丢弃，不会交给这些策略
+     *
+     * 抛出异常的拒绝策略
+     */
+    public static class AbortRejectPolicy implements MyRejectedExecutionHandler {
+        public AbortRejectPolicy() { }
+
+        @Override
+        public void rejectedExecution(Runnable task, MyThreadPoolExecutor executor) {
+            throw new RuntimeException("Task " + task.toString() + " rejected");
+        }
+    }
+
+    /**
+     * 直接忽略的拒绝策略
+     */
+    public static class DiscardRejectPolicy implements MyRejectedExecutionHandler {
+        public DiscardRejectPolicy() { }
+
+        @Override
+        public void rejectedExecution(Runnable task, MyThreadPoolExecutor executor) {
+            executor.countRejected();
+        }
+    }
+
+    /**
+     * 记录日志的拒绝策略
+     */
+    public static class LogAndDropPolicy implements MyRejectedExecutionHandler {
+        public LogAndDropPolicy() { }
+
+        @Override
+        public void rejectedExecution(Runnable task, MyThreadPoolExecutor executor) {
+            executor.countRejected();
+            log.info("Task {} rejected", task.toString());
+        }
+    }
+
+    /**
+     * 由提交任务的线程自己执行的拒绝策略
+     * 提交者忙于执行任务期间无法继续提交，天然地降低了提交速度
+     * 注意：分区模式下会破坏同一个key的执行顺序
+     */
+    public static class CallerRunsPolicy implements MyRejectedExecutionHandler {
+        public CallerRunsPolicy() { }
+
+        @Override
+        public void rejectedExecution(Runnable task, MyThreadPoolExecutor executor) {
+            if (!executor.isShutdown()) {
+                task.run();
+            } else {
+                executor.countRejected();
+            }
+        }
+    }
+
+    /**
+     * 阻塞提交者直到队列出现空位的拒绝策略，最多等待timeout，超时后抛出异常
+     * 分区模式下不支持等待，直接抛出异常
+     */
+    public static class BlockWithTimeoutPolicy implements MyRejectedExecutionHandler {
+        private final long timeout;
+        private final TimeUnit unit;
+
+        public BlockWithTimeoutPolicy(long timeout, TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException();
+            }
+            this.timeout = timeout;
+            this.unit = unit;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable task, MyThreadPoolExecutor executor) {
+            try {
+                if (executor.offerWithTimeout(task, timeout, unit)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException("Task " + task.toString() + " rejected after waiting " + timeout + " " + unit);
+        }
+    }
+
+    /**
+     * 丢弃队首（最早入队）的任务，再重新提交当前任务的拒绝策略
+     * 适合只关心最新数据的场景；队首的任务已经等待最久，最可能已经失去意义
+     */
+    public static class DiscardOldestPolicy implements MyRejectedExecutionHandler {
+        public DiscardOldestPolicy() { }
+
+        @Override
+        public void rejectedExecution(Runnable task, MyThreadPoolExecutor executor) {
+            if (!executor.isShutdown() && executor.discardOldest()) {
+                executor.execute(task);
+            } else {
+                executor.countRejected();
+            }
+        }
+    }
+
+    /**
+     * CoDel风格的自适应丢弃策略（参考Nichols & Jacobson的CoDel，以及它在线程池上的常见改编）
+     * 以interval为一个窗口，统计窗口内所有任务最小的排队时间：
+     * 如果连最小的排队时间都超过了target，说明队列是长期积压的“坏队列”，而不是短暂的突发，
+     * 下一个窗口内排队时间超过2 * target的任务在出队时直接丢弃（计入getShedTaskCount），把队列压回到target附近
+     * 队列满时新任务直接丢弃
+     * 需要开启耗时统计（默认开启），否则拿不到排队时间，只会在队列满时丢弃
+     */
+    public static class CoDelPolicy implements MyRejectedExecutionHandler {
+        private final long targetNanos;
+        private final long intervalNanos;
+        private final AtomicLong intervalEnd = new AtomicLong(System.nanoTime());
+        private final AtomicLong minSojourn = new AtomicLong(Long.MAX_VALUE);
+        private volatile boolean overloaded;
+
+        public CoDelPolicy() {
+            this(5, 100, TimeUnit.MILLISECONDS);
+        }
+
+        public CoDelPolicy(long target, long interval, TimeUnit unit) {
+            if (target <= 0 || interval <= 0) {
+                throw new IllegalArgumentException();
+            }
+            this.targetNanos = unit.toNanos(target);
+            this.intervalNanos = unit.toNanos(interval);
+        }
+
+        @Override
+        public boolean shouldShed(long sojournNanos) {
+            long now = System.nanoTime();
+            long end = intervalEnd.get();
+            if (now - end > 0 && intervalEnd.compareAndSet(end, now + intervalNanos)) {
+                // 只有一个线程负责结束窗口，并以当前任务的排队时间开启新窗口的统计
+                long min = minSojourn.getAndSet(sojournNanos);
+                // 刚创建时还没有样本（MAX_VALUE）；上一个窗口结束后又空闲了一个interval以上，它的最小值已经过时。两种情况都不能说明队列积压
+                overloaded = min != Long.MAX_VALUE && now - end <= intervalNanos && min > targetNanos;
+            } else if (sojournNanos < minSojourn.get()) {
+                minSojourn.accumulateAndGet(sojournNanos, Math::min);
+            }
+            return overloaded && sojournNanos > 2 * targetNanos;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable task, MyThreadPoolExecutor executor) {
+            executor.countRejected();
+        }
+    }
+}
+
+@Slf4j
+class TestMyThreadPool {
+    public static void main(String[] args) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                2, // 核心线程数
+                5, // 最大线程数
+                5000L, // 非核心线程存活时间
+                TimeUnit.MILLISECONDS, // keepAliveTime为5s
+                new LinkedBlockingQueue<>(50),
+                new MyThreadPoolExecutor.LogAndDropPolicy()); // 使用日志记录的拒绝策略
+        AtomicInteger taskId = new AtomicInteger();
+
+        for (int i = 0; i < 100; i++) {
+            int currentId = taskId.getAndIncrement();
+
+            pool.execute(() -> {
+                // 唯一的Runnable任务是打印一条通知
+                log.info("{} executing task {}", Thread.currentThread().getName(), currentId);
+                try {
+                    Thread.sleep(1000); // 模拟任务耗时
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+            });
+
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                log.error(e.getMessage());
+            }
+        }
+
+        pool.shutdown();
+
+        if (!pool.awaitTermination(3000, TimeUnit.MILLISECONDS)) {
+            List<Runnable> remainingTasks = pool.shutdownNow();
+            log.info("The number of remaining tasks: {}", remainingTasks.size());
+        }
+
+        int i = 0;
+        for (int j = 0; j < 100; j++) {
+            log.info("i = {}", i);
+            i++;
+        }
+    }
+}
+
+/**
+ * 共享队列模式 vs 工作窃取模式的吞吐量对比
+ * 每个根任务在工作线程内部再提交一批极短的子任务，这正是共享队列成为瓶颈的场景
+ */
+@Slf4j
+class TestMyThreadPoolWorkStealing {
+    private static final int ROOT_TASKS = 1_000;
+    private static final int CHILDREN_PER_ROOT = 1_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        for (MyThreadPoolExecutor.ExecutionMode mode : new MyThreadPoolExecutor.ExecutionMode[]{
+                MyThreadPoolExecutor.ExecutionMode.SHARED_QUEUE, MyThreadPoolExecutor.ExecutionMode.WORK_STEALING}) {
+            MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                    nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new MyThreadPoolExecutor.AbortRejectPolicy(),
+                    mode);
+
+            for (int round = 0; round < ROUNDS; round++) {
+                long elapsed = runOnce(pool);
+                double throughput = (double) ROOT_TASKS * CHILDREN_PER_ROOT / elapsed * 1_000_000_000L;
+                log.info("{} round {}: {} ms, {} tasks/s",
+                        mode, round, elapsed / 1_000_000, String.format("%.0f", throughput));
+            }
+
+            pool.shutdown();
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static long runOnce(MyThreadPoolExecutor pool) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(ROOT_TASKS * CHILDREN_PER_ROOT);
+        AtomicInteger sink = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROOT_TASKS; i++) {
+            pool.execute(() -> {
+                for (int j = 0; j < CHILDREN_PER_ROOT; j++) {
+                    int k = j;
+                    pool.execute(() -> {
+                        if (k == -1) {
+                            sink.incrementAndGet(); // 防止子任务被优化成空操作
+                        }
+                        done.countDown();
+                    });
+                }
+            });
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+}
+
+/**
+ * 工作窃取模式下，任务fork出子任务后抛出异常：子任务还在退出线程的本地队列中，不能随线程一起消失
+ * 只有1个工作线程，没有其他线程可以窃取；第二轮把共享队列的容量设为1，放不下的子任务由退出的线程自己执行
+ * 期望：每一轮10个子任务全部执行
+ */
+@Slf4j
+class TestMyThreadPoolWorkerExit {
+    private static final int CHILDREN = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int capacity : new int[]{Integer.MAX_VALUE, 1}) {
+            MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                    1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(capacity),
+                    new MyThreadPoolExecutor.AbortRejectPolicy(),
+                    MyThreadPoolExecutor.ExecutionMode.WORK_STEALING);
+            CountDownLatch done = new CountDownLatch(CHILDREN);
+            pool.execute(() -> {
+                for (int i = 0; i < CHILDREN; i++) {
+                    pool.execute(done::countDown);
+                }
+                throw new IllegalStateException("parent failed after forking");
+            });
+            boolean allRan = done.await(5, TimeUnit.SECONDS);
+            log.info("Queue capacity {}: children ran {}/{}, allRan={}",
+                    capacity, CHILDREN - done.getCount(), CHILDREN, allRan);
+            pool.shutdown();
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+}
+
+/**
+ * 虚拟线程模式：10万个阻塞任务同时运行，平台线程数量仍然只有个位数
+ */
+@Slf4j
+class TestMyThreadPoolVirtualThread {
+    private static final int TASKS = 100_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                0, TASKS, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(TASKS),
+                new MyThreadPoolExecutor.LogAndDropPolicy(),
+                MyThreadPoolExecutor.ExecutionMode.VIRTUAL_THREAD);
+
+        CountDownLatch done = new CountDownLatch(TASKS);
+        long start = System.nanoTime();
+        for (int i = 0; i < TASKS; i++) {
+            pool.execute(() -> {
+                try {
+                    Thread.sleep(1000); // 模拟阻塞I/O
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+
+        log.info("{} blocking tasks finished in {} ms, peak platform threads: {}",
+                TASKS, (System.nanoTime() - start) / 1_000_000,
+                ManagementFactory.getThreadMXBean().getPeakThreadCount());
+
+        pool.shutdown();
+        log.info("Terminated: {}", pool.awaitTermination(3000, TimeUnit.MILLISECONDS));
+    }
+}
+
+/**
+ * 逐个execute vs executeAll：扇出任务一次提交上千个，比较提交与完成的总耗时
+ */
+@Slf4j
+class TestMyThreadPoolBatch {
+    private static final int BATCHES = 1_000;
+    private static final int BATCH_SIZE = 1_000;
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+
+        for (int round = 0; round < 3; round++) {
+            CountDownLatch single = new CountDownLatch(BATCHES * BATCH_SIZE);
+            long start = System.nanoTime();
+            for (int i = 0; i < BATCHES; i++) {
+                for (int j = 0; j < BATCH_SIZE; j++) {
+                    pool.execute(single::countDown);
+                }
+            }
+            single.await();
+            long executeElapsed = System.nanoTime() - start;
+
+            CountDownLatch batched = new CountDownLatch(BATCHES * BATCH_SIZE);
+            List<Runnable> batch = new ArrayList<>(BATCH_SIZE);
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                batch.add(batched::countDown);
+            }
+            start = System.nanoTime();
+            for (int i = 0; i < BATCHES; i++) {
+                pool.executeAll(batch);
+            }
+            batched.await();
+            long executeAllElapsed = System.nanoTime() - start;
+
+            log.info("round {}: execute {} ms, executeAll {} ms",
+                    round, executeElapsed / 1_000_000, executeAllElapsed / 1_000_000);
+        }
+
+        List<Callable<Integer>> callables = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            int n = i;
+            callables.add(() -> n);
+        }
+        int sum = 0;
+        for (Future<Integer> future : pool.invokeAll(callables)) {
+            sum += future.get();
+        }
+        log.info("invokeAll sum: {}, invokeAny: {}", sum, pool.invokeAny(callables));
+
+        pool.shutdown();
+        pool.awaitTermination(3000, TimeUnit.MILLISECONDS);
+    }
+}
+
+/**
+ * 有界队列下的executeAll：1个工作线程被阻塞，队列容量10，一次提交30个任务，拒绝策略为AbortRejectPolicy
+ * 期望：队列深度不超过容量，executeAll抛出拒绝异常，但30个任务每个都恰好被执行或被拒绝一次
+ * 同样的场景换成invokeAll：抛出拒绝异常时，已经入队的10个任务调用者拿不到Future，期望它们被取消而不是之后照常执行
+ */
+@Slf4j
+class TestMyThreadPoolBatchBounded {
+    private static final int CAPACITY = 10;
+    private static final int TASKS = 30;
+
+    public static void main(String[] args) throws InterruptedException {
+        CountDownLatch blocker = new CountDownLatch(1);
+        MyThreadPoolExecutor pool = blockedPool(blocker);
+
+        LongAdder ran = new LongAdder();
+        List<Runnable> batch = new ArrayList<>();
+        for (int i = 0; i < TASKS; i++) {
+            batch.add(ran::increment);
+        }
+        String thrown = "nothing";
+        try {
+            pool.executeAll(batch);
+        } catch (RuntimeException e) {
+            thrown = e.getMessage() + " (+" + e.getSuppressed().length + " suppressed)";
+        }
+        int depth = pool.getQueueDepth();
+        blocker.countDown();
+        pool.shutdown();
+        pool.awaitTermination(3, TimeUnit.SECONDS);
+        log.info("Queue depth after executeAll: {} (capacity {}), thrown: {}", depth, CAPACITY, thrown);
+        log.info("ran={}, rejected={}, ran + rejected={} (expected {})",
+                ran.sum(), pool.getRejectedTaskCount(), ran.sum() + pool.getRejectedTaskCount(), TASKS);
+
+        CountDownLatch invokeBlocker = new CountDownLatch(1);
+        MyThreadPoolExecutor invokePool = blockedPool(invokeBlocker);
+        LongAdder invokedRan = new LongAdder();
+        List<Callable<Void>> callables = new ArrayList<>();
+        for (int i = 0; i < TASKS; i++) {
+            callables.add(() -> {
+                invokedRan.increment();
+                return null;
+            });
+        }
+        thrown = "nothing";
+        try {
+            invokePool.invokeAll(callables);
+        } catch (RuntimeException e) {
+            thrown = "rejected";
+        }
+        invokeBlocker.countDown();
+        invokePool.shutdown();
+        invokePool.awaitTermination(3, TimeUnit.SECONDS);
+        log.info("invokeAll {}: {} queued tasks ran afterwards (expected 0)", thrown, invokedRan.sum());
+    }
+
+    /**
+     * 1个工作线程被blocker阻塞住的线程池
+     */
+    private static MyThreadPoolExecutor blockedPool(CountDownLatch blocker) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(CAPACITY),
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+        CountDownLatch started = new CountDownLatch(1);
+        pool.execute(() -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+        return pool;
+    }
+}
+
+/**
+ * 定时任务到期时被拒绝：1个工作线程被阻塞，队列容量2，拒绝策略为AbortRejectPolicy，8个一次性任务同时到期
+ * 时间轮把它们作为一批交给executeAll，放不下的任务被拒绝，拒绝策略的异常只会在ticker线程中被记录
+ * 期望：每个future都能结束——放进队列的正常完成，被拒绝的以拒绝异常结束，没有一个get()超时
+ */
+@Slf4j
+class TestMyThreadPoolScheduledRejected {
+    private static final int TIMERS = 8;
+
+    public static void main(String[] args) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(2),
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+        CountDownLatch blocker = new CountDownLatch(1);
+        pool.execute(() -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        List<MyScheduledFutureTask<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < TIMERS; i++) {
+            int n = i;
+            futures.add(pool.schedule(() -> n, 50, TimeUnit.MILLISECONDS));
+        }
+        Thread.sleep(200); // 全部到期并派发完毕
+        blocker.countDown();
+
+        int completed = 0;
+        int failed = 0;
+        int hung = 0;
+        for (MyScheduledFutureTask<Integer> future : futures) {
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                completed++;
+            } catch (ExecutionException e) {
+                failed++;
+            } catch (TimeoutException e) {
+                hung++;
+            }
+        }
+        log.info("completed={}, failed with rejection={}, hung={} (expected hung=0)", completed, failed, hung);
+        pool.shutdown();
+        pool.awaitTermination(3, TimeUnit.SECONDS);
+    }
+}
+
+/**
+ * 定时任务：固定频率、固定延迟、一次性任务，以及大量短超时的注册/取消开销和同时到期时的批量派发
+ */
+@Slf4j
+class TestMyThreadPoolScheduled {
+    private static final int TIMERS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                2, 4, 1000L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+
+        AtomicInteger fixedRate = new AtomicInteger();
+        AtomicInteger fixedDelay = new AtomicInteger();
+        Runnable slow = () -> {
+            try {
+                Thread.sleep(30);
+            } catch (InterruptedException e) {
+                log.error(e.getMessage());
+            }
+        };
+        ScheduledFuture<?> rate = pool.scheduleAtFixedRate(() -> {
+            fixedRate.incrementAndGet();
+            slow.run();
+        }, 0, 100, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> delay = pool.scheduleWithFixedDelay(() -> {
+            fixedDelay.incrementAndGet();
+            slow.run();
+        }, 0, 100, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        String answer = pool.schedule(() -> "fired", 250, TimeUnit.MILLISECONDS).get();
+        log.info("One-shot {} after {} ms", answer, (System.nanoTime() - start) / 1_000_000);
+        Thread.sleep(1000);
+        rate.cancel(false);
+        delay.cancel(false);
+        // 1.25秒内：固定频率约13次，固定延迟（周期130ms）约10次
+        log.info("Fixed rate ran {} times, fixed delay ran {} times", fixedRate.get(), fixedDelay.get());
+
+        // 大量短超时：注册后几乎全部被取消，只关心注册和取消的开销
+        for (int round = 0; round < 3; round++) {
+            List<ScheduledFuture<?>> timeouts = new ArrayList<>(TIMERS);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < TIMERS; i++) {
+                timeouts.add(pool.schedule(() -> { }, 10 + (i & 1023), TimeUnit.SECONDS));
+            }
+            long t1 = System.nanoTime();
+            for (ScheduledFuture<?> timeout : timeouts) {
+                timeout.cancel(false);
+            }
+            long t2 = System.nanoTime();
+
+            ScheduledThreadPoolExecutor jdk = new ScheduledThreadPoolExecutor(2);
+            jdk.setRemoveOnCancelPolicy(true);
+            timeouts.clear();
+            long j0 = System.nanoTime();
+            for (int i = 0; i < TIMERS; i++) {
+                timeouts.add(jdk.schedule(() -> { }, 10 + (i & 1023), TimeUnit.SECONDS));
+            }
+            long j1 = System.nanoTime();
+            for (ScheduledFuture<?> timeout : timeouts) {
+                timeout.cancel(false);
+            }
+            long j2 = System.nanoTime();
+            jdk.shutdownNow();
+            log.info("round {}: timing wheel schedule {} ns/op, cancel {} ns/op; DelayQueue schedule {} ns/op, cancel {} ns/op",
+                    round, (t1 - t0) / TIMERS, (t2 - t1) / TIMERS, (j1 - j0) / TIMERS, (j2 - j1) / TIMERS);
+        }
+
+        // 10万个定时任务在同一毫秒到期，由时间轮一次性批量派发
+        int burst = 100_000;
+        AtomicInteger fired = new AtomicInteger();
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+        for (int i = 0; i < burst; i++) {
+            pool.schedule(() -> { fired.incrementAndGet(); }, due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        while (fired.get() < burst) {
+            Thread.sleep(1);
+        }
+        log.info("{} timers due together all ran {} ms after the deadline", burst, (System.nanoTime() - due) / 1_000_000);
+
+        pool.shutdown();
+        pool.awaitTermination(3000, TimeUnit.MILLISECONDS);
+    }
+}
+
+/**
+ * 关闭延迟：数千个空闲线程阻塞在take()中时，shutdown/shutdownNow到awaitTermination返回的耗时
+ * 以及队列中积压任务时shutdown的排空耗时，和JDK的ThreadPoolExecutor对比
+ */
+@Slf4j
+class TestMyThreadPoolShutdown {
+    public static void main(String[] args) throws InterruptedException {
+        for (int workers : new int[]{1000, 4000}) {
+            for (boolean now : new boolean[]{false, true}) {
+                MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                        workers, workers, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<>(),
+                        new MyThreadPoolExecutor.AbortRejectPolicy());
+                Thread.sleep(500); // 等所有线程阻塞到take()中
+
+                long start = System.nanoTime();
+                if (now) {
+                    pool.shutdownNow();
+                } else {
+                    pool.shutdown();
+                }
+                boolean terminated = pool.awaitTermination(30, TimeUnit.SECONDS);
+                long mine = System.nanoTime() - start;
+
+                ThreadPoolExecutor jdk = new ThreadPoolExecutor(
+                        workers, workers, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+                jdk.prestartAllCoreThreads();
+                Thread.sleep(500);
+                start = System.nanoTime();
+                if (now) {
+                    jdk.shutdownNow();
+                } else {
+                    jdk.shutdown();
+                }
+                jdk.awaitTermination(30, TimeUnit.SECONDS);
+                long theirs = System.nanoTime() - start;
+
+                log.info("{} idle workers, {}: terminated={} in {} ms (JDK {} ms)",
+                        workers, now ? "shutdownNow" : "shutdown", terminated, mine / 1_000_000, theirs / 1_000_000);
+            }
+        }
+
+        // 积压10万个任务时shutdown：已入队的任务全部执行完才终止
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                8, 8, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 100_000; i++) {
+            pool.execute(ran::incrementAndGet);
+        }
+        long start = System.nanoTime();
+        pool.shutdown();
+        boolean terminated = pool.awaitTermination(30, TimeUnit.SECONDS);
+        log.info("Backlog drained: terminated={}, ran={} in {} ms", terminated, ran.get(), (System.nanoTime() - start) / 1_000_000);
+    }
+}
+
+/**
+ * 分区模式：同一个订单号的任务按提交顺序执行，不同订单并行；热点key会体现在车道深度上
+ */
+@Slf4j
+class TestMyThreadPoolPartitioned {
+    private static final int ORDERS = 1000;
+    private static final int EVENTS_PER_ORDER = 200;
+
+    public static void main(String[] args) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                8, 8, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy(),
+                MyThreadPoolExecutor.ExecutionMode.PARTITIONED);
+
+        // 每个订单的最后一个事件序号，不加锁也不用volatile：同一个订单只会在同一个车道线程上被访问
+        int[] lastSeq = new int[ORDERS];
+        AtomicInteger outOfOrder = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int seq = 1; seq <= EVENTS_PER_ORDER; seq++) {
+            for (int order = 0; order < ORDERS; order++) {
+                int o = order;
+                int s = seq;
+                pool.execute("order-" + o, () -> {
+                    if (lastSeq[o] != s - 1) {
+                        outOfOrder.incrementAndGet();
+                    }
+                    lastSeq[o] = s;
+                });
+            }
+        }
+        while (pool.getCompletedTaskCount() < (long) ORDERS * EVENTS_PER_ORDER) {
+            Thread.sleep(1);
+        }
+        log.info("{} events for {} orders in {} ms, out of order: {}",
+                ORDERS * EVENTS_PER_ORDER, ORDERS, (System.nanoTime() - start) / 1_000_000, outOfOrder.get());
+
+        // 热点key：一个订单的慢事件堆积在它所在的车道上
+        String hot = "order-42";
+        for (int i = 0; i < 500; i++) {
+            pool.execute(hot, () -> {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+            });
+        }
+        log.info("Hot key {} is on partition {}, depths: {}",
+                hot, pool.partitionOf(hot), Arrays.toString(pool.getPartitionDepths()));
+
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
+
+/**
+ * 车道拓扑对比：一个提交线程时MPMC/MPSC/SPSC，四个提交线程时MPMC/MPSC
+ * 每个提交线程负责自己的一组订单，检查同一个订单的事件按顺序执行；车道满时提交者让出CPU后重试
+ * 最后在提交的同时关闭线程池，检查每个任务要么被执行、要么被拒绝，没有任务被遗留在车道中
+ */
+@Slf4j
+class TestMyThreadPoolLaneTopology {
+    private static final int LANES = 4;
+    private static final int ORDERS_PER_SUBMITTER = 256;
+    private static final int EVENTS = 1 << 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int round = 0; round < 2; round++) {
+            for (MyThreadPoolExecutor.LaneTopology topology : MyThreadPoolExecutor.LaneTopology.values()) {
+                run(topology, 1, round == 1);
+            }
+            run(MyThreadPoolExecutor.LaneTopology.MPMC, 4, round == 1);
+            run(MyThreadPoolExecutor.LaneTopology.MPSC, 4, round == 1);
+        }
+        for (MyThreadPoolExecutor.LaneTopology topology : MyThreadPoolExecutor.LaneTopology.values()) {
+            shutdownWhileSubmitting(topology);
+        }
+    }
+
+    private static MyThreadPoolExecutor newPool(MyThreadPoolExecutor.LaneTopology topology,
+                                                MyRejectedExecutionHandler handler) {
+        return new MyThreadPoolExecutor(
+                LANES, LANES, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(LANES * 1024), handler,
+                MyThreadPoolExecutor.ExecutionMode.PARTITIONED, topology);
+    }
+
+    private static void run(MyThreadPoolExecutor.LaneTopology topology, int submitters, boolean report)
+            throws InterruptedException {
+        MyThreadPoolExecutor pool = newPool(topology, new MyThreadPoolExecutor.AbortRejectPolicy());
+        pool.setTimingEnabled(false);
+        int[] lastSeq = new int[submitters * ORDERS_PER_SUBMITTER];
+        AtomicInteger outOfOrder = new AtomicInteger();
+        LongAdder ran = new LongAdder();
+        int perSubmitter = EVENTS / submitters;
+
+        CountDownLatch done = new CountDownLatch(submitters);
+        long start = System.nanoTime();
+        for (int s = 0; s < submitters; s++) {
+            int base = s * ORDERS_PER_SUBMITTER;
+            new Thread(() -> {
+                for (int i = 0; i < perSubmitter; i++) {
+                    int order = base + i % ORDERS_PER_SUBMITTER;
+                    int seq = i / ORDERS_PER_SUBMITTER + 1;
+                    Runnable event = () -> {
+                        if (lastSeq[order] != seq - 1) {
+                            outOfOrder.incrementAndGet();
+                        }
+                        lastSeq[order] = seq;
+                        ran.increment();
+                    };
+                    for (;;) {
+                        try {
+                            pool.execute(order, event);
+                            break;
+                        } catch (RuntimeException e) {
+                            Thread.yield(); // 车道已满
+                        }
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        while (ran.sum() < (long) perSubmitter * submitters) {
+            Thread.yield();
+        }
+        long millis = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+        if (report) {
+            log.info("{} lanes, {} submitter(s): {} events/ms, out of order: {}",
+                    topology, submitters, ran.sum() / millis, outOfOrder.get());
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static void shutdownWhileSubmitting(MyThreadPoolExecutor.LaneTopology topology) throws InterruptedException {
+        MyThreadPoolExecutor pool = newPool(topology, new MyThreadPoolExecutor.DiscardRejectPolicy());
+        int submitters = topology == MyThreadPoolExecutor.LaneTopology.SPSC ? 1 : 4;
+        LongAdder ran = new LongAdder();
+        LongAdder submitted = new LongAdder();
+        CountDownLatch done = new CountDownLatch(submitters);
+        for (int s = 0; s < submitters; s++) {
+            new Thread(() -> {
+                for (int i = 0; i < 200_000; i++) {
+                    pool.execute(i, ran::increment);
+                    submitted.increment();
+                }
+                done.countDown();
+            }).start();
+        }
+        Thread.sleep(20);
+        pool.shutdown();
+        done.await();
+        boolean terminated = pool.awaitTermination(10, TimeUnit.SECONDS);
+        log.info("{} lanes, shutdown while submitting: terminated={}, submitted={}, ran + rejected={}",
+                topology, terminated, submitted.sum(), ran.sum() + pool.getRejectedTaskCount());
+    }
+}
+
+/**
+ * 两倍过载下各拒绝策略的有效吞吐（goodput）：只统计从提交到执行完毕不超过SLO的任务
+ * 4个线程，每个任务阻塞2ms，处理能力约2000个/秒；提交方按4000个/秒的节奏提交，被阻塞时不补提交
+ */
+@Slf4j
+class TestRejectPolicies {
+    private static final int WORKERS = 4;
+    private static final long TASK_MILLIS = 2;
+    private static final int OFFERED_PER_MILLI = 4;
+    private static final long SLO_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long DURATION_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    public static void main(String[] args) throws InterruptedException {
+        run("Abort", new MyThreadPoolExecutor.AbortRejectPolicy());
+        run("Discard", new MyThreadPoolExecutor.DiscardRejectPolicy());
+        run("CallerRuns", new MyThreadPoolExecutor.CallerRunsPolicy());
+        run("BlockWithTimeout(10ms)", new MyThreadPoolExecutor.BlockWithTimeoutPolicy(10, TimeUnit.MILLISECONDS));
+        run("DiscardOldest", new MyThreadPoolExecutor.DiscardOldestPolicy());
+        run("CoDel(5ms/100ms)", new MyThreadPoolExecutor.CoDelPolicy(5, 100, TimeUnit.MILLISECONDS));
+    }
+
+    private static void run(String name, MyRejectedExecutionHandler policy) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                WORKERS, WORKERS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(200), policy);
+        LongAdder good = new LongAdder();
+        LongAdder late = new LongAdder();
+        long submitted = 0;
+
+        long start = System.nanoTime();
+        long next = start;
+        while (next - start < DURATION_NANOS) {
+            for (int i = 0; i < OFFERED_PER_MILLI; i++) {
+                long submittedAt = System.nanoTime();
+                try {
+                    pool.execute(() -> {
+                        try {
+                            Thread.sleep(TASK_MILLIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (System.nanoTime() - submittedAt <= SLO_NANOS) {
+                            good.increment();
+                        } else {
+                            late.increment();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // AbortRejectPolicy、BlockWithTimeoutPolicy超时
+                }
+                submitted++;
+            }
+            next += TimeUnit.MILLISECONDS.toNanos(1);
+            long now = System.nanoTime();
+            if (next - now > 0) {
+                LockSupport.parkNanos(next - now);
+            } else {
+                next = now; // 被反压拖慢了，不补提交
+            }
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+
+        double seconds = DURATION_NANOS / 1e9;
+        // 由提交者执行的任务同样计入good/late，所以没有执行的任务数就是submitted - good - late
+        // 没有执行的任务应该恰好等于拒绝数加出队时丢弃的数量：CallerRuns执行的、DiscardOldest重新提交的任务都不算拒绝
+        long dropped = submitted - good.sum() - late.sum();
+        log.info("{}: offered {}/s, goodput {}/s, late {}, dropped {} (rejected {}, shed at dequeue {}, accounted={}), queue wait p99 {}ms",
+                String.format("%-22s", name), (long) (submitted / seconds), (long) (good.sum() / seconds),
+                late.sum(), dropped, pool.getRejectedTaskCount(), pool.getShedTaskCount(),
+                dropped == pool.getRejectedTaskCount() + pool.getShedTaskCount(),
+                pool.metrics().queueWait().valueAtPercentile(99) / 1_000_000);
+    }
+}
+
+/**
+ * 出队时丢弃（shouldShed）和提交侧拒绝策略的组合
+ * 以前被shouldShed丢弃的任务会在工作线程中交给拒绝策略：BlockWithTimeout把它重新放回队列、反复过期（活锁），
+ * DiscardOldest顺带丢掉队首还没过期的任务，CallerRuns则在工作线程中照样执行了它
+ * 1个工作线程，任务各阻塞2ms，前20个一起提交，排队超过10ms的在出队时丢弃；随后再隔20ms单独提交5个任务
+ * 期望：每个任务恰好被执行或丢弃一次，后提交的5个任务全部执行
+ * 最后是CoDel：新建的线程池先空闲，再一次提交30个1ms的任务，然后空闲一段时间再来一批
+ * 以前第一个窗口的最小排队时间是初始值Long.MAX_VALUE，没有任何积压的证据就进入过载状态，突发中排队超过10ms的任务都被丢弃
+ * 期望：两批突发都没有任务被丢弃
+ */
+@Slf4j
+class TestDequeueShedding {
+    private static final long SHED_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    public static void main(String[] args) throws InterruptedException {
+        run("BlockWithTimeout", new MyThreadPoolExecutor.BlockWithTimeoutPolicy(10, TimeUnit.MILLISECONDS) {
+            @Override
+            public boolean shouldShed(long sojournNanos) {
+                return sojournNanos > SHED_NANOS;
+            }
+        });
+        run("DiscardOldest", new MyThreadPoolExecutor.DiscardOldestPolicy() {
+            @Override
+            public boolean shouldShed(long sojournNanos) {
+                return sojournNanos > SHED_NANOS;
+            }
+        });
+        run("CallerRuns", new MyThreadPoolExecutor.CallerRunsPolicy() {
+            @Override
+            public boolean shouldShed(long sojournNanos) {
+                return sojournNanos > SHED_NANOS;
+            }
+        });
+        idleThenBurst();
+    }
+
+    private static void idleThenBurst() throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(100),
+                new MyThreadPoolExecutor.CoDelPolicy(5, 100, TimeUnit.MILLISECONDS));
+        LongAdder ran = new LongAdder();
+        for (int burst = 0; burst < 2; burst++) {
+            sleep(300);
+            for (int i = 0; i < 30; i++) {
+                pool.execute(() -> {
+                    sleep(1);
+                    ran.increment();
+                });
+            }
+        }
+        pool.shutdown();
+        boolean terminated = pool.awaitTermination(5, TimeUnit.SECONDS);
+        log.info("CoDel, two bursts after idling: terminated={}, ran={}/60, shed={}",
+                terminated, ran.sum(), pool.getShedTaskCount());
+    }
+
+    private static void run(String name, MyRejectedExecutionHandler policy) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(100), policy);
+        LongAdder ran = new LongAdder();
+        LongAdder liveRan = new LongAdder();
+        for (int i = 0; i < 20; i++) {
+            pool.execute(() -> {
+                sleep(2);
+                ran.increment();
+            });
+        }
+        sleep(100); // 积压的任务执行或丢弃完毕
+        for (int i = 0; i < 5; i++) {
+            pool.execute(() -> {
+                sleep(2);
+                ran.increment();
+                liveRan.increment();
+            });
+            sleep(20);
+        }
+        pool.shutdown();
+        boolean terminated = pool.awaitTermination(5, TimeUnit.SECONDS);
+        log.info("{}: terminated={}, ran={}, shed={}, rejected={} (ran + shed + rejected should be 25), live ran {}/5",
+                name, terminated, ran.sum(), pool.getShedTaskCount(), pool.getRejectedTaskCount(), liveRan.sum());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * 持续过载下的任务守恒：每个提交的任务要么被执行，要么被拒绝，不能悄悄消失
+ * 队列很小、keepAliveTime很短，非核心线程不停地创建和超时退出，反复走队列满之后的扩容路径
+ */
+@Slf4j
+class TestMyThreadPoolOverflow {
+    private static final int PRODUCERS = 4;
+    private static final int TASKS_PER_PRODUCER = 250_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (MyThreadPoolExecutor.ExecutionMode mode : new MyThreadPoolExecutor.ExecutionMode[]{
+                MyThreadPoolExecutor.ExecutionMode.SHARED_QUEUE,
+                MyThreadPoolExecutor.ExecutionMode.WORK_STEALING}) {
+            LongAdder ran = new LongAdder();
+            LongAdder rejected = new LongAdder();
+            MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                    2, 8, 1L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(16),
+                    (task, executor) -> rejected.increment(),
+                    mode);
+
+            Thread[] producers = new Thread[PRODUCERS];
+            for (int p = 0; p < PRODUCERS; p++) {
+                int id = p;
+                producers[p] = new Thread(() -> {
+                    for (int i = 0; i < TASKS_PER_PRODUCER; i++) {
+                        if (id == 0 && i % 100 == 0) {
+                            // 混入批量提交
+                            List<Runnable> batch = new ArrayList<>();
+                            for (int j = 0; j < 100; j++) {
+                                batch.add(ran::increment);
+                            }
+                            pool.executeAll(batch);
+                            i += 99;
+                        } else {
+                            pool.execute(ran::increment);
+                        }
+                    }
+                });
+                producers[p].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            pool.shutdown();
+            boolean terminated = pool.awaitTermination(10, TimeUnit.SECONDS);
+
+            long submitted = (long) PRODUCERS * TASKS_PER_PRODUCER;
+            log.info("{}: submitted={}, ran={}, rejected={}, lost={}, terminated={}",
+                    mode, submitted, ran.sum(), rejected.sum(), submitted - ran.sum() - rejected.sum(), terminated);
+        }
+    }
+}
+
+/**
+ * 空闲策略：工作线程刚空闲下来不久就来了新任务时，从提交到开始执行的延迟
+ * 每次提交之间间隔约20us，工作线程的spin预算为100us，所以SPIN类策略下任务总是在spin期间到达
+ */
+@Slf4j
+class TestMyThreadPoolIdleStrategy {
+    private static final int ROUNDS = 20_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int warmup = 0; warmup < 2; warmup++) {
+            for (MyThreadPoolExecutor.IdleStrategy strategy : MyThreadPoolExecutor.IdleStrategy.values()) {
+                MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                        1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<>(),
+                        new MyThreadPoolExecutor.AbortRejectPolicy());
+                pool.setIdleStrategy(strategy, 100, TimeUnit.MICROSECONDS);
+                LatencyHistogram wakeup = new LatencyHistogram();
+                AtomicInteger done = new AtomicInteger();
+
+                for (int i = 0; i < ROUNDS; i++) {
+                    long submittedAt = System.nanoTime();
+                    pool.execute(() -> {
+                        wakeup.record(System.nanoTime() - submittedAt);
+                        done.incrementAndGet();
+                    });
+                    while (done.get() <= i) {
+                        Thread.yield();
+                    }
+                    LockSupport.parkNanos(20_000);
+                }
+
+                LatencyHistogram.Snapshot snapshot = wakeup.snapshot();
+                if (warmup == 1) {
+                    log.info("{}: submit-to-start p50={}ns p99={}ns", String.format("%-9s", strategy),
+                            snapshot.valueAtPercentile(50), snapshot.valueAtPercentile(99));
+                }
+                pool.shutdown();
+                pool.awaitTermination(3, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
+
+/**
+ * 任务装饰器：MDC和ThreadLocal（截止时间）从提交线程带到工作线程，执行后工作线程恢复原状
+ * 最后统计每次execute在提交线程上分配的字节数，验证没有装饰器时不做任何包装
+ */
+@Slf4j
+class TestMyThreadPoolTaskDecorator {
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+    private static final int TASKS = 100_000;
+    private static final Runnable NOOP = () -> { };
+
+    public static void main(String[] args) throws Exception {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                2, 2, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+        pool.addTaskDecorator(TaskDecorator.mdc());
+        pool.addTaskDecorator(TaskDecorator.threadLocal(DEADLINE));
+
+        org.slf4j.MDC.put("traceId", "req-42");
+        DEADLINE.set(12345L);
+        String seen = pool.submit(() -> org.slf4j.MDC.get("traceId") + "/" + DEADLINE.get()).get();
+        log.info("Context seen by worker: {}", seen);
+        String scheduled = pool.schedule(() -> org.slf4j.MDC.get("traceId"), 10, TimeUnit.MILLISECONDS).get();
+        log.info("Context seen by scheduled task: {}", scheduled);
+        org.slf4j.MDC.clear();
+        DEADLINE.remove();
+
+        // 没有上下文的任务在同一批工作线程上执行，不应该看到上一个任务留下的上下文
+        List<MyFutureTask<String>> leaks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            leaks.add(pool.submit(() -> org.slf4j.MDC.get("traceId") + "/" + DEADLINE.get()));
+        }
+        for (MyFutureTask<String> f : leaks) {
+            log.info("Context seen by task without context: {}", f.get());
+        }
+        pool.shutdown();
+        pool.awaitTermination(3, TimeUnit.SECONDS);
+
+        log.info("Bytes allocated per execute() on the submitting thread:");
+        for (int decorators = 0; decorators <= 2; decorators++) {
+            for (boolean timing : new boolean[]{false, true}) {
+                MyThreadPoolExecutor p = new MyThreadPoolExecutor(
+                        1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(TASKS), // 数组队列入队不分配，测到的只有包装
+                        new MyThreadPoolExecutor.AbortRejectPolicy());
+                p.setTimingEnabled(timing);
+                if (decorators >= 1) {
+                    p.addTaskDecorator(TaskDecorator.threadLocal(DEADLINE));
+                }
+                if (decorators >= 2) {
+                    p.addTaskDecorator(TaskDecorator.threadLocal(new ThreadLocal<>()));
+                }
+                DEADLINE.set(1L);
+                for (int i = 0; i < TASKS; i++) { // 预热
+                    p.execute(NOOP);
+                }
+                while (p.getQueueDepth() > 0) {
+                    Thread.yield();
+                }
+                long before = allocatedBytes();
+                for (int i = 0; i < TASKS; i++) {
+                    p.execute(NOOP);
+                }
+                long perTask = (allocatedBytes() - before) / TASKS;
+                log.info("  decorators={} timing={}: {} bytes", decorators, timing, perTask);
+                DEADLINE.remove();
+                p.shutdown();
+                p.awaitTermination(3, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().threadId());
     }
 }
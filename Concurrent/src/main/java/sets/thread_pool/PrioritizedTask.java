@@ -0,0 +1,58 @@
+package sets.thread_pool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 带优先级和截止时间的任务
+ * 配合PriorityLaneQueue使用：按priority进入对应的车道，车道内按截止时间先后（EDF）出队
+ * 出队时已经过了截止时间的任务不会被执行，线程池计数后直接丢弃（见MyThreadPoolExecutor.onExpired），不经过拒绝策略
+ */
+public interface PrioritizedTask extends Runnable {
+
+    long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * @return 优先级，0最高
+     */
+    int priority();
+
+    /**
+     * @return 截止时间，以System.nanoTime()为基准；没有截止时间时返回NO_DEADLINE
+     */
+    long deadline();
+
+    /**
+     * 没有截止时间时不读取时钟
+     */
+    default boolean isExpired() {
+        long d = deadline();
+        return d != NO_DEADLINE && System.nanoTime() - d > 0;
+    }
+
+    static PrioritizedTask of(Runnable task, int priority) {
+        return new Simple(task, priority, NO_DEADLINE);
+    }
+
+    /**
+     * @param timeout 从现在开始计算的相对截止时间
+     */
+    static PrioritizedTask of(Runnable task, int priority, long timeout, TimeUnit unit) {
+        return new Simple(task, priority, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    record Simple(Runnable task, int priority, long deadline) implements PrioritizedTask {
+        public Simple {
+            if (task == null) {
+                throw new NullPointerException();
+            }
+            if (priority < 0) {
+                throw new IllegalArgumentException();
+            }
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package sets.thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按优先级分车道、车道内按截止时间排序（EDF）的任务队列，作为MyThreadPoolExecutor的taskQueue使用
+ * 每个优先级一个车道，每个车道一把锁一个小顶堆：不同优先级的生产者互不竞争，不存在全局的堆锁
+ * 出队时从最高优先级的车道开始找，找到第一个非空车道就取出其中截止时间最早的任务（截止时间相同则先进先出）
+ * 没有实现PrioritizedTask的任务进入defaultLane
+ * 过期任务由线程池在出队后丢弃，计入getExpiredTaskCount并交给onExpired钩子，不经过拒绝策略；队列本身不关心时间
+ * 注意：工作窃取模式下工作线程内部提交的任务进入本地队列，不经过这里，因此不参与优先级调度
+ *
+ * 和LinkedBlockingQueue一样，入队只碰车道锁，出队方之间用takeLock串行；
+ * 只有队列由空变为非空、由满变为不满时才需要跨锁唤醒对方
+ */
+public class PriorityLaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    // 截止时间早的在前；相同时按入队顺序
+    private static final Comparator<Entry> EDF = Comparator
+            .comparingLong((Entry e) -> e.deadline)
+            .thenComparingLong(e -> e.seq);
+
+    private static final class Entry {
+        final Runnable task;
+        final long deadline;
+        final long seq;
+
+        Entry(Runnable task, long deadline, long seq) {
+            this.task = task;
+            this.deadline = deadline;
+            this.seq = seq;
+        }
+    }
+
+    private static final class Lane {
+        final ReentrantLock lock = new ReentrantLock();
+        final PriorityQueue<Entry> heap = new PriorityQueue<>(EDF);
+        volatile int size; // 在锁内写，出队方扫描时不加锁读，跳过空车道
+    }
+
+    private final Lane[] lanes;
+    private final int defaultLane;
+    private final int capacity;
+
+    // 已占用的容量：入队前CAS预留，出队后释放
+    private final AtomicInteger reserved = new AtomicInteger();
+    // 已经放进车道、可以被取走的任务数：放进车道之后才递增，所以count > 0时一定能在某个车道中取到任务
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong seq = new AtomicLong();
+
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private final Condition notEmpty = takeLock.newCondition();
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition();
+
+    /**
+     * 无界，普通任务进入最低优先级的车道
+     */
+    public PriorityLaneQueue(int lanes) {
+        this(lanes, Integer.MAX_VALUE, lanes - 1);
+    }
+
+    /**
+     * @param lanes 车道数量，即优先级的数量；优先级大于等于lanes的任务进入最后一个车道
+     * @param capacity 所有车道加起来的容量
+     * @param defaultLane 没有实现PrioritizedTask的任务进入的车道
+     */
+    public PriorityLaneQueue(int lanes, int capacity, int defaultLane) {
+        if (lanes <= 0 || capacity <= 0 || defaultLane < 0 || defaultLane >= lanes) {
+            throw new IllegalArgumentException();
+        }
+
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane();
+        }
+        this.capacity = capacity;
+        this.defaultLane = defaultLane;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        if (!tryReserve()) {
+            return false;
+        }
+
+        enqueue(task);
+        return true;
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+
+        long nanos = unit.toNanos(timeout);
+        putLock.lockInterruptibly();
+        try {
+            while (!tryReserve()) {
+                if (nanos <= 0L) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            if (reserved.get() < capacity) {
+                notFull.signal(); // 还有空位，接力唤醒下一个等待的生产者
+            }
+        } finally {
+            putLock.unlock();
+        }
+
+        enqueue(task);
+        return true;
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+
+        putLock.lockInterruptibly();
+        try {
+            while (!tryReserve()) {
+                notFull.await();
+            }
+            if (reserved.get() < capacity) {
+                notFull.signal();
+            }
+        } finally {
+            putLock.unlock();
+        }
+
+        enqueue(task);
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        Runnable task;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                notEmpty.await();
+            }
+            task = dequeue();
+            if (count.getAndDecrement() > 1) {
+                notEmpty.signal(); // 还有任务，接力唤醒下一个等待的消费者
+            }
+        } finally {
+            takeLock.unlock();
+        }
+
+        release(1);
+        return task;
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        Runnable task;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                if (nanos <= 0L) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            task = dequeue();
+            if (count.getAndDecrement() > 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+
+        release(1);
+        return task;
+    }
+
+    @Override
+    public Runnable poll() {
+        if (count.get() == 0) {
+            return null; // 不加锁快速返回，工作窃取模式的空闲扫描会频繁走到这里
+        }
+
+        Runnable task = null;
+        takeLock.lock();
+        try {
+            if (count.get() > 0) {
+                task = dequeue();
+                if (count.getAndDecrement() > 1) {
+                    notEmpty.signal();
+                }
+            }
+        } finally {
+            takeLock.unlock();
+        }
+
+        if (task != null) {
+            release(1);
+        }
+        return task;
+    }
+
+    @Override
+    public Runnable peek() {
+        for (Lane lane : lanes) {
+            if (lane.size == 0) {
+                continue;
+            }
+            lane.lock.lock();
+            try {
+                Entry e = lane.heap.peek();
+                if (e != null) {
+                    return e.task;
+                }
+            } finally {
+                lane.lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+
+        boolean removed = false;
+        takeLock.lock();
+        try {
+            for (Lane lane : lanes) {
+                lane.lock.lock();
+                try {
+                    Iterator<Entry> it = lane.heap.iterator();
+                    while (it.hasNext()) {
+                        if (o.equals(it.next().task)) {
+                            it.remove();
+                            lane.size--;
+                            removed = true;
+                            break;
+                        }
+                    }
+                } finally {
+                    lane.lock.unlock();
+                }
+                if (removed) {
+                    count.decrementAndGet();
+                    break;
+                }
+            }
+        } finally {
+            takeLock.unlock();
+        }
+
+        if (removed) {
+            release(1);
+        }
+        return removed;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 按出队顺序（优先级、截止时间）转移
+     */
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        int n;
+        takeLock.lock();
+        try {
+            n = Math.min(maxElements, count.get());
+            for (int i = 0; i < n; i++) {
+                c.add(dequeue());
+            }
+            count.addAndGet(-n);
+        } finally {
+            takeLock.unlock();
+        }
+
+        if (n > 0) {
+            release(n);
+        }
+        return n;
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - reserved.get();
+    }
+
+    /**
+     * 弱一致的快照迭代器，按出队顺序排列
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> snapshot = new ArrayList<>();
+        for (Lane lane : lanes) {
+            Entry[] entries;
+            lane.lock.lock();
+            try {
+                entries = lane.heap.toArray(new Entry[0]);
+            } finally {
+                lane.lock.unlock();
+            }
+            Arrays.sort(entries, EDF);
+            for (Entry e : entries) {
+                snapshot.add(e.task);
+            }
+        }
+
+        Iterator<Runnable> it = snapshot.iterator();
+        return new Iterator<>() {
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                return last = it.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                PriorityLaneQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    private boolean tryReserve() {
+        for (;;) {
+            int r = reserved.get();
+            if (r >= capacity) {
+                return false;
+            }
+            if (reserved.compareAndSet(r, r + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(int n) {
+        if (reserved.getAndAdd(-n) >= capacity) {
+            putLock.lock();
+            try {
+                notFull.signal();
+            } finally {
+                putLock.unlock();
+            }
+        }
+    }
+
+    private void enqueue(Runnable task) {
+        // 线程池可能包装了一层（例如记录入队时间），按被包装的原始任务分类
+        Runnable original = MyThreadPoolExecutor.unwrap(task);
+        int laneIndex = defaultLane;
+        long deadline = PrioritizedTask.NO_DEADLINE;
+        if (original instanceof PrioritizedTask p) {
+            laneIndex = Math.min(p.priority(), lanes.length - 1);
+            deadline = p.deadline();
+        }
+
+        Lane lane = lanes[laneIndex];
+        Entry entry = new Entry(task, deadline, seq.getAndIncrement());
+        lane.lock.lock();
+        try {
+            lane.heap.add(entry);
+            lane.size++;
+        } finally {
+            lane.lock.unlock();
+        }
+
+        if (count.getAndIncrement() == 0) {
+            // 队列由空变为非空，唤醒等待的消费者
+            takeLock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                takeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 只在持有takeLock且count > 0时调用
+     */
+    private Runnable dequeue() {
+        for (;;) {
+            for (Lane lane : lanes) {
+                if (lane.size == 0) {
+                    continue;
+                }
+                lane.lock.lock();
+                try {
+                    Entry e = lane.heap.poll();
+                    if (e != null) {
+                        lane.size--;
+                        return e.task;
+                    }
+                } finally {
+                    lane.lock.unlock();
+                }
+            }
+        }
+    }
+}
+
+/**
+ * 两个工作线程，后台批处理任务让线程池略微过载，同时每20ms提交一个交互式任务
+ * 对比FIFO队列和车道队列下交互式任务的排队延迟，以及过期后台任务被丢弃的数量
+ */
+@Slf4j
+class TestPriorityLaneQueue {
+    private static final int INTERACTIVE = 0;
+    private static final int BACKGROUND = 2;
+
+    public static void main(String[] args) throws InterruptedException {
+        run("FIFO", new LinkedBlockingQueue<>());
+        run("Lanes", new PriorityLaneQueue(3));
+    }
+
+    private static void run(String name, BlockingQueue<Runnable> queue) throws InterruptedException {
+        // 过期的任务不经过拒绝策略，即使是AbortRejectPolicy也不会在工作线程中抛出异常
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                2, 2, 0L, TimeUnit.MILLISECONDS, queue,
+                new MyThreadPoolExecutor.AbortRejectPolicy());
+        LatencyHistogram interactiveLatency = new LatencyHistogram();
+
+        Thread interactive = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long submitted = System.nanoTime();
+                    pool.execute(PrioritizedTask.of(
+                            () -> interactiveLatency.record(System.nanoTime() - submitted),
+                            INTERACTIVE, 100, TimeUnit.MILLISECONDS));
+                    Thread.sleep(20);
+                }
+            } catch (InterruptedException ignored) {
+                // 结束
+            }
+        });
+        interactive.start();
+
+        // 后台任务每个5ms，两个线程每秒最多处理400个，这里每秒提交约440个
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        int background = 0;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 11; i++) {
+                pool.execute(PrioritizedTask.of(() -> {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        log.error(e.getMessage());
+                    }
+                }, BACKGROUND, 500, TimeUnit.MILLISECONDS));
+                background++;
+            }
+            Thread.sleep(25);
+        }
+        interactive.interrupt();
+        interactive.join();
+
+        LatencyHistogram.Snapshot latency = interactiveLatency.snapshot();
+        log.info("{}: interactive queue latency p50={}us p99={}us max={}us ({} ran), background submitted={}, dropped={}, workers={}",
+                name, latency.valueAtPercentile(50) / 1000, latency.valueAtPercentile(99) / 1000,
+                latency.max() / 1000, latency.count(), background, pool.getExpiredTaskCount(), pool.getPoolSize());
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,104 @@
+package sets.thread_pool;
+
+import org.slf4j.MDC;
+
+import java.util.Map;
+
+/**
+ * 任务装饰器：把提交线程中的上下文（MDC、请求级别的ThreadLocal，例如截止时间、trace ID）带到执行任务的工作线程
+ * 线程池在提交时对所有装饰器依次调用capture，得到的上下文放在同一个快照对象中随任务一起入队；
+ * 工作线程执行任务前依次调用restore，执行后按相反的顺序调用reset
+ * 没有注册任何装饰器时，提交和执行路径上都不会有额外的分配
+ *
+ * 三个方法都不应该抛出异常，也应该尽量便宜：它们在每个任务的提交和执行路径上各调用一次
+ * @param <C> 上下文的类型
+ */
+public interface TaskDecorator<C> {
+
+    /**
+     * 在提交线程中调用
+     * @return 需要传播的上下文，可以为null
+     */
+    C capture();
+
+    /**
+     * 在工作线程中、任务执行之前调用，装入capture得到的上下文
+     * @return 被替换掉的旧上下文，任务执行之后交给reset
+     */
+    C restore(C context);
+
+    /**
+     * 在工作线程中、任务执行之后调用，恢复restore之前的上下文
+     * 工作线程可能在执行一个任务的过程中帮忙执行另一个任务（例如join、CallerRunsPolicy），所以不能简单地清空
+     */
+    void reset(C previous);
+
+    /**
+     * 传播SLF4J的MDC
+     */
+    static TaskDecorator<Map<String, String>> mdc() {
+        return new TaskDecorator<>() {
+            @Override
+            public Map<String, String> capture() {
+                return MDC.getCopyOfContextMap();
+            }
+
+            @Override
+            public Map<String, String> restore(Map<String, String> context) {
+                Map<String, String> previous = MDC.getCopyOfContextMap();
+                set(context);
+                return previous;
+            }
+
+            @Override
+            public void reset(Map<String, String> previous) {
+                set(previous);
+            }
+
+            private void set(Map<String, String> context) {
+                if (context == null) {
+                    MDC.clear();
+                } else {
+                    MDC.setContextMap(context);
+                }
+            }
+        };
+    }
+
+    /**
+     * 传播一个ThreadLocal的值，适合截止时间、trace ID这类请求级别的状态
+     * 值本身不会被复制，提交线程和工作线程看到的是同一个对象，所以值应该是不可变的
+     */
+    static <T> TaskDecorator<T> threadLocal(ThreadLocal<T> local) {
+        if (local == null) {
+            throw new NullPointerException();
+        }
+
+        return new TaskDecorator<>() {
+            @Override
+            public T capture() {
+                return local.get();
+            }
+
+            @Override
+            public T restore(T context) {
+                T previous = local.get();
+                set(context);
+                return previous;
+            }
+
+            @Override
+            public void reset(T previous) {
+                set(previous);
+            }
+
+            private void set(T value) {
+                if (value == null) {
+                    local.remove();
+                } else {
+                    local.set(value);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,87 @@
+package sets.thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 线程池某一时刻的指标快照
+ * 各项数值分别读取，彼此之间不保证严格一致，用于观测饱和度足够了
+ * @param queueDepth 任务队列中等待的任务数
+ * @param poolSize 工作线程总数
+ * @param coreWorkers 核心线程数
+ * @param nonCoreWorkers 非核心线程数
+ * @param activeWorkers 正在执行任务的线程数
+ * @param idleWorkers 空闲线程数
+ * @param completedTasks 已完成的任务数（包括抛出异常的任务）
+ * @param rejectedTasks 被拒绝的任务数
+ * @param queueWait 任务从提交到开始执行的等待时间
+ * @param execution 任务执行时间
+ */
+public record ThreadPoolMetrics(int queueDepth,
+                                int poolSize,
+                                int coreWorkers,
+                                int nonCoreWorkers,
+                                int activeWorkers,
+                                int idleWorkers,
+                                long completedTasks,
+                                long rejectedTasks,
+                                LatencyHistogram.Snapshot queueWait,
+                                LatencyHistogram.Snapshot execution) {
+}
+
+/**
+ * 观察线程池饱和过程中的指标，并对比开启/关闭耗时统计时的吞吐量
+ */
+@Slf4j
+class TestThreadPoolMetrics {
+    private static final int TASKS = 1_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        MyThreadPoolExecutor pool = new MyThreadPoolExecutor(
+                2, 4, 1000L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(100),
+                new MyThreadPoolExecutor.DiscardRejectPolicy()) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                if (t != null) {
+                    log.error("Task {} failed", r, t);
+                }
+            }
+        };
+
+        // 饱和：慢任务塞满队列，触发非核心线程和拒绝
+        for (int i = 0; i < 500; i++) {
+            pool.execute(() -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage());
+                }
+            });
+        }
+        log.info("Saturated: {}", pool.metrics());
+        Thread.sleep(1000);
+        log.info("Drained: {}", pool.metrics());
+
+        for (boolean timing : new boolean[]{false, true, false, true}) {
+            pool.setTimingEnabled(timing);
+            long before = pool.getCompletedTaskCount() + pool.getRejectedTaskCount();
+            long start = System.nanoTime();
+            for (int i = 0; i < TASKS; i++) {
+                pool.execute(() -> { });
+            }
+            while (pool.getCompletedTaskCount() + pool.getRejectedTaskCount() - before < TASKS) {
+                Thread.onSpinWait();
+            }
+            log.info("timing={}: {} ms", timing, (System.nanoTime() - start) / 1_000_000);
+        }
+        ThreadPoolMetrics metrics = pool.metrics();
+        log.info("Queue wait: {}", metrics.queueWait());
+        log.info("Execution: {}", metrics.execution());
+
+        pool.shutdown();
+        pool.awaitTermination(3000, TimeUnit.MILLISECONDS);
+    }
+}
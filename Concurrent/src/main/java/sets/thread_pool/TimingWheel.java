@@ -0,0 +1,398 @@
+package sets.thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * 分层时间轮（Varghese & Lauck）
+ * 第0层每格代表一个tick，共WHEEL_SIZE格；第k层每格代表WHEEL_SIZE^k个tick
+ * 到期时间较远的定时任务先放在高层，时间推进到对应格子时再逐层下放（cascade），最终在第0层到期
+ * 插入、取消都是O(1)，不像DelayQueue那样每次都要O(log n)地调整堆
+ *
+ * 时间轮本身只由一个ticker线程操作，不需要任何锁：
+ * 其他线程新增的定时任务放进无锁的pending队列，取消的放进cancelled队列，由ticker线程在每次tick时统一处理
+ * 同一次tick中到期的所有任务收集成一批，一次性交给dispatcher（例如线程池的executeAll）
+ * 构造之后需要调用start()启动ticker线程；启动之前提交的定时任务先留在pending队列中
+ */
+@Slf4j
+public class TimingWheel {
+
+    private static final int WHEEL_BITS = 9;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4; // 1ms一个tick时可以覆盖约2^36ms，即两年多
+    private static final long MAX_TICKS = 1L << (WHEEL_BITS * LEVELS);
+
+    private static final int NEW = 0;
+    private static final int STARTED = 1;
+    private static final int STOPPED = 2;
+
+    private final long tickNanos;
+    private final long startTime;
+    private final Consumer<List<Runnable>> dispatcher;
+    private final Bucket[][] wheels = new Bucket[LEVELS][WHEEL_SIZE];
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final String name;
+    private volatile Thread ticker; // start()时才创建，构造期间不让this逃逸到其他线程
+
+    private volatile int state = NEW;
+    private volatile boolean sleeping; // ticker线程在没有任何定时任务时无限期park
+    private long currentTick; // 已经处理到的tick，只由ticker线程访问
+    private int size; // 时间轮中的定时任务数，只由ticker线程访问
+
+    /**
+     * @param tick 时间精度
+     * @param dispatcher 接收每次tick中到期的一批任务，在ticker线程中调用，应该尽快返回
+     */
+    public TimingWheel(long tick, TimeUnit unit, Consumer<List<Runnable>> dispatcher, String name) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.tickNanos = unit.toNanos(tick);
+        this.dispatcher = dispatcher;
+        for (Bucket[] wheel : wheels) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new Bucket();
+            }
+        }
+        this.startTime = System.nanoTime();
+        this.name = name;
+    }
+
+    /**
+     * 启动ticker线程，只能调用一次
+     */
+    public synchronized void start() {
+        if (state != NEW) {
+            throw new IllegalStateException(state == STARTED ? "Already started" : "Already stopped");
+        }
+
+        Thread t = new Thread(this::run, name);
+        t.setDaemon(true);
+        ticker = t;
+        state = STARTED;
+        t.start();
+    }
+
+    /**
+     * 可以被任何线程调用
+     * @param deadline 以System.nanoTime()为基准的到期时间
+     */
+    public Timeout schedule(Runnable task, long deadline) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+
+        Timeout timeout = new Timeout(this, task, deadline);
+        if (state == STOPPED) {
+            timeout.cancel();
+            return timeout;
+        }
+
+        pending.offer(timeout);
+        if (sleeping) {
+            LockSupport.unpark(ticker); // sleeping只会由已经启动的ticker线程设置
+        }
+        return timeout;
+    }
+
+    /**
+     * 停止ticker线程，返回所有尚未到期、也未取消的任务
+     */
+    public List<Runnable> stop() {
+        Thread ticker;
+        synchronized (this) { // 和start()互斥，不会在启动的同时停止
+            state = STOPPED;
+            ticker = this.ticker;
+        }
+        if (ticker != null && Thread.currentThread() != ticker) {
+            LockSupport.unpark(ticker);
+            boolean interrupted = false;
+            while (ticker.isAlive()) {
+                try {
+                    ticker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<Runnable> unprocessed = new ArrayList<>();
+        for (Bucket[] wheel : wheels) {
+            for (Bucket bucket : wheel) {
+                for (Timeout t = bucket.head; t != null; t = t.next) {
+                    if (t.cancel()) {
+                        unprocessed.add(t.task);
+                    }
+                }
+            }
+        }
+        for (Timeout t; (t = pending.poll()) != null; ) {
+            if (t.cancel()) {
+                unprocessed.add(t.task);
+            }
+        }
+        return unprocessed;
+    }
+
+    private void run() {
+        List<Runnable> due = new ArrayList<>();
+        while (state == STARTED) {
+            long now = System.nanoTime();
+            long targetTick = (now - startTime) / tickNanos;
+            removeCancelled();
+
+            if (size == 0 && pending.isEmpty()) {
+                // 时间轮是空的，中间的tick都不用逐个处理了
+                currentTick = Math.max(currentTick, targetTick);
+                sleeping = true;
+                if (pending.isEmpty() && state == STARTED) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+                continue;
+            }
+
+            if (size == 0) {
+                currentTick = Math.max(currentTick, targetTick); // 刚从空闲中醒来，直接跳到当前时间
+            }
+            // 落后多个tick时（GC停顿、负载高）逐个追赶，到期任务合并成一批
+            transferPending(due);
+            while (currentTick < targetTick) {
+                currentTick++;
+                cascade(due);
+                expire(wheels[0][(int) (currentTick & WHEEL_MASK)], due);
+            }
+            if (!due.isEmpty()) {
+                dispatch(due);
+                due = new ArrayList<>();
+            }
+
+            long nextTickAt = startTime + (currentTick + 1) * tickNanos;
+            long sleep = nextTickAt - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+        }
+    }
+
+    private void dispatch(List<Runnable> due) {
+        try {
+            dispatcher.accept(due);
+        } catch (Throwable ex) {
+            log.error("Failed to dispatch {} expired timers", due.size(), ex);
+        }
+    }
+
+    private void transferPending(List<Runnable> due) {
+        for (Timeout t; (t = pending.poll()) != null; ) {
+            if (t.state != Timeout.INIT) {
+                continue; // 还没放进时间轮就被取消了
+            }
+            place(t, due);
+        }
+    }
+
+    /**
+     * 把定时任务放进合适的层和格子；已经到期的直接放进due
+     */
+    private void place(Timeout t, List<Runnable> due) {
+        long deadlineTick = Math.ceilDiv(t.deadline - startTime, tickNanos);
+        long delta = deadlineTick - currentTick;
+        if (delta <= 0) {
+            if (t.expire()) {
+                due.add(t.task);
+            }
+            return;
+        }
+
+        // 超出最高层的范围时先放在最高层能表示的最远位置，下放时会重新计算
+        long placeTick = delta < MAX_TICKS ? deadlineTick : currentTick + MAX_TICKS - 1;
+        int level = 0;
+        while (level < LEVELS - 1 && placeTick - currentTick >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        int slot = (int) ((placeTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        wheels[level][slot].add(t);
+        size++;
+    }
+
+    /**
+     * 时间推进到某一层的格子边界时，把该层当前格子中的任务重新放置到更低的层
+     * 从高层到低层处理，保证下放的任务不会落进本次已经处理过的格子
+     */
+    private void cascade(List<Runnable> due) {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = WHEEL_BITS * level;
+            if ((currentTick & ((1L << shift) - 1)) != 0) {
+                continue;
+            }
+            Bucket bucket = wheels[level][(int) ((currentTick >>> shift) & WHEEL_MASK)];
+            Timeout t = bucket.clear();
+            while (t != null) {
+                Timeout next = t.next;
+                t.next = null;
+                t.prev = null;
+                size--;
+                place(t, due); // 到期tick恰好是格子起点的任务会在这里直接到期
+                t = next;
+            }
+        }
+    }
+
+    private void expire(Bucket bucket, List<Runnable> due) {
+        Timeout t = bucket.clear();
+        while (t != null) {
+            Timeout next = t.next;
+            t.next = null;
+            t.prev = null;
+            size--;
+            if (t.expire()) {
+                due.add(t.task);
+            }
+            t = next;
+        }
+    }
+
+    private void removeCancelled() {
+        for (Timeout t; (t = cancelled.poll()) != null; ) {
+            Bucket bucket = t.bucket;
+            if (bucket != null) {
+                bucket.remove(t);
+                size--;
+            }
+        }
+    }
+
+    /**
+     * 双向链表，只由ticker线程访问
+     */
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        void remove(Timeout t) {
+            Timeout next = t.next;
+            if (t.prev != null) {
+                t.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = t.prev;
+            }
+            if (t == head) {
+                head = next;
+            }
+            if (t == tail) {
+                tail = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+        }
+
+        /**
+         * 整个链表一次性取走
+         */
+        Timeout clear() {
+            Timeout h = head;
+            head = tail = null;
+            for (Timeout t = h; t != null; t = t.next) {
+                t.bucket = null;
+            }
+            return h;
+        }
+    }
+
+    /**
+     * 定时任务的句柄
+     */
+    public static final class Timeout {
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final VarHandle STATE;
+
+        static {
+            try {
+                STATE = MethodHandles.lookup().findVarHandle(Timeout.class, "state", int.class);
+            } catch (IllegalAccessException | NoSuchFieldException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = INIT;
+
+        // 以下字段只由ticker线程访问
+        private Timeout prev;
+        private Timeout next;
+        private Bucket bucket;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * O(1)：只做一次CAS并放进cancelled队列，由ticker线程在下一次tick时从链表中摘除
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, INIT, CANCELLED)) {
+                return false;
+            }
+            if (wheel.state == STARTED) {
+                wheel.cancelled.offer(this);
+            }
+            return true;
+        }
+
+        private boolean expire() {
+            return STATE.compareAndSet(this, INIT, EXPIRED);
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        public Runnable task() {
+            return task;
+        }
+
+        public long deadline() {
+            return deadline;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package sets.thread_pool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * 工作窃取双端队列（Chase-Lev风格）
+ * 拥有者线程在top端push/pop（后进先出，缓存友好）
+ * 其他线程在base端steal（先进先出，拿走最早入队、通常也是最大的任务）
+ * 只有在争抢最后一个元素时，拥有者才需要和窃取者CAS竞争base
+ * base和top只增不减，超过Integer.MAX_VALUE后会回绕成负数，所以只能比较两者的差值，不能直接比较大小
+ */
+class WorkStealingDeque<T> {
+
+    private static final int INITIAL_CAPACITY = 1 << 6; // 必须是2的幂，便于用掩码代替取模
+
+    private static final VarHandle BASE;
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    static {
+        try {
+            BASE = MethodHandles.lookup().findVarHandle(WorkStealingDeque.class, "base", int.class);
+        } catch (IllegalAccessException | NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private volatile Object[] array = new Object[INITIAL_CAPACITY];
+    private volatile int base = 0; // 窃取端，由窃取者CAS推进
+    private volatile int top = 0; // 拥有者端，只有拥有者线程写入
+
+    WorkStealingDeque() { }
+
+    /**
+     * 从指定的下标开始，用于测试下标回绕
+     */
+    WorkStealingDeque(int initialIndex) {
+        this.base = initialIndex;
+        this.top = initialIndex;
+    }
+
+    /**
+     * 只能由拥有者线程调用
+     */
+    void push(T t) {
+        Object[] a = array;
+        int s = top;
+        if (s - base >= a.length - 1) {
+            a = grow(a, s);
+        }
+
+        SLOTS.setRelease(a, s & (a.length - 1), t);
+        top = s + 1; // volatile写，把元素发布给窃取者
+    }
+
+    /**
+     * 只能由拥有者线程调用，从top端取出最新入队的元素
+     */
+    @SuppressWarnings("unchecked")
+    T pop() {
+        Object[] a = array;
+        int s = top - 1;
+        top = s; // 先声明要取走s，再读base，和steal中的先读base再读top对应
+        int b = base;
+        if (s - b < 0) { // 队列为空
+            top = b;
+            return null;
+        }
+
+        int i = s & (a.length - 1);
+        Object t = SLOTS.getAcquire(a, i);
+        if (b == s) {
+            // 只剩最后一个元素，可能有窃取者在同时争抢，用CAS决出胜负
+            boolean won = BASE.compareAndSet(this, b, b + 1);
+            top = b + 1;
+            if (!won) {
+                return null;
+            }
+        }
+
+        SLOTS.setRelease(a, i, null);
+        return (T) t;
+    }
+
+    /**
+     * 可以由任何线程调用，从base端窃取最早入队的元素
+     * 和其他窃取者竞争失败时也返回null，调用者换一个队列再试即可
+     */
+    @SuppressWarnings("unchecked")
+    T steal() {
+        int b = base;
+        int s = top;
+        if (s - b <= 0) {
+            return null;
+        }
+
+        Object[] a = array;
+        Object t = SLOTS.getAcquire(a, b & (a.length - 1));
+        if (t != null && BASE.compareAndSet(this, b, b + 1)) {
+            return (T) t;
+        }
+        return null;
+    }
+
+    boolean isEmpty() {
+        return top - base <= 0;
+    }
+
+    int size() {
+        return Math.max(top - base, 0);
+    }
+
+    /**
+     * 扩容：只由拥有者线程在push时调用
+     * 旧数组不清空，正在读旧数组的窃取者仍能读到正确的元素，最终由base上的CAS保证元素只被取走一次
+     */
+    private Object[] grow(Object[] old, int s) {
+        int n = old.length;
+        Object[] a = new Object[n << 1];
+        for (int i = base; i != s; i++) {
+            a[i & (a.length - 1)] = SLOTS.getAcquire(old, i & (n - 1));
+        }
+        array = a;
+        return a;
+    }
+}
+
+/**
+ * 下标回绕：从Integer.MAX_VALUE - 1开始push 3个元素，top回绕成负数
+ * 期望：isEmpty为false，size为3，pop和steal合起来取回全部3个元素，之后队列为空
+ * 再push足够多的元素触发扩容，扩容时复制的区间同样跨过回绕点
+ */
+@Slf4j
+class TestWorkStealingDeque {
+    public static void main(String[] args) {
+        WorkStealingDeque<Integer> deque = new WorkStealingDeque<>(Integer.MAX_VALUE - 1);
+        for (int i = 0; i < 3; i++) {
+            deque.push(i);
+        }
+        log.info("After wrap: isEmpty={}, size={}", deque.isEmpty(), deque.size());
+        log.info("steal={}, pop={}, pop={}, pop={}, isEmpty={}",
+                deque.steal(), deque.pop(), deque.pop(), deque.pop(), deque.isEmpty());
+
+        deque = new WorkStealingDeque<>(Integer.MAX_VALUE - 10);
+        int n = 200;
+        for (int i = 0; i < n; i++) {
+            deque.push(i);
+        }
+        long sum = 0;
+        int count = 0;
+        Integer v;
+        while ((v = deque.steal()) != null) {
+            sum += v;
+            count++;
+        }
+        log.info("After grow across wrap: stole {} elements, sum {} (expected {} and {})",
+                count, sum, n, (long) n * (n - 1) / 2);
+    }
+}
@@ -26,22 +26,52 @@ public class MySemaphore {
             // Sync.class表明要操作的变量再Sync类中
             // “permits”是变量名
             // int.class是permits的类型
-            V = MethodHandles.lookup().findVarHandle(Sync.class, "permits", int.class);
+            // permits声明在PermitsField中，见下面的填充
+            V = MethodHandles.lookup().findVarHandle(PermitsField.class, "permits", int.class);
         } catch (IllegalAccessException | NoSuchFieldException e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * 委托类：Sync
-     * 默认实现：不公平信号量
+     * 防止伪共享：所有线程都在CAS permits，如果它和其他字段或者堆中相邻的对象（比如MySemaphore自己，每次调用都要读它的sync字段）
+     * 落在同一个缓存行中，每次CAS都会让读这些字段的线程缓存失效
+     * 所以把permits放在两段128字节的填充之间，填充的做法见sets.blocking_queue.ArrayQueuePad0
      */
-    private static class Sync {
+    private abstract static class PermitsPad0 {
+        byte p000, p001, p002, p003, p004, p005, p006, p007, p008, p009, p010, p011, p012, p013, p014, p015;
+        byte p016, p017, p018, p019, p020, p021, p022, p023, p024, p025, p026, p027, p028, p029, p030, p031;
+        byte p032, p033, p034, p035, p036, p037, p038, p039, p040, p041, p042, p043, p044, p045, p046, p047;
+        byte p048, p049, p050, p051, p052, p053, p054, p055, p056, p057, p058, p059, p060, p061, p062, p063;
+        byte p064, p065, p066, p067, p068, p069, p070, p071, p072, p073, p074, p075, p076, p077, p078, p079;
+        byte p080, p081, p082, p083, p084, p085, p086, p087, p088, p089, p090, p091, p092, p093, p094, p095;
+        byte p096, p097, p098, p099, p100, p101, p102, p103, p104, p105, p106, p107, p108, p109, p110, p111;
+        byte p112, p113, p114, p115, p116, p117, p118, p119, p120, p121, p122, p123, p124, p125, p126, p127;
+    }
 
+    private abstract static class PermitsField extends PermitsPad0 {
         // 将许可数委托给Sync
         // 设置为protected是为了让子类拿到父类的permits
         // 设置为volatile是为了保证在CAS操作中多线程之间的可见性
         protected volatile int permits;
+    }
+
+    private abstract static class PermitsPad1 extends PermitsField {
+        byte p128, p129, p130, p131, p132, p133, p134, p135, p136, p137, p138, p139, p140, p141, p142, p143;
+        byte p144, p145, p146, p147, p148, p149, p150, p151, p152, p153, p154, p155, p156, p157, p158, p159;
+        byte p160, p161, p162, p163, p164, p165, p166, p167, p168, p169, p170, p171, p172, p173, p174, p175;
+        byte p176, p177, p178, p179, p180, p181, p182, p183, p184, p185, p186, p187, p188, p189, p190, p191;
+        byte p192, p193, p194, p195, p196, p197, p198, p199, p200, p201, p202, p203, p204, p205, p206, p207;
+        byte p208, p209, p210, p211, p212, p213, p214, p215, p216, p217, p218, p219, p220, p221, p222, p223;
+        byte p224, p225, p226, p227, p228, p229, p230, p231, p232, p233, p234, p235, p236, p237, p238, p239;
+        byte p240, p241, p242, p243, p244, p245, p246, p247, p248, p249, p250, p251, p252, p253, p254, p255;
+    }
+
+    /**
+     * 委托类：Sync
+     * 默认实现：不公平信号量
+     */
+    private static class Sync extends PermitsPad1 {
 
         Sync(int permits) {
            this.permits = permits;
@@ -169,10 +199,27 @@ public class MySemaphore {
                 } finally {
                     // 不管正常返回还是异常，都必须将自己移出队列
                     queue.remove(cur);
+                    // 新的队头可能已经有足够的许可了，唤醒它重新检查
+                    this.notifyAll();
                 }
             }
         }
 
+        /**
+         * 父类的release只做CAS，不会唤醒在wait()中的线程，公平模式下必须加锁后notifyAll
+         */
+        @Override
+        public void release(int n) {
+            if (n <= 0) {
+                throw new IllegalArgumentException("N must be greater than zero.");
+            }
+
+            synchronized (this) {
+                permits += n;
+                this.notifyAll();
+            }
+        }
+
         @Override
         public boolean tryAcquire(int n) {
             if (n <= 0) {
@@ -355,5 +402,51 @@ class TestMySemaphoreThird {
         // 最多三个线程应该同时持有许可
         assertTrue(maxConcurrent.get() <= 3);
     }
+
+    @Test
+    void testFairReleaseWakesWaiter() throws InterruptedException {
+        // 公平模式下acquire在wait()中等待，release必须notifyAll；只做CAS的release会让它永远等下去
+        MySemaphore sem = new MySemaphore(0, true);
+        Thread waiter = acquireInBackground(sem, 1);
+        Thread.sleep(100); // 等它进入wait()
+        sem.release();
+        waiter.join(2000);
+        boolean stuck = waiter.isAlive();
+        waiter.interrupt();
+        assertFalse(stuck);
+    }
+
+    @Test
+    void testFairNextWaiterWokenWhenHeadLeaves() throws InterruptedException {
+        // 队头a要2个许可，排在后面的b只要1个；只有1个许可时两者都在等
+        // a被中断离开队列后，b成为队头且许可足够，必须被唤醒，不能等到下一次release
+        MySemaphore sem = new MySemaphore(0, true);
+        Thread a = acquireInBackground(sem, 2);
+        Thread.sleep(100);
+        Thread b = acquireInBackground(sem, 1);
+        Thread.sleep(100);
+        sem.release(1);
+        Thread.sleep(100);
+        assertTrue(a.isAlive() && b.isAlive());
+
+        a.interrupt();
+        a.join(2000);
+        b.join(2000);
+        boolean stuck = b.isAlive();
+        b.interrupt();
+        assertFalse(stuck);
+    }
+
+    private static Thread acquireInBackground(MySemaphore sem, int n) {
+        Thread t = new Thread(() -> {
+            try {
+                sem.acquire(n);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        t.start();
+        return t;
+    }
 }
 